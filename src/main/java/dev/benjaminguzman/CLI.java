@@ -18,13 +18,19 @@
 
 package dev.benjaminguzman;
 
+import dev.benjaminguzman.cv.CVManager;
+import dev.benjaminguzman.cv.FaceDetectorBenchmark;
+import dev.benjaminguzman.cv.FaceDetectorType;
 import dev.benjaminguzman.gui.MainFrame;
+import dev.benjaminguzman.prefs.cv.CVPrefsManager;
 import dev.benjaminguzman.utils.DaemonThreadFactory;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Optional;
 
 public class CLI implements Runnable
 {
@@ -90,13 +96,81 @@ public class CLI implements Runnable
 						System.out.println("Opening systray menu");
 						mainFrame.toggleSysTrayMenu();
 					}
-					default -> System.out.println("Command \"" + line + "\" was not understood");
+					case "cv", "cv-stats" -> System.out.println(CVManager.getMetrics());
+					case "cv-bench" -> runDetectorBenchmark();
+					default -> {
+						if (line.startsWith("cv-detector "))
+							setFaceDetector(line.substring("cv-detector ".length()).trim());
+						else if (line.startsWith("cv-duty-cycle "))
+							setDutyCycle(line.substring("cv-duty-cycle ".length()).trim());
+						else
+							System.out.println("Command \"" + line + "\" was not understood");
+					}
 				}
 			}
 		} catch (IOException ignored) {
 		}
 	}
 
+	/**
+	 * Benchmarks all the face detectors with frames captured from the camera and prints the results
+	 */
+	private void runDetectorBenchmark()
+	{
+		System.out.println("Benchmarking face detectors, stay in front of the camera...");
+		try {
+			List<FaceDetectorBenchmark.Result> results = FaceDetectorBenchmark.run(
+				SpineWare.getCameraService(),
+				CVPrefsManager.getDetectionScale()
+			);
+			if (results.isEmpty())
+				System.out.println("No frame could be captured");
+			results.forEach(System.out::println);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Saves the face detector in the preferences and starts using it
+	 *
+	 * @param name the short name of the detector
+	 */
+	private void setFaceDetector(String name)
+	{
+		Optional<FaceDetectorType> type = FaceDetectorType.getInstance(name);
+		if (type.isEmpty()) {
+			System.out.println("Unknown face detector \"" + name + "\"");
+			return;
+		}
+
+		CVPrefsManager.saveFaceDetectorType(type.get());
+		// the user may have just copied the model files, so load it even if it failed before
+		if (!SpineWare.getCVUtils().setFaceDetectorType(type.get(), true))
+			System.out.println("Face detector \"" + name + "\" could not be loaded, see the log for details");
+		System.out.println("Using face detector: " + SpineWare.getCVUtils().getFaceDetector().getType().getName());
+	}
+
+	/**
+	 * Enables or disables the duty-cycled mode of the CV loop and restarts the loop
+	 *
+	 * @param value "on" or "off"
+	 */
+	private void setDutyCycle(String value)
+	{
+		if (!value.equals("on") && !value.equals("off")) {
+			System.out.println("Expected \"on\" or \"off\", got \"" + value + "\"");
+			return;
+		}
+
+		CVPrefsManager.setDutyCycleEnabled(value.equals("on"));
+		if (CVPrefsManager.isFeatureEnabled()) {
+			CVManager.stopCVLoop(false);
+			CVManager.startCVLoop();
+		}
+		System.out.println("Duty-cycled camera: " + value);
+	}
+
 	public void printUsage()
 	{
 		String usage = """
@@ -104,6 +178,10 @@ public class CLI implements Runnable
 				exit | quit:              Exit the application
 				gc   | free:              Run System.gc()
 				tray | menu | systray:    Open the systray menu
+				cv   | cv-stats:          Print the metrics of the posture checker
+				cv-bench:                 Benchmark the face detectors with frames from the camera
+				cv-detector <lbp|haar|dnn>: Change the face detector
+				cv-duty-cycle <on|off>:   Open the camera only to capture a burst of frames on each refresh
 			""";
 		System.out.println(usage);
 	}
@@ -21,8 +21,12 @@ import com.formdev.flatlaf.FlatDarkLaf;
 import dev.benjaminguzman.core.Loggers;
 import dev.benjaminguzman.cv.CVManager;
 import dev.benjaminguzman.cv.CVUtils;
+import dev.benjaminguzman.cv.CameraService;
+import dev.benjaminguzman.cv.FaceDetectorType;
 import dev.benjaminguzman.gui.MainFrame;
+import dev.benjaminguzman.prefs.cv.CVPrefsManager;
 import dev.benjaminguzman.timers.TimersManager;
+import dev.benjaminguzman.utils.DaemonThreadFactory;
 import org.apache.commons.cli.*;
 
 import javax.imageio.ImageIO;
@@ -35,7 +39,9 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 
 public class SpineWare
@@ -44,7 +50,11 @@ public class SpineWare
 	private static final String OS = System.getProperty("os.name").toLowerCase();
 	public static ResourceBundle messagesBundle;
 	public static boolean IS_WINDOWS = OS.contains("win");
-	private static CVUtils cvUtils;
+	/**
+	 * Completed once the OpenCV native libraries and the face detector are loaded, see {@link #initCV(boolean)}
+	 */
+	private static volatile CompletableFuture<CVUtils> cvUtilsFuture;
+	private static volatile CameraService cameraService;
 	private static Image swIcon;
 	private static CLI cli;
 
@@ -79,6 +89,8 @@ public class SpineWare
 			"SpineWare does not start and says there is already an instance running.");
 		opts.addOption("c", "cache", false, "Use cached panels in the main frame. This may increase " +
 			"memory footprint.");
+		opts.addOption("w", "no-warm-up", false, "Don't run the face detector on a synthetic frame at startup. " +
+			"This reduces the startup work, but the first analysed frame will be slower.");
 		opts.addOption("h", "help", false, "Print this help message and exit.");
 		opts.addOption("d", "log-level", true, "Set the logging level. This overrides system property. " +
 			"Valid values are: FINEST, FINER, FINE, CONFIG, INFO, WARNING, SEVERE. " +
@@ -120,6 +132,7 @@ public class SpineWare
 				System.out.println("Lock could not be removed.");
 		}
 		boolean use_cached_panels = apacheCli.hasOption('c');
+		boolean warm_up_cv = !apacheCli.hasOption('w');
 		try {
 			loggingLevel = Level.parse(apacheCli.getOptionValue("log-level", "INFO"));
 		} catch (IllegalArgumentException e) {
@@ -136,6 +149,11 @@ public class SpineWare
 
 		SpineWare.changeMessagesBundle(locale);
 
+		// load the OpenCV natives in background, so the GUI doesn't wait for them
+		// if the feature is disabled they're loaded when the user enables it
+		if (CVPrefsManager.isFeatureEnabled())
+			initCV(warm_up_cv);
+
 		// add shutdown hook for a clean shutdown
 		// kill all timers, java should take care of the gui, you take care of the timers
 		// this is probably not needed as the JVM GC should collect free resources on exit, including threads
@@ -327,17 +345,103 @@ public class SpineWare
 		SpineWare.messagesBundle = newBundle;
 	}
 
-	public static CVUtils getCVUtils()
+	/**
+	 * Starts loading the OpenCV native libraries and the face detector in a background thread. The first time
+	 * SpineWare is executed, this may take a few seconds because the natives are extracted from the jar
+	 * <p>
+	 * Calling this method more than once has no effect, the same future is returned
+	 *
+	 * @param warm_up if true, the face detector is executed on a synthetic frame once it is loaded
+	 *                (see {@link CVUtils#warmUp(double)})
+	 * @return a future completed with the object used to process frames
+	 */
+	public static CompletableFuture<CVUtils> initCV(boolean warm_up)
 	{
+		CompletableFuture<CVUtils> future = cvUtilsFuture;
+		if (future != null) // avoid taking the lock once the task has been started
+			return future;
+
 		synchronized (cvUtilsLock) {
-			if (cvUtils == null)
-				cvUtils = new CVUtils();
+			if (cvUtilsFuture == null) {
+				CompletableFuture<CVUtils> newFuture = new CompletableFuture<>();
+				new DaemonThreadFactory("CV-Init-Thread").newThread(() -> {
+					try {
+						newFuture.complete(createCVUtils(warm_up));
+					} catch (Throwable e) { // e.g. UnsatisfiedLinkError if the natives can't be loaded
+						Loggers.getErrorLogger().log(Level.SEVERE, "Error while loading OpenCV", e);
+						newFuture.completeExceptionally(e);
+					}
+				}).start();
+				cvUtilsFuture = newFuture;
+			}
+
+			return cvUtilsFuture;
+		}
+	}
 
-			if (!cvUtils.getCamCapture().isOpened())
-				cvUtils.open();
+	/**
+	 * Loads everything needed by the CV features and records the time spent in
+	 * {@link CVManager#getMetrics()}
+	 */
+	private static CVUtils createCVUtils(boolean warm_up)
+	{
+		long start = System.nanoTime();
+		CVUtils.loadNativeLibraries();
+		long natives_loaded_at = System.nanoTime();
+
+		CVUtils utils = new CVUtils();
+		utils.setCaptureProfile(CVPrefsManager.getCaptureProfile());
+		FaceDetectorType faceDetectorType = CVPrefsManager.getFaceDetectorType();
+		// the failure is only reported here, later attempts to use the same detector don't load it again
+		if (!utils.setFaceDetectorType(faceDetectorType))
+			showErrorAlert(
+				MessageFormat.format(
+					messagesBundle.getString("face_detector_load_error"),
+					faceDetectorType.getName()
+				),
+				messagesBundle.getString("cv_error")
+			);
+		cameraService = new CameraService(utils, CVManager.getMetrics());
+		long detector_loaded_at = System.nanoTime();
 
-			return cvUtils;
+		long warm_up_ns = -1;
+		if (warm_up) {
+			utils.warmUp(CVPrefsManager.getDetectionScale());
+			warm_up_ns = System.nanoTime() - detector_loaded_at;
 		}
+
+		CVManager.getMetrics().onCVInitialized(
+			natives_loaded_at - start,
+			detector_loaded_at - natives_loaded_at,
+			warm_up_ns
+		);
+		Loggers.getDebugLogger().log(
+			Level.INFO,
+			"OpenCV loaded in " + (System.nanoTime() - start) / 1_000_000 + " ms"
+		);
+		return utils;
+	}
+
+	/**
+	 * The camera is not opened by this method, use {@link #getCameraService()} to get frames from it
+	 * <p>
+	 * If OpenCV is still being loaded (see {@link #initCV(boolean)}), this method waits for it. If it has not
+	 * been started, the loading is started without warm-up
+	 *
+	 * @return the object used to process frames (e.g. detect faces)
+	 */
+	public static CVUtils getCVUtils()
+	{
+		return initCV(false).join();
+	}
+
+	/**
+	 * @return the service used to get frames from the camera, shared among all the components needing frames
+	 */
+	public static CameraService getCameraService()
+	{
+		getCVUtils(); // the service is created along with the CVUtils
+		return cameraService;
 	}
 
 	/**
@@ -376,8 +480,9 @@ public class SpineWare
 		TimersManager.shutdownAllThreads(); // shutdown all timer & hook threads
 		TimersManager.stopMainLoop(); // stop all timers
 		CVManager.stopCVLoop();
-		if (cvUtils != null)
-			cvUtils.close(); // ensure the webcam is closed
+		CompletableFuture<CVUtils> future = cvUtilsFuture;
+		if (future != null && future.isDone() && !future.isCompletedExceptionally())
+			future.join().close(); // ensure the webcam is closed
 
 		//System.exit(0);
 		// technically this is not needed, when closing all windows and stopping all threads,
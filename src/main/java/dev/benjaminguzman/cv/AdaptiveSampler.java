@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides how often the {@link CVLoop} should capture frames, based on how stable the posture of the user is
+ * <p>
+ * While the posture is OK and far from the thresholds, the interval between captures grows gradually up to the
+ * max interval. As soon as the posture is bad, close to the thresholds or no single face is found, the interval
+ * goes back to the min interval (the refresh rate configured by the user)
+ * <p>
+ * {@link #onStable()} and {@link #onUnstable()} must be invoked from a single thread, {@link #getIntervalMs()}
+ * can be invoked from any thread
+ */
+public class AdaptiveSampler
+{
+	/**
+	 * Number of consecutive stable evaluations after which the interval grows
+	 */
+	public static final int STABLE_EVALUATIONS_BEFORE_SLOWING_DOWN = 5;
+
+	/**
+	 * Factor by which the interval grows each time
+	 */
+	public static final double SLOW_DOWN_FACTOR = 1.5;
+
+	private final long min_interval_ms;
+	private final long max_interval_ms;
+
+	private volatile long interval_ms;
+
+	/**
+	 * Number of consecutive stable evaluations since the last time the interval changed
+	 */
+	private int stable_evaluations;
+
+	/**
+	 * Invoked when the interval goes back to the min interval, so a capture scheduled with the long interval can
+	 * be rescheduled
+	 */
+	@Nullable
+	private final Runnable onSpeedUp;
+
+	/**
+	 * @param min_interval_ms the interval used while the posture is unstable
+	 * @param max_interval_ms the max interval used while the posture is stable. If it is equal to the min
+	 *                        interval, the interval is fixed
+	 * @param onSpeedUp       callback invoked when the interval goes back to the min interval
+	 */
+	public AdaptiveSampler(long min_interval_ms, long max_interval_ms, @Nullable Runnable onSpeedUp)
+	{
+		if (min_interval_ms <= 0 || max_interval_ms < min_interval_ms)
+			throw new IllegalArgumentException(
+				"Invalid intervals. Min: " + min_interval_ms + ", max: " + max_interval_ms
+			);
+
+		this.min_interval_ms = min_interval_ms;
+		this.max_interval_ms = max_interval_ms;
+		this.interval_ms = min_interval_ms;
+		this.onSpeedUp = onSpeedUp;
+	}
+
+	/**
+	 * Invoke this when the posture is OK and not close to the thresholds
+	 */
+	public void onStable()
+	{
+		if (++stable_evaluations < STABLE_EVALUATIONS_BEFORE_SLOWING_DOWN)
+			return;
+
+		stable_evaluations = 0;
+		interval_ms = Math.min(max_interval_ms, Math.round(interval_ms * SLOW_DOWN_FACTOR));
+	}
+
+	/**
+	 * Invoke this when the posture is bad, close to the thresholds or no single face was found
+	 */
+	public void onUnstable()
+	{
+		stable_evaluations = 0;
+		if (interval_ms == min_interval_ms)
+			return;
+
+		interval_ms = min_interval_ms;
+		if (onSpeedUp != null)
+			onSpeedUp.run();
+	}
+
+	/**
+	 * @return the current interval between captures in milliseconds
+	 */
+	public long getIntervalMs()
+	{
+		return interval_ms;
+	}
+
+	public long getMinIntervalMs()
+	{
+		return min_interval_ms;
+	}
+
+	public long getMaxIntervalMs()
+	{
+		return max_interval_ms;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "AdaptiveSampler{" +
+			"min_interval_ms=" + min_interval_ms +
+			", max_interval_ms=" + max_interval_ms +
+			", interval_ms=" + interval_ms +
+			'}';
+	}
+}
@@ -20,82 +20,207 @@ package dev.benjaminguzman.cv;
 
 import dev.benjaminguzman.SpineWare;
 import dev.benjaminguzman.core.Loggers;
+import dev.benjaminguzman.utils.LatestValueSlot;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.opencv.core.Mat;
-import org.opencv.core.Rect;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 
-public class CVLoop implements Runnable
+/**
+ * Checks the posture of the user with a pipeline of 3 stages, each one executed in its own thread:
+ * <ol>
+ *     <li>Capture: {@link #captureFrame()}</li>
+ *     <li>Detection: {@link #runDetectionStage()}</li>
+ *     <li>Evaluation: {@link #runEvaluationStage()}</li>
+ * </ol>
+ * Stages are connected by single slot handoffs where the latest value wins ({@link LatestValueSlot}). That way a
+ * slow detection doesn't delay the next capture and stale frames are discarded instead of queued. The throughput is
+ * bounded by the slowest stage instead of the sum of all the stages
+ * <p>
+ * In duty-cycled mode (see {@link #setBurstCameraService(CameraService)}), the camera is not kept open. Instead,
+ * {@link #captureBurst()} opens it, captures and analyses a short burst of frames and closes it again, and only
+ * the result of the vote is handed off to the evaluation stage
+ */
+public class CVLoop
 {
 	public static double frame_width = 720, frame_height = 460;
 
 	/**
-	 * The hook {@link #onSeveralNoFaceDetected} will be invoked after this number of tries
+	 * Max time to wait for a frame from the camera
 	 */
-	private static final int EXEC_HOOK_NO_FACE_DETECTED_AFTER_N_TRIES = 20;
+	private static final long CAPTURE_TIMEOUT_MS = 2000;
 
 	/**
-	 * The hook {@link #onMultipleFacesDetected} will be invoked after this number of tries
+	 * Number of frames analysed in each burst, see {@link #captureBurst()}
 	 */
-	private static final int EXEC_HOOK_MULTIPLE_FACES_DETECTED_AFTER_N_TRIES = 5;
+	private static final int BURST_SIZE = 5;
 
 	/**
-	 * The hook {@link #onUserPostureStateComputed} will be invoked after this number of iterations (invocations
-	 * to {@link #run()})
+	 * After the camera is opened, frames are discarded until the mean luminance of two consecutive frames differs
+	 * less than this (in gray levels, 0 - 255), i.e. until the camera has adjusted its exposure
 	 */
-	private static final int EXEC_POSTURE_UPDATED_AFTER_N_ITERATIONS = 2;
+	private static final double WARM_UP_LUMINANCE_DELTA = 2;
 
 	/**
-	 * Counter for the number of times a face was not detected while performing the algorithm
-	 * Note: this variable does not require synchronization because it SHOULD only be used inside {@link #run()}
+	 * Max number of frames discarded while the camera adjusts its exposure
 	 */
-	private static int times_no_face_detected = 0;
+	private static final int MAX_WARM_UP_FRAMES = 30;
 
 	/**
-	 * Counter for the number of times multiple faces were detected while executing the loop
-	 * Note: this variable does not require synchronization because it SHOULD only be used inside {@link #run()}
+	 * Max number of failed captures before a burst is given up
 	 */
-	private static int times_multiple_faces_detected = 0;
+	private static final int MAX_BURST_CAPTURE_FAILURES = 10;
 
 	/**
-	 * Counter for the number of iterations occurred since the last call to {@link #onUserPostureStateComputed}
-	 * <p>
-	 * {@link #onUserPostureStateComputed} will be invoked whenever the users posture is ok, disregarding this value
-	 * <p>
-	 * Note: this variable does not require synchronization because it SHOULD be used inside {@link #run()}
+	 * When a face is being tracked, the region where it is searched in the next iterations is the face rectangle
+	 * expanded by this ratio (of the face width/height) on each side
+	 */
+	private static final double ROI_EXPANSION_RATIO = 0.5;
+
+	/**
+	 * When a face is being tracked, the whole frame is still analysed every this number of iterations, so
+	 * new faces (e.g. a second person) appearing outside the region can be detected
+	 */
+	private static final int FULL_FRAME_DETECTION_EVERY_N_ITERATIONS = 10;
+
+	/**
+	 * If the mean absolute difference (in gray levels, 0 - 255) between the thumbnail of the current frame and the
+	 * thumbnail of the frame in which faces were detected the last time is less than this, the scene is considered
+	 * static and faces are not detected again
+	 */
+	private static final double STATIC_SCENE_THRESHOLD = 4;
+
+	/**
+	 * Faces will be detected at least once every this number of milliseconds, even if the scene is static or
+	 * the face is being followed by the {@link #faceTracker}
+	 */
+	private static final long FORCE_DETECTION_EVERY_N_MS = 5_000;
+
+	/**
+	 * The posture is considered close to the distance threshold if the distance is less than
+	 * {@link CVUtils#SAFE_DISTANCE_CM} increased by this ratio. See {@link #isPostureStable(int, int, int, int)}
 	 */
-	private static int posture_updated_iterations = 0;
+	private static final double NEAR_DISTANCE_RATIO = 0.1;
+
+	/**
+	 * The posture is considered close to the margins if the face is closer than this ratio (of the frame
+	 * width/height) to them. See {@link #isPostureStable(int, int, int, int)}
+	 */
+	private static final double NEAR_MARGIN_RATIO = 0.05;
 
 	@NotNull
 	private final Consumer<PostureAnalytics> onUserPostureStateComputed;
 
 	/**
 	 * A reference to an object holding the user posture state
-	 * It is preferred to keep a single object rather than creating a new one on each call to {@link #run()}
+	 * It is preferred to keep a single object rather than creating a new one on each call to {@link #evaluatePosture(FaceDetectionResult)}
 	 */
 	private final PostureAnalytics postureAnalytics;
 
 	/**
-	 * Runnable to be invoked when {@link #times_no_face_detected} is equal to
-	 * {@link #EXEC_HOOK_NO_FACE_DETECTED_AFTER_N_TRIES}
+	 * Buffers reused by the detection stage, so the steady state iterations don't allocate any Mat
+	 */
+	private final FrameContext frameCtx = new FrameContext();
+
+	/**
+	 * Follows the face between executions of the cascade classifier
+	 */
+	private final FaceTracker faceTracker = new FaceTracker();
+
+	private final CVMetrics metrics = new CVMetrics();
+
+	/**
+	 * Handoff between the capture stage and the detection stage. If a frame is discarded (because a newer one
+	 * arrived), its buffer is recycled
+	 */
+	private final LatestValueSlot<Mat> capturedFrames = new LatestValueSlot<>(frame -> {
+		metrics.onFrameSkipped();
+		this.freeFrames.offer(frame);
+	});
+
+	/**
+	 * Buffers ready to be used by the capture stage
+	 */
+	private final Queue<Mat> freeFrames = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Handoff between the detection stage and the evaluation stage
+	 */
+	private final LatestValueSlot<FaceDetectionResult> detectionResults = new LatestValueSlot<>(
+		result -> metrics.onResultSkipped()
+	);
+
+	/**
+	 * Subscription to the {@link CameraService}, set while the loop is running
+	 */
+	@Nullable
+	private volatile CameraService.Subscription cameraSubscription;
+
+	/**
+	 * Camera service used by {@link #captureBurst()}, set while the loop is running in duty-cycled mode
+	 */
+	@Nullable
+	private volatile CameraService burstCameraService;
+
+	/**
+	 * Runnable to be invoked when no face has been detected for a while, see
+	 * {@link PostureAnalytics.Condition#NO_FACE}
 	 */
 	@Nullable
 	private Runnable onSeveralNoFaceDetected;
 
 	/**
-	 * Runnable to be invoked when {@link #times_multiple_faces_detected} is equal to
-	 * {@link #EXEC_HOOK_MULTIPLE_FACES_DETECTED_AFTER_N_TRIES}
+	 * Runnable to be invoked when multiple faces have been detected for a while, see
+	 * {@link PostureAnalytics.Condition#MULTIPLE_FACES}
 	 */
 	@Nullable
 	private Runnable onMultipleFacesDetected;
 
+	/**
+	 * Rectangle of the last face detected (when a single face was detected)
+	 * Faces will be searched only around this rectangle if {@link #is_tracking_face} is true
+	 */
+	private int last_face_x, last_face_y, last_face_width, last_face_height;
+
+	/**
+	 * Indicates if a single face was detected in the last iteration and therefore the search can be restricted
+	 * to the region around {@link #last_face_x}, {@link #last_face_y}...
+	 */
+	private boolean is_tracking_face;
+
+	/**
+	 * Number of iterations since the whole frame was analysed
+	 */
+	private int iterations_since_full_detection;
+
+	/**
+	 * Indicates if faces have been detected in a previous iteration, and therefore the result can be reused if the
+	 * scene is static
+	 */
+	private boolean has_detection_result;
+
+	/**
+	 * Value of {@link System#nanoTime()} the last time faces were detected
+	 */
+	private long last_detection_time;
+
 	private CVPrefs cvPrefs;
 	private int min_acceptable_x, max_acceptable_x, min_acceptable_y, max_acceptable_y;
 
+	/**
+	 * Decides how often frames are captured, it is informed about the stability of the posture by the evaluation
+	 * stage
+	 */
+	@Nullable
+	private volatile AdaptiveSampler sampler;
+
 	public CVLoop(@NotNull Consumer<PostureAnalytics> onUserPostureStateComputed)
 	{
 		postureAnalytics = new PostureAnalytics();
@@ -121,9 +246,51 @@ public class CVLoop implements Runnable
 		this.onMultipleFacesDetected = onMultipleFacesDetected;
 	}
 
+	/**
+	 * @param cameraSubscription the subscription used to get frames from the camera, if it is null the loop
+	 *                           does nothing
+	 */
+	public void setCameraSubscription(@Nullable CameraService.Subscription cameraSubscription)
+	{
+		this.cameraSubscription = cameraSubscription;
+	}
+
+	@Nullable
+	public CameraService.Subscription getCameraSubscription()
+	{
+		return cameraSubscription;
+	}
+
+	/**
+	 * @param burstCameraService the camera service to subscribe to on each burst in duty-cycled mode, if it is
+	 *                           null {@link #captureBurst()} does nothing
+	 */
+	public void setBurstCameraService(@Nullable CameraService burstCameraService)
+	{
+		this.burstCameraService = burstCameraService;
+	}
+
+	/**
+	 * @param sampler the sampler informed about the stability of the posture, if it is null the stability is not
+	 *                reported
+	 */
+	public void setSampler(@Nullable AdaptiveSampler sampler)
+	{
+		this.sampler = sampler;
+		if (sampler != null)
+			metrics.onSamplingIntervalChanged(sampler.getIntervalMs());
+	}
+
+	@Nullable
+	public AdaptiveSampler getSampler()
+	{
+		return sampler;
+	}
+
 	public void setCVPrefs(CVPrefs cvPrefs)
 	{
 		this.cvPrefs = cvPrefs;
+		this.frameCtx.setDetectionScale(cvPrefs.detection_scale);
 		this.recomputeMarginThresholds();
 	}
 
@@ -135,91 +302,644 @@ public class CVLoop implements Runnable
 		this.max_acceptable_y = (int) ((1 - this.cvPrefs.margin_y / 100.0) * frame_height);
 	}
 
-	@Override
-	public void run()
+	/**
+	 * Capture stage. Captures a frame and hands it off to the detection stage
+	 * This method is intended to be executed periodically (each {@link CVPrefs#refresh_rate} ms)
+	 * <p>
+	 * If the detection stage is still busy when a new frame is captured, the frame waiting to be processed is
+	 * discarded (see {@link #capturedFrames}), so frames never queue up
+	 */
+	public void captureFrame()
 	{
-		Loggers.getDebugLogger().log(Level.FINER, "Checking posture...");
-		CVUtils cvUtils = SpineWare.getCVUtils();
-		Mat frame = cvUtils.captureFrame();
+		CameraService.Subscription subscription = cameraSubscription;
+		if (subscription == null)
+			return;
+
+		long start_ns = System.nanoTime();
+		long start_cpu_ns = CpuGovernor.getCpuTimeNs();
+		Mat frame = freeFrames.poll();
+		if (frame == null) // at most 3 buffers are created: being captured, waiting and being processed
+			frame = new Mat();
+
+		boolean captured = false;
 
 		// try 10 times to capture a frame, if it succeeds stop trying and start checking posture
-		int i = 10;
-		while ((frame == null || frame.empty()) && --i > 0 && !Thread.currentThread().isInterrupted())
-			frame = cvUtils.captureFrame();
+		try {
+			int i = 10;
+			while (!captured && i-- > 0 && !Thread.currentThread().isInterrupted())
+				captured = subscription.nextFrame(frame, CAPTURE_TIMEOUT_MS);
+		} catch (InterruptedException e) { // the loop is being stopped
+			Thread.currentThread().interrupt();
+		}
 
-		if (frame == null || frame.empty()) {
-			Loggers.getErrorLogger().log(Level.WARNING, "Could NOT capture frame from camera");
+		if (!captured) {
+			freeFrames.offer(frame);
+			if (!Thread.currentThread().isInterrupted())
+				Loggers.getErrorLogger().log(Level.WARNING, "Could NOT capture frame from camera");
 			return;
 		}
 
-		if (frame_width == 0 || frame_height == 0) {
-			frame_width = frame.width();
-			frame_height = frame.height();
-			this.recomputeMarginThresholds();
-		}
+		capturedFrames.put(frame);
+		metrics.getCaptureStage().record(start_ns);
+		metrics.onCpuTime(CpuGovernor.getCpuTimeNs() - start_cpu_ns);
+	}
 
-		List<Rect> detectedFaces = cvUtils.detectFaces(frame);
-		frame.release();
+	/**
+	 * Capture and detection stages for the duty-cycled mode. Opens the camera, captures a burst of
+	 * {@link #BURST_SIZE} frames, closes the camera and hands off the result of the vote (see {@link BurstVote}) to
+	 * the evaluation stage
+	 * This method is intended to be executed periodically (each {@link CVPrefs#refresh_rate} ms) instead of
+	 * {@link #captureFrame()} and {@link #runDetectionStage()}
+	 * <p>
+	 * If the camera was not open (e.g. the mirror is not using it), the frames captured while the camera adjusts
+	 * its exposure are discarded
+	 */
+	public void captureBurst()
+	{
+		CameraService cameraService = burstCameraService;
+		if (cameraService == null)
+			return;
 
-		if (detectedFaces.isEmpty()) {
-			++times_no_face_detected;
-			if (times_no_face_detected >= EXEC_HOOK_NO_FACE_DETECTED_AFTER_N_TRIES) {
-				times_no_face_detected = 0;
-				if (this.onSeveralNoFaceDetected != null)
-					this.onSeveralNoFaceDetected.run();
+		long start_ns = System.nanoTime();
+		long start_cpu_ns = CpuGovernor.getCpuTimeNs();
+		CameraService.Subscription subscription = cameraService.subscribe("CV loop burst", true);
+		if (subscription == null) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Could NOT open the camera");
+			return;
+		}
+		metrics.getCameraOpenTimer().record(start_ns);
+
+		CVUtils cvUtils = SpineWare.getCVUtils();
+		BurstVote vote = new BurstVote();
+		Mat frame = freeFrames.poll();
+		if (frame == null)
+			frame = new Mat();
+
+		int n_warm_up_frames = 0, n_failures = 0;
+		boolean is_warming_up = subscription.hasOpenedCamera();
+		double last_luminance = -1;
+		try {
+			while (vote.getNResults() < BURST_SIZE && !Thread.currentThread().isInterrupted()) {
+				if (!subscription.nextFrame(frame, CAPTURE_TIMEOUT_MS)) {
+					if (++n_failures >= MAX_BURST_CAPTURE_FAILURES)
+						break;
+					continue;
+				}
+
+				if (is_warming_up) {
+					double luminance = CVUtils.getMeanLuminance(frame);
+					is_warming_up = n_warm_up_frames < MAX_WARM_UP_FRAMES
+						&& (last_luminance == -1
+						|| Math.abs(luminance - last_luminance) >= WARM_UP_LUMINANCE_DELTA);
+					last_luminance = luminance;
+					if (is_warming_up) {
+						++n_warm_up_frames;
+						continue;
+					}
+				}
+
+				// no frame is copied, the previous frame buffer is reused for the next capture
+				frame = frameCtx.swapFrame(frame);
+				// each frame must vote with its own detection, otherwise the vote would be on copies of
+				// a single (maybe noisy) result
+				vote.add(this.findFaces(cvUtils, true));
 			}
+		} catch (InterruptedException e) { // the loop is being stopped
+			Thread.currentThread().interrupt();
+		} finally {
+			freeFrames.offer(frame);
+
+			long close_start_ns = System.nanoTime();
+			subscription.close();
+			metrics.getCameraCloseTimer().record(close_start_ns);
+		}
 
-			return; // there is no point to continue if no face was detected
+		metrics.onBurstCaptured(n_warm_up_frames, vote.getNResults());
+		if (vote.getNResults() == 0) {
+			if (!Thread.currentThread().isInterrupted())
+				Loggers.getErrorLogger().log(Level.WARNING, "Could NOT capture frames from camera");
+			return;
 		}
 
-		// show error message if no face was detected or more than 1 face was detected
-		if (detectedFaces.size() > 1) {
-			++times_multiple_faces_detected;
-			if (times_multiple_faces_detected >= EXEC_HOOK_MULTIPLE_FACES_DETECTED_AFTER_N_TRIES) {
-				times_multiple_faces_detected = 0;
-				if (this.onMultipleFacesDetected != null)
-					this.onMultipleFacesDetected.run();
+		detectionResults.put(vote.getResult());
+		metrics.getCaptureStage().record(start_ns);
+		metrics.onCpuTime(CpuGovernor.getCpuTimeNs() - start_cpu_ns);
+	}
+
+	/**
+	 * Detection stage. Takes the latest captured frame, finds the faces in it and hands off the result to the
+	 * evaluation stage
+	 * <p>
+	 * This method runs until the current thread is interrupted
+	 */
+	public void runDetectionStage()
+	{
+		CVUtils cvUtils = SpineWare.getCVUtils();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Mat frame = capturedFrames.take();
+				long start_ns = System.nanoTime();
+				long start_cpu_ns = CpuGovernor.getCpuTimeNs();
+
+				// the previous frame buffer is given back to the capture stage, no frame is copied
+				freeFrames.offer(frameCtx.swapFrame(frame));
+				detectionResults.put(this.findFaces(cvUtils, false));
+
+				metrics.getDetectionStage().record(start_ns);
+				metrics.onCpuTime(CpuGovernor.getCpuTimeNs() - start_cpu_ns);
 			}
+		} catch (InterruptedException ignored) {
+			// the loop is being stopped
+		}
+	}
+
+	/**
+	 * Evaluation stage. Takes the latest detection result and evaluates the posture of the user
+	 * <p>
+	 * This method runs until the current thread is interrupted
+	 */
+	public void runEvaluationStage()
+	{
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				FaceDetectionResult result = detectionResults.take();
+				long start_ns = System.nanoTime();
+				long start_cpu_ns = CpuGovernor.getCpuTimeNs();
+
+				this.evaluatePosture(result);
+
+				metrics.getEvaluationStage().record(start_ns);
+				metrics.onCpuTime(CpuGovernor.getCpuTimeNs() - start_cpu_ns);
+			}
+		} catch (InterruptedException ignored) {
+			// the loop is being stopped
+		}
+	}
+
+	/**
+	 * Finds the faces in the frame stored in {@link #frameCtx}
+	 * <p>
+	 * Frames in which faces can't be detected (see {@link CVUtils#assessQuality(FrameContext)}) are rejected
+	 * <p>
+	 * If the scene is static, the faces detected previously are reused (they're still in the frame context).
+	 * If it is not, the face is followed with the tracker. That way the expensive cascade classifier is only
+	 * executed every few seconds or when the face is lost
+	 *
+	 * @param cvUtils         the object used to detect faces
+	 * @param force_detection if true, faces are detected even if the scene is static or the face is being
+	 *                        tracked. Used for the frames of a burst, which are voted (see {@link BurstVote})
+	 * @return the result
+	 */
+	@NotNull
+	private FaceDetectionResult findFaces(@NotNull CVUtils cvUtils, boolean force_detection)
+	{
+		FrameQuality quality = cvUtils.assessQuality(frameCtx);
+		if (quality != FrameQuality.OK) {
+			metrics.onFrameRejected(quality);
+			return FaceDetectionResult.rejected(frameCtx.getFrame());
+		}
+
+		int n_faces;
+		long now = System.nanoTime();
+		boolean detection_is_due = force_detection
+			|| !has_detection_result
+			|| now - last_detection_time >= TimeUnit.MILLISECONDS.toNanos(FORCE_DETECTION_EVERY_N_MS);
+		cvUtils.computeThumbnail(frameCtx);
+		if (!detection_is_due && cvUtils.getThumbnailDifference(frameCtx) < STATIC_SCENE_THRESHOLD) {
+			n_faces = frameCtx.getNFaces();
+			metrics.onStaticSceneIteration();
+		} else if (!detection_is_due && this.trackFace()) {
+			n_faces = 1;
+			frameCtx.updateReferenceThumbnail();
+		} else {
+			n_faces = this.detectFaces(cvUtils);
+			frameCtx.updateReferenceThumbnail();
+			last_detection_time = now;
+			has_detection_result = true;
+			metrics.onDetectorIteration();
+
+			if (n_faces == 1)
+				faceTracker.startTracking(
+					frameCtx.getFrame(),
+					frameCtx.getFaceX(0),
+					frameCtx.getFaceY(0),
+					frameCtx.getFaceWidth(0),
+					frameCtx.getFaceHeight(0)
+				);
+			else
+				faceTracker.stopTracking();
+		}
+
+		if (n_faces == 0)
+			return new FaceDetectionResult(0, 0, 0, 0, 0, frameCtx.getFrame());
+
+		return new FaceDetectionResult(
+			n_faces,
+			frameCtx.getFaceX(0),
+			frameCtx.getFaceY(0),
+			frameCtx.getFaceWidth(0),
+			frameCtx.getFaceHeight(0),
+			frameCtx.getFrame()
+		);
+	}
+
+	/**
+	 * Evaluates the posture of the user and invokes the corresponding hooks
+	 * <p>
+	 * The hooks are only invoked when the state of the user changes (see {@link PostureAnalytics#update(long, int)}),
+	 * not on each evaluation. The only exception is the distance, which is published on each evaluation while the
+	 * user is too close
+	 *
+	 * @param result the faces found in the latest frame
+	 */
+	private void evaluatePosture(@NotNull FaceDetectionResult result)
+	{
+		Loggers.getDebugLogger().log(Level.FINER, "Checking posture...");
 
-			return; // stop processing
+		// the negotiated resolution may differ from the default one, recompute the thresholds if it changes
+		if (frame_width != result.frame_width || frame_height != result.frame_height) {
+			frame_width = result.frame_width;
+			frame_height = result.frame_height;
+			this.recomputeMarginThresholds();
 		}
-		// to show the no face detected/multiple faces detected notification
-		// events must happen sequentially without interruption, therefore, once a single face was detected,
-		// restart the counters
-		times_no_face_detected = 0;
-		times_multiple_faces_detected = 0;
 
-		Rect faceRect = detectedFaces.get(0);
+		// a rejected frame says nothing about the user, e.g. it must not count as "no face detected"
+		if (result.is_rejected)
+			return;
+
+		int n_faces = result.n_faces;
+		AdaptiveSampler sampler = this.sampler;
+		if (n_faces == 1) {
+			int face_x = result.face_x, face_y = result.face_y;
+			int face_width = result.face_width, face_height = result.face_height;
+
+			// 1st checker: distance
+			if (cvPrefs.ideal_f_length != CVUtils.INVALID_IDEAL_FOCAL_LENGTH)
+				this.postureAnalytics.setDistance(
+					SpineWare.getCVUtils().computeDistance(cvPrefs.ideal_f_length, face_height)
+				);
+
+			if (sampler != null) {
+				if (this.isPostureStable(face_x, face_y, face_width, face_height))
+					sampler.onStable();
+				else
+					sampler.onUnstable();
+			}
 
-		// 1st checker: distance
-		if (cvPrefs.ideal_f_length != CVUtils.INVALID_IDEAL_FOCAL_LENGTH)
-			this.postureAnalytics.setDistance(
-				cvUtils.computeDistance(cvPrefs.ideal_f_length, faceRect.height)
+			// 2nd checker: margins
+			this.postureAnalytics.updateMargins(
+				face_x < min_acceptable_x,
+				face_x + face_width > max_acceptable_x,
+				face_y < min_acceptable_y,
+				face_y + face_height > max_acceptable_y
 			);
 
-		// 2nd checker: margins
-		this.postureAnalytics.updateMargins(
-			faceRect.x < min_acceptable_x,
-			faceRect.x + faceRect.width > max_acceptable_x,
-			faceRect.y < min_acceptable_y,
-			faceRect.y + faceRect.height > max_acceptable_y
+			// 3rd checker ratio of the face with respect to the screen size
+			// TODO: add the 3rd checker
+		} else if (sampler != null) // keep sampling quickly, so the hooks are invoked as soon as they used to be
+			sampler.onUnstable();
+
+		if (sampler != null)
+			metrics.onSamplingIntervalChanged(sampler.getIntervalMs());
+
+		EnumSet<PostureAnalytics.Condition> changedConditions = postureAnalytics.update(
+			TimeUnit.NANOSECONDS.toMillis(System.nanoTime()),
+			n_faces
 		);
+		if (changedConditions.isEmpty()) {
+			// the notification shows the distance while the user is too close, keep it up to date
+			if (n_faces == 1
+				&& postureAnalytics.isActive(PostureAnalytics.Condition.TOO_CLOSE)
+				&& !postureAnalytics.isActive(PostureAnalytics.Condition.MULTIPLE_FACES))
+				this.onUserPostureStateComputed.accept(this.postureAnalytics);
+			return;
+		}
 
-		++posture_updated_iterations;
-		if (posture_updated_iterations >= EXEC_POSTURE_UPDATED_AFTER_N_ITERATIONS) {
-			this.onUserPostureStateComputed.accept(this.postureAnalytics);
-			posture_updated_iterations = 0;
-		} else if (postureAnalytics.isPostureOk()) {
+		if (changedConditions.contains(PostureAnalytics.Condition.NO_FACE)
+			&& postureAnalytics.isActive(PostureAnalytics.Condition.NO_FACE)
+			&& this.onSeveralNoFaceDetected != null)
+			this.onSeveralNoFaceDetected.run();
+
+		if (changedConditions.contains(PostureAnalytics.Condition.MULTIPLE_FACES)) {
+			if (postureAnalytics.isActive(PostureAnalytics.Condition.MULTIPLE_FACES)) {
+				if (this.onMultipleFacesDetected != null)
+					this.onMultipleFacesDetected.run();
+			} else // the notification about multiple faces must be replaced with the posture state
+				this.onUserPostureStateComputed.accept(this.postureAnalytics);
+		}
+
+		if (changedConditions.contains(PostureAnalytics.Condition.TOO_CLOSE)
+			|| changedConditions.contains(PostureAnalytics.Condition.NOT_IN_CENTER))
 			this.onUserPostureStateComputed.accept(this.postureAnalytics);
-			posture_updated_iterations = 0;
+
+		if (Loggers.getDebugLogger().isLoggable(Level.FINE)) // avoid building the string on each iteration
+			Loggers.getDebugLogger().log(
+				Level.FINE,
+				"Posture state changed: " + changedConditions + ". Is posture ok? "
+					+ postureAnalytics.isPostureOk()
+			);
+	}
+
+	/**
+	 * Checks if the posture is OK and not close to the thresholds, i.e. it is unlikely to become bad in the next
+	 * seconds. The distance must have been computed (if the camera is calibrated)
+	 *
+	 * @return true if the posture is stable
+	 */
+	private boolean isPostureStable(int face_x, int face_y, int face_width, int face_height)
+	{
+		double distance = postureAnalytics.getDistance();
+		if (distance != -1 && distance < CVUtils.SAFE_DISTANCE_CM * (1 + NEAR_DISTANCE_RATIO))
+			return false;
+
+		int near_x = (int) (NEAR_MARGIN_RATIO * frame_width), near_y = (int) (NEAR_MARGIN_RATIO * frame_height);
+		return face_x >= min_acceptable_x + near_x
+			&& face_x + face_width <= max_acceptable_x - near_x
+			&& face_y >= min_acceptable_y + near_y
+			&& face_y + face_height <= max_acceptable_y - near_y;
+	}
+
+	/**
+	 * Detects the faces in the frame stored in {@link #frameCtx}
+	 * <p>
+	 * If a single face was detected previously, faces are searched only in the region around it.
+	 * The whole frame is analysed if no face is found in that region or every
+	 * {@link #FULL_FRAME_DETECTION_EVERY_N_ITERATIONS} iterations
+	 *
+	 * @param cvUtils the object used to detect faces
+	 * @return the number of detected faces
+	 */
+	private int detectFaces(@NotNull CVUtils cvUtils)
+	{
+		int n_faces = 0;
+		boolean roi_was_used = false;
+		if (is_tracking_face && iterations_since_full_detection < FULL_FRAME_DETECTION_EVERY_N_ITERATIONS) {
+			int expand_x = (int) (last_face_width * ROI_EXPANSION_RATIO);
+			int expand_y = (int) (last_face_height * ROI_EXPANSION_RATIO);
+			n_faces = cvUtils.detectFaces(
+				frameCtx,
+				last_face_x - expand_x,
+				last_face_y - expand_y,
+				last_face_width + 2 * expand_x,
+				last_face_height + 2 * expand_y
+			);
+			roi_was_used = true;
+			++iterations_since_full_detection;
+		}
+
+		if (n_faces == 0) { // the region missed the face (or no face was being tracked)
+			n_faces = cvUtils.detectFaces(frameCtx);
+			iterations_since_full_detection = 0;
+			roi_was_used = false;
 		}
 
-		// 3rd checker ratio of the face with respect to the screen size
-		// TODO: add the 3rd checker
+		// only a single face can be tracked. If multiple faces are inside the region, keep the
+		// previous face, the next full detection will tell what happened
+		if (n_faces == 1) {
+			last_face_x = frameCtx.getFaceX(0);
+			last_face_y = frameCtx.getFaceY(0);
+			last_face_width = frameCtx.getFaceWidth(0);
+			last_face_height = frameCtx.getFaceHeight(0);
+			is_tracking_face = true;
+		} else if (!roi_was_used)
+			is_tracking_face = false;
+
+		return n_faces;
+	}
 
-		Loggers.getDebugLogger().log(
-			Level.FINER,
-			"Checking posture... Done. Is posture ok? " + postureAnalytics.isPostureOk()
+	/**
+	 * Follows the face with {@link #faceTracker}
+	 * If the face is found, it is stored in {@link #frameCtx} as the single detected face
+	 *
+	 * @return true if the face was found, false if the tracker is not tracking any face or it lost the face
+	 */
+	private boolean trackFace()
+	{
+		if (!faceTracker.isTracking())
+			return false;
+
+		if (!faceTracker.track(frameCtx.getFrame())) {
+			metrics.onTrackerLost(faceTracker.getConfidence());
+			return false;
+		}
+
+		frameCtx.setFace(
+			faceTracker.getFaceX(),
+			faceTracker.getFaceY(),
+			faceTracker.getFaceWidth(),
+			faceTracker.getFaceHeight()
 		);
+		metrics.onTrackerIteration(faceTracker.getConfidence());
+		return true;
+	}
+
+	/**
+	 * @return the metrics of this loop
+	 */
+	@NotNull
+	public CVMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Releases the native memory of the buffers used by this loop
+	 * This method must be called when none of the stages is running, otherwise the buffers may be released while
+	 * they are being used
+	 */
+	public void releaseBuffers()
+	{
+		capturedFrames.clear(); // the discarded frame goes to freeFrames
+		detectionResults.poll();
+		Mat frame;
+		while ((frame = freeFrames.poll()) != null)
+			frame.release();
+
+		frameCtx.release();
+		faceTracker.release();
+		// the user may be in a different position when the loop is started again
+		is_tracking_face = false;
+		has_detection_result = false;
+		postureAnalytics.reset();
+	}
+
+	/**
+	 * Result of the detection stage, consumed by the evaluation stage
+	 * <p>
+	 * Package-private so the vote can be tested without a camera
+	 */
+	static class FaceDetectionResult
+	{
+		/**
+		 * True if the frame was rejected by the quality check, faces were not searched in it
+		 */
+		final boolean is_rejected;
+
+		final int n_faces;
+
+		/**
+		 * Rectangle of the first face (if any)
+		 */
+		final int face_x, face_y, face_width, face_height;
+
+		final int frame_width, frame_height;
+
+		private FaceDetectionResult(
+			int n_faces,
+			int face_x,
+			int face_y,
+			int face_width,
+			int face_height,
+			@NotNull Mat frame
+		)
+		{
+			this(false, n_faces, face_x, face_y, face_width, face_height, frame);
+		}
+
+		private FaceDetectionResult(
+			boolean is_rejected,
+			int n_faces,
+			int face_x,
+			int face_y,
+			int face_width,
+			int face_height,
+			@NotNull Mat frame
+		)
+		{
+			this(is_rejected, n_faces, face_x, face_y, face_width, face_height, frame.width(), frame.height());
+		}
+
+		FaceDetectionResult(
+			boolean is_rejected,
+			int n_faces,
+			int face_x,
+			int face_y,
+			int face_width,
+			int face_height,
+			int frame_width,
+			int frame_height
+		)
+		{
+			this.is_rejected = is_rejected;
+			this.n_faces = n_faces;
+			this.face_x = face_x;
+			this.face_y = face_y;
+			this.face_width = face_width;
+			this.face_height = face_height;
+			this.frame_width = frame_width;
+			this.frame_height = frame_height;
+		}
+
+		/**
+		 * @param frame the rejected frame
+		 * @return a result for a frame rejected by the quality check
+		 */
+		@NotNull
+		private static FaceDetectionResult rejected(@NotNull Mat frame)
+		{
+			return new FaceDetectionResult(true, 0, 0, 0, 0, 0, frame);
+		}
+	}
+
+	/**
+	 * Combines the results of the frames of a burst (see {@link #captureBurst()}) into a single result, so a
+	 * single bad frame (e.g. the user was sneezing) doesn't decide the posture
+	 * <p>
+	 * The most voted outcome wins (a single face, no face or multiple faces), frames rejected by the quality check
+	 * don't vote. If a single face wins, its rectangle is the median of the rectangles of those frames. The
+	 * posture checks compare the rectangle with thresholds, so with the median each check agrees with the majority
+	 * of the frames
+	 * <p>
+	 * Package-private so the vote can be tested without a camera
+	 */
+	static class BurstVote
+	{
+		private final FaceDetectionResult[] results = new FaceDetectionResult[BURST_SIZE];
+		private int n_results;
+
+		void add(@NotNull FaceDetectionResult result)
+		{
+			results[n_results++] = result;
+		}
+
+		int getNResults()
+		{
+			return n_results;
+		}
+
+		/**
+		 * @return the result of the vote, at least a result must have been added
+		 */
+		@NotNull
+		FaceDetectionResult getResult()
+		{
+			int n_single_face = 0, n_no_face = 0, n_multiple_faces = 0;
+			FaceDetectionResult lastNoFace = null, lastMultipleFaces = null;
+			for (int i = 0; i < n_results; ++i) {
+				FaceDetectionResult result = results[i];
+				if (result.is_rejected)
+					continue;
+
+				if (result.n_faces == 1)
+					++n_single_face;
+				else if (result.n_faces == 0) {
+					++n_no_face;
+					lastNoFace = result;
+				} else {
+					++n_multiple_faces;
+					lastMultipleFaces = result;
+				}
+			}
+
+			// ties are resolved in favour of a single face, so the posture can still be evaluated
+			if (n_single_face > 0 && n_single_face >= n_no_face && n_single_face >= n_multiple_faces)
+				return this.getMedianFace(n_single_face);
+			if (lastNoFace != null && n_no_face >= n_multiple_faces)
+				return lastNoFace;
+			if (lastMultipleFaces != null)
+				return lastMultipleFaces;
+
+			return results[n_results - 1]; // all the frames were rejected
+		}
+
+		/**
+		 * @return a result whose face rectangle is the median of the rectangles of the single face results
+		 */
+		@NotNull
+		private FaceDetectionResult getMedianFace(int n_single_face)
+		{
+			int[] xs = new int[n_single_face], ys = new int[n_single_face];
+			int[] widths = new int[n_single_face], heights = new int[n_single_face];
+			FaceDetectionResult last = null;
+			for (int i = 0, j = 0; i < n_results; ++i) {
+				FaceDetectionResult result = results[i];
+				if (result.is_rejected || result.n_faces != 1)
+					continue;
+
+				xs[j] = result.face_x;
+				ys[j] = result.face_y;
+				widths[j] = result.face_width;
+				heights[j] = result.face_height;
+				++j;
+				last = result;
+			}
+
+			return new FaceDetectionResult(
+				false,
+				1,
+				median(xs),
+				median(ys),
+				median(widths),
+				median(heights),
+				last.frame_width,
+				last.frame_height
+			);
+		}
+
+		private static int median(int[] values)
+		{
+			Arrays.sort(values);
+			return values[values.length / 2];
+		}
 	}
 }
@@ -22,11 +22,14 @@ import dev.benjaminguzman.SpineWare;
 import dev.benjaminguzman.core.Loggers;
 import dev.benjaminguzman.gui.notifications.PostureNotification;
 import dev.benjaminguzman.prefs.cv.CVPrefsManager;
+import dev.benjaminguzman.utils.CoalescingMailbox;
 import dev.benjaminguzman.utils.DaemonThreadFactory;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
-import java.lang.reflect.InvocationTargetException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -41,11 +44,53 @@ public class CVManager
 	private static volatile boolean instantiated;
 	private static ScheduledExecutorService cvLoopExecutor;
 
-	private static final Object notificationLock = new Object();
+	/**
+	 * Task releasing the buffers of the last run of the CV loop
+	 */
+	private static CompletableFuture<Void> cvLoopCleanup;
+
+	/**
+	 * Incremented each time the CV loop is stopped, so a start deferred until OpenCV is loaded and the cleanup
+	 * finishes (see {@link #startCVLoop(CVPrefs)}) is discarded if the loop was stopped in the meantime
+	 * Guarded by cvLoop
+	 */
+	private static long stop_seq;
+
+	/**
+	 * Indicates if a start has been requested but the loop is not running yet, see {@link #startCVLoop(CVPrefs)}
+	 * Guarded by cvLoop
+	 */
+	private static boolean is_starting;
+
+	/**
+	 * Governor limiting the CPU usage of the running CV loop
+	 */
+	private static CpuGovernor cpuGovernor;
+
+	/**
+	 * Max time to wait for the stages of the CV loop to finish when it is stopped
+	 */
+	private static final long STAGES_TERMINATION_TIMEOUT_S = 5;
+
+	/**
+	 * The distance shown in the notification is rounded to 1 / this cm, see {@link PostureStatus#TOO_CLOSE}
+	 */
+	private static final double DISTANCE_PRECISION = 10;
+
 	/**
 	 * Notification currently showing or shown to the user.
+	 * It is only accessed from the EDT, the CV loop publishes the state to be shown in {@link #notificationMailbox}
 	 */
 	private static PostureNotification postureNotification;
+
+	/**
+	 * Latest state of the notification. The CV loop never blocks on (nor floods) the EDT: states are coalesced and
+	 * the EDT is only scheduled when the state changes
+	 */
+	private static final CoalescingMailbox<NotificationState> notificationMailbox = new CoalescingMailbox<>(
+		SwingUtilities::invokeLater,
+		CVManager::applyNotificationState
+	);
 	private static final CVLoop cvLoop = new CVLoop(
 		CVManager::processUserPostureState,
 		CVManager::onUserIsAway,
@@ -91,6 +136,10 @@ public class CVManager
 	 * <p>
 	 * If there is any change in the preferences (e. g. in the GUI), just invoke this method again and
 	 * preferences will be updated in the cv service too
+	 * <p>
+	 * This method never waits: the loop is started in a background thread once OpenCV is loaded (see
+	 * {@link SpineWare#initCV(boolean)}) and the previous run is cleaned up (see {@link #stopCVLoop(boolean)}).
+	 * If the loop is stopped in the meantime, the start is cancelled
 	 *
 	 * @param cvPrefs the CV preferences that will be used by all the CV features
 	 */
@@ -102,50 +151,117 @@ public class CVManager
 		Loggers.getDebugLogger().log(Level.INFO, "Starting CV Loop...");
 
 		synchronized (cvLoop) {
-			// if the CV loop is already running, do nothing
-			if (cvLoopExecutor != null && !cvLoopExecutor.isShutdown())
+			// if the CV loop is already running or starting, do nothing
+			if (!isCVLoopStoppedUnsafe())
 				return;
 
-			if (!SpineWare.getCVUtils().open()) {
-				SpineWare.showErrorAlert(
-					SpineWare.messagesBundle.getString("cam_open_error"),
-					SpineWare.messagesBundle.getString("cv_error")
-				);
+			// the buffers of the previous run must be released before they're used again
+			// don't wait here, this may be invoked from the EDT and loading OpenCV may take a few seconds
+			is_starting = true;
+			long expected_stop_seq = stop_seq;
+			CompletableFuture<Void> previousRunCleanup = cvLoopCleanup == null
+				? CompletableFuture.completedFuture(null)
+				: cvLoopCleanup;
+			previousRunCleanup.thenCompose(ignored -> SpineWare.initCV(false))
+				.thenAcceptAsync(cvUtils -> startCVLoop(cvPrefs, cvUtils, expected_stop_seq))
+				.exceptionally(e -> {
+					Loggers.getErrorLogger().log(Level.SEVERE, "Could NOT start the CV loop", e);
+					synchronized (cvLoop) {
+						if (stop_seq == expected_stop_seq)
+							is_starting = false;
+					}
+					return null;
+				});
+		}
+	}
+
+	/**
+	 * Starts the CV loop. Executed in a background thread, see {@link #startCVLoop(CVPrefs)}
+	 *
+	 * @param cvPrefs           the CV preferences that will be used by all the CV features
+	 * @param cvUtils           the loaded object used to process frames
+	 * @param expected_stop_seq the value of {@link #stop_seq} when the start was requested. If it has changed,
+	 *                          the loop was stopped in the meantime and it is not started
+	 */
+	private static void startCVLoop(@NotNull CVPrefs cvPrefs, @NotNull CVUtils cvUtils, long expected_stop_seq)
+	{
+		// this may load a DNN model, don't hold the lock meanwhile (e.g. the EDT may be stopping the loop)
+		cvUtils.setCaptureProfile(cvPrefs.captureProfile);
+		cvUtils.setFaceDetectorType(cvPrefs.faceDetectorType);
+
+		synchronized (cvLoop) {
+			if (stop_seq != expected_stop_seq) // stopped in the meantime, the start was cancelled
 				return;
-			}
 
+			is_starting = false;
+			if (cvPrefs.is_duty_cycled) {
+				// the camera is opened on each burst, see CVLoop#captureBurst()
+				cvLoop.setBurstCameraService(SpineWare.getCameraService());
+			} else {
+				// the CV loop never shows the frames, so they can be captured in grayscale
+				CameraService.Subscription cameraSubscription = SpineWare.getCameraService().subscribe(
+					"CV loop",
+					true
+				);
+				if (cameraSubscription == null) {
+					SpineWare.showErrorAlert(
+						SpineWare.messagesBundle.getString("cam_open_error"),
+						SpineWare.messagesBundle.getString("cv_error")
+					);
+					return;
+				}
+
+				cvLoop.setCameraSubscription(cameraSubscription);
+			}
 			cvLoop.setCVPrefs(cvPrefs);
 
-			cvLoopExecutor = Executors.newSingleThreadScheduledExecutor(
+			cvLoopExecutor = Executors.newScheduledThreadPool(
+				3, // a thread for each stage of the pipeline
 				// min priority is used because the computation is expensive and can slow down the
 				// user's computer, and the CV features should not interfere with top priority threads
 				new DaemonThreadFactory("CV-Loop-Thread", Thread.MIN_PRIORITY)
 			);
-			cvLoopExecutor.scheduleAtFixedRate(
-				cvLoop,
-				0,
+			// frames are captured slowly while the posture is stable and at the refresh rate otherwise
+			// a late capture only costs a capture, the frame is discarded if the detection stage is busy
+			// and the missed ticks are skipped
+			// the refresh rate may be slowed down to keep the CPU usage under the budget
+			cpuGovernor = new CpuGovernor(cvLoop.getMetrics(), cvPrefs.cpu_budget);
+			CaptureScheduler captureScheduler = new CaptureScheduler(
+				cvLoopExecutor,
+				cvPrefs.is_duty_cycled ? cvLoop::captureBurst : cvLoop::captureFrame,
 				cvPrefs.refresh_rate,
-				TimeUnit.MILLISECONDS
+				Math.max(cvPrefs.refresh_rate, cvPrefs.max_refresh_rate),
+				cpuGovernor,
+				cvLoop.getMetrics()
 			);
+			cvLoop.setSampler(captureScheduler.getSampler());
+
+			captureScheduler.start();
+			if (!cvPrefs.is_duty_cycled) // bursts detect the faces themselves
+				cvLoopExecutor.execute(cvLoop::runDetectionStage);
+			cvLoopExecutor.execute(cvLoop::runEvaluationStage);
 			Loggers.getDebugLogger().log(
 				Level.INFO,
-				"CV loop started. Executing every " + cvPrefs.refresh_rate + " ms."
+				"CV loop started. Executing every " + cvPrefs.refresh_rate + " - "
+					+ captureScheduler.getSampler().getMaxIntervalMs() + " ms. CPU budget: "
+					+ cvPrefs.cpu_budget + "% of one core. Duty cycled: " + cvPrefs.is_duty_cycled
 			);
 
+			// the old notification is disposed before the new one is created, both run in the EDT in order
 			disposeNotification();
-			SwingUtilities.invokeLater(() -> {
-				synchronized (notificationLock) {
-					postureNotification = new PostureNotification(cvPrefs.notifLocation);
-				}
-			});
+			SwingUtilities.invokeLater(
+				() -> postureNotification = new PostureNotification(cvPrefs.notifLocation)
+			);
 		}
 	}
 
 	/**
 	 * Stops the CV Loop (if running)
 	 * If you need to "restart" the loop, just call {@link #startCVLoop()} after calling this method
-	 * This method will also close the camera, if you don't want that use {@link #stopCVLoop(boolean)}
-	 * This method will also close the notification (if any), if you don't want that use {@link #stopCVLoop(boolean, boolean)}
+	 * This method will also close the notification (if any), if you don't want that use {@link #stopCVLoop(boolean)}
+	 * <p>
+	 * The loop unsubscribes from the {@link CameraService}, so the camera is closed unless other component
+	 * (e.g. the mirror) is using it
 	 *
 	 * @see #stopCVLoop(boolean)
 	 */
@@ -154,38 +270,48 @@ public class CVManager
 		stopCVLoop(true);
 	}
 
-	/**
-	 * Stops the CV Loop (if running)
-	 * If you need to "restart" the loop, just call {@link #startCVLoop()} after calling this method
-	 * This method will also dispose the notification (if it is showing), if you don't want this use {@link #stopCVLoop(boolean, boolean)}
-	 *
-	 * @param close_cam if true the cam will be closed
-	 */
-	public static void stopCVLoop(boolean close_cam)
-	{
-		stopCVLoop(close_cam, true);
-	}
-
 	/**
 	 * Stops the CV loop (if running)
 	 * If you need to "restart" the loop, just call {@link #startCVLoop()} after calling this method
 	 *
-	 * @param close_cam            if true the cam will be closed
 	 * @param dispose_notification if true, the notification will be disposed
 	 */
-	public static void stopCVLoop(boolean close_cam, boolean dispose_notification)
+	public static void stopCVLoop(boolean dispose_notification)
 	{
 		Loggers.getDebugLogger().entering(CVManager.class.getName(), "stopCVLoop");
 
 		try {
 			synchronized (cvLoop) {
+				++stop_seq; // cancels any deferred start
+				is_starting = false;
 				if (cvLoopExecutor == null) // cv loop is not running
 					return;
 
-				cvLoopExecutor.shutdownNow();
+				CameraService.Subscription cameraSubscription = cvLoop.getCameraSubscription();
+				cvLoop.setCameraSubscription(null);
+				cvLoop.setBurstCameraService(null);
+				if (cameraSubscription != null)
+					cameraSubscription.close();
+
+				// interrupt the stages waiting for frames or results
+				ScheduledExecutorService executor = cvLoopExecutor;
+				executor.shutdownNow();
 				cvLoopExecutor = null;
-				if (close_cam)
-					SpineWare.getCVUtils().close();
+				CpuGovernor governor = cpuGovernor;
+				cpuGovernor = null;
+
+				// release the buffers once all the stages have finished, so they're not released while
+				// they're being used. Don't wait here, this may be invoked from a stage thread
+				cvLoopCleanup = CompletableFuture.runAsync(() -> {
+					try {
+						if (!executor.awaitTermination(STAGES_TERMINATION_TIMEOUT_S, TimeUnit.SECONDS))
+							Loggers.getErrorLogger().warning("CV loop stages didn't finish in time");
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					cvLoop.releaseBuffers();
+					governor.release();
+				});
 			}
 		} finally {
 			if (dispose_notification)
@@ -198,30 +324,11 @@ public class CVManager
 	/**
 	 * Removes any preconfigured onDispose hooks from the notification and disposes it
 	 * In other words, no dispose hooks will be executed if you call this method.
-	 * This method will block until the notification is disposed
+	 * The notification is disposed in the EDT, this method never blocks
 	 */
 	public static void disposeNotification()
 	{
-		synchronized (notificationLock) {
-			if (postureNotification == null)
-				return;
-
-			postureNotification.setOnDisposed(null); // clear any custom callback. This method does not care
-			// about it, we just want to dispose the notification
-
-			if (!SwingUtilities.isEventDispatchThread())
-				try {
-					SwingUtilities.invokeAndWait(postureNotification::dispose);
-				} catch (InterruptedException | InvocationTargetException e) {
-					Loggers.getErrorLogger().log(
-						Level.SEVERE,
-						"Error while disposing cv notification",
-						e
-					);
-				}
-			else
-				postureNotification.dispose();
-		}
+		notificationMailbox.post(NotificationState.HIDDEN);
 	}
 
 	/**
@@ -230,21 +337,8 @@ public class CVManager
 	private static void onUserIsAway()
 	{
 		// stop the loop but don't dispose the notification as it will be shown later (see below)
-		stopCVLoop(true, false);
-
-		synchronized (notificationLock) {
-			postureNotification.setPostureStatus(PostureStatus.USER_IS_AWAY);
-			postureNotification.setOnDisposed(() -> {
-				// user has come back
-				startCVLoop();
-				if (postureNotification != null)
-					postureNotification.setOnDisposed(null);
-			});
-
-			// don't synchronize inside swing thread
-			// 🤞 nobody access the notification exactly when it is being showed
-			SwingUtilities.invokeLater(postureNotification::showNotification);
-		}
+		stopCVLoop(false);
+		notificationMailbox.post(new NotificationState(PostureStatus.USER_IS_AWAY, -1));
 	}
 
 	/**
@@ -252,55 +346,95 @@ public class CVManager
 	 */
 	private static void onMultipleFacesDetected()
 	{
-		synchronized (notificationLock) {
-			postureNotification.setPostureStatus(PostureStatus.MULTIPLE_FACES);
-			// don't synchronize inside swing thread
-			// 🤞 nobody access the notification exactly when it is being showed
-			SwingUtilities.invokeLater(postureNotification::showNotification);
-		}
+		notificationMailbox.post(new NotificationState(PostureStatus.MULTIPLE_FACES, -1));
 	}
 
 	/**
-	 * Callback invoked when a face was detected and the posture state of the user has being obtained and stored
-	 * in the given arg
+	 * Callback invoked when the posture state of the user changes (e.g. the user has been too close for a
+	 * while), see {@link PostureAnalytics#update(long, int)}, or when the distance changes while the user is too
+	 * close
 	 *
 	 * @param status the computed user posture state
 	 */
 	private static void processUserPostureState(PostureAnalytics status)
 	{
-		double distance = status.getDistance();
-		synchronized (notificationLock) {
-			if (distance < CVUtils.SAFE_DISTANCE_CM && distance != -1) {
-				postureNotification.setDistanceToCam(distance);
-				postureNotification.setPostureStatus(PostureStatus.TOO_CLOSE);
-			} else if (status.isToTheRight() || status.isToTheLeft() || status.isToTheTop() || status.isToTheBottom())
-				postureNotification.setPostureStatus(PostureStatus.NOT_IN_CENTER);
-			else { // posture is ok
-				SwingUtilities.invokeLater(postureNotification::dispose);
-				return;
-			}
-			// don't synchronize inside swing thread
-			// 🤞 nobody access the notification exactly when it is being showed
-			SwingUtilities.invokeLater(postureNotification::showNotification);
+		if (status.isActive(PostureAnalytics.Condition.TOO_CLOSE))
+			// rounded to the precision shown in the notification, so changes the user can't see are
+			// discarded by the mailbox instead of scheduling the EDT
+			notificationMailbox.post(new NotificationState(
+				PostureStatus.TOO_CLOSE,
+				Math.round(status.getDistance() * DISTANCE_PRECISION) / DISTANCE_PRECISION
+			));
+		else if (status.isActive(PostureAnalytics.Condition.NOT_IN_CENTER))
+			notificationMailbox.post(new NotificationState(PostureStatus.NOT_IN_CENTER, -1));
+		else // posture is ok
+			notificationMailbox.post(NotificationState.HIDDEN);
+	}
+
+	/**
+	 * Shows the given state in the notification. Executed in the EDT
+	 */
+	private static void applyNotificationState(@NotNull NotificationState state)
+	{
+		assert SwingUtilities.isEventDispatchThread();
+
+		if (postureNotification == null) // the loop has not been started
+			return;
+
+		if (state.status == null) {
+			postureNotification.setOnDisposed(null); // clear any custom callback, we just want to dispose it
+			postureNotification.dispose();
+			return;
 		}
+
+		if (state.status == PostureStatus.USER_IS_AWAY)
+			postureNotification.setOnDisposed(() -> {
+				// user has come back
+				postureNotification.setOnDisposed(null);
+				startCVLoop();
+			});
+		else
+			postureNotification.setOnDisposed(null);
+
+		postureNotification.setDistanceToCam(state.distance);
+		postureNotification.setPostureStatus(state.status);
+		postureNotification.showNotification();
+	}
+
+	/**
+	 * @return the current interval between captures in milliseconds or -1 if the loop has never been started
+	 */
+	public static long getSamplingIntervalMs()
+	{
+		AdaptiveSampler sampler = cvLoop.getSampler();
+		return sampler == null ? -1 : sampler.getIntervalMs();
+	}
+
+	/**
+	 * @return the metrics of the CV loop. Metrics are kept even if the loop is stopped
+	 */
+	@NotNull
+	public static CVMetrics getMetrics()
+	{
+		return cvLoop.getMetrics();
 	}
 
 	/**
 	 * Same as {@link #isCVLoopStopped()} but without synchronization.
 	 * It is actually safe to call this method if you've already acquired the lock on {@link #cvLoop}
 	 *
-	 * @return true if the loop is not running, false otherwise
+	 * @return true if the loop is neither running nor starting, false otherwise
 	 */
 	private static boolean isCVLoopStoppedUnsafe()
 	{
-		return cvLoopExecutor == null || cvLoopExecutor.isShutdown();
+		return !is_starting && (cvLoopExecutor == null || cvLoopExecutor.isShutdown());
 	}
 
 	/**
 	 * Warning: If you have already acquired the lock and call this method a deadlock may be produced
 	 * because this method also acquires the lock
 	 *
-	 * @return true if the loop is NOT running, false otherwise
+	 * @return true if the loop is NOT running (nor starting, see {@link #startCVLoop(CVPrefs)}), false otherwise
 	 */
 	public static boolean isCVLoopStopped()
 	{
@@ -308,4 +442,44 @@ public class CVManager
 			return isCVLoopStoppedUnsafe();
 		}
 	}
+
+	/**
+	 * State of the {@link #postureNotification}, published by the CV loop
+	 */
+	private static class NotificationState
+	{
+		private static final NotificationState HIDDEN = new NotificationState(null, -1);
+
+		/**
+		 * The status shown in the notification or null if the notification is hidden
+		 */
+		@Nullable
+		private final PostureStatus status;
+
+		/**
+		 * Distance to the camera, shown if the status is {@link PostureStatus#TOO_CLOSE}
+		 */
+		private final double distance;
+
+		private NotificationState(@Nullable PostureStatus status, double distance)
+		{
+			this.status = status;
+			this.distance = distance;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			NotificationState that = (NotificationState) o;
+			return status == that.status && Double.compare(distance, that.distance) == 0;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(status, distance);
+		}
+	}
 }
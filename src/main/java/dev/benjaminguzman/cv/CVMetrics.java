@@ -0,0 +1,657 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how the CV loop is performing
+ * <p>
+ * Counters are written by the CV threads and can be read from any thread (e.g. the CLI thread)
+ */
+public class CVMetrics
+{
+	/**
+	 * Number of iterations in which faces were detected with the cascade classifier
+	 */
+	private final AtomicLong detectorIterations = new AtomicLong();
+
+	/**
+	 * Number of iterations in which the face was followed by the {@link FaceTracker}
+	 */
+	private final AtomicLong trackerIterations = new AtomicLong();
+
+	/**
+	 * Number of iterations in which the scene was static and the previous result was reused
+	 */
+	private final AtomicLong staticSceneIterations = new AtomicLong();
+
+	/**
+	 * Number of times the {@link FaceTracker} lost the face and the detector had to be executed
+	 */
+	private final AtomicLong trackerLosses = new AtomicLong();
+
+	/**
+	 * Confidence of the last match found by the {@link FaceTracker}
+	 */
+	private volatile double tracking_confidence;
+
+	/**
+	 * Number of frames captured with {@link CVUtils#captureLatestFrame(org.opencv.core.Mat, CVMetrics)}
+	 */
+	private final AtomicLong capturedFrames = new AtomicLong();
+
+	/**
+	 * Number of queued (stale) frames discarded without being decoded
+	 */
+	private final AtomicLong drainedFrames = new AtomicLong();
+
+	/**
+	 * Sum of the decode latency of all captured frames, in nanoseconds
+	 */
+	private final AtomicLong totalDecodeLatencyNs = new AtomicLong();
+
+	/**
+	 * Decode latency of the last captured frame, i.e. time elapsed since it was grabbed until it was decoded
+	 */
+	private volatile long last_decode_latency_ns;
+
+	/**
+	 * Number of captured frames whose age is known, see {@link #onFrameCaptured(long, long, int)}
+	 */
+	private final AtomicLong agedFrames = new AtomicLong();
+
+	/**
+	 * Sum of the age of the captured frames whose age is known, in nanoseconds
+	 */
+	private final AtomicLong totalFrameAgeNs = new AtomicLong();
+
+	/**
+	 * Age of the last captured frame, i.e. time elapsed since the camera delivered it until it was decoded,
+	 * -1 if it is not known
+	 */
+	private volatile long last_frame_age_ns = -1;
+
+	/**
+	 * Time spent by each stage of the {@link CVLoop} pipeline
+	 */
+	private final StageTimer captureStage = new StageTimer();
+	private final StageTimer detectionStage = new StageTimer();
+	private final StageTimer evaluationStage = new StageTimer();
+
+	/**
+	 * Number of captured frames discarded because the detection stage was busy and a newer frame arrived
+	 */
+	private final AtomicLong skippedFrames = new AtomicLong();
+
+	/**
+	 * Number of detection results discarded because the evaluation stage was busy and a newer result arrived
+	 */
+	private final AtomicLong skippedResults = new AtomicLong();
+
+	/**
+	 * Number of frames rejected by the quality check (see {@link CVUtils#assessQuality(FrameContext)}), faces are
+	 * not detected in them
+	 */
+	private final AtomicLong darkFrames = new AtomicLong();
+	private final AtomicLong overexposedFrames = new AtomicLong();
+	private final AtomicLong blurredFrames = new AtomicLong();
+
+	/**
+	 * Current interval between captures, see {@link AdaptiveSampler}
+	 */
+	private volatile long sampling_interval_ms;
+
+	/**
+	 * Number of captures that took longer than the interval between captures, number of ticks skipped because
+	 * of them and how long the captures overran the interval (see {@link CaptureScheduler})
+	 */
+	private final AtomicLong captureOverruns = new AtomicLong();
+	private final AtomicLong skippedTicks = new AtomicLong();
+	private final AtomicLong totalOverrunNs = new AtomicLong();
+	private volatile long max_overrun_ns;
+
+	/**
+	 * CPU time consumed by the threads of the CV features, see {@link CpuGovernor#getCpuTimeNs()}
+	 */
+	private final AtomicLong cpuTimeNs = new AtomicLong();
+
+	/**
+	 * Min interval between captures imposed by the {@link CpuGovernor} and the system load average per core
+	 * the last time it was updated
+	 */
+	private volatile long cpu_min_interval_ms;
+	private volatile double load_per_core = -1;
+
+	/**
+	 * Time spent opening and closing the camera for each burst in duty-cycled mode (see
+	 * {@link CVLoop#captureBurst()})
+	 */
+	private final StageTimer cameraOpenTimer = new StageTimer();
+	private final StageTimer cameraCloseTimer = new StageTimer();
+
+	/**
+	 * Number of frames discarded while the camera was adjusting its exposure and number of frames used in the
+	 * vote of the bursts
+	 */
+	private final AtomicLong warmUpFrames = new AtomicLong();
+	private final AtomicLong burstFrames = new AtomicLong();
+
+	/**
+	 * Frames rendered in the mirror of the configuration panel (and how long the rendering took), frames dropped
+	 * because they arrived faster than the refresh rate of the display and frames dropped because the render surface
+	 * was not available (see {@link dev.benjaminguzman.gui.cv.ProjectionScreen})
+	 */
+	private final StageTimer mirrorRenderTimer = new StageTimer();
+	private final AtomicLong throttledMirrorFrames = new AtomicLong();
+	private final AtomicLong unrenderedMirrorFrames = new AtomicLong();
+
+	/**
+	 * Time spent initializing the CV features at startup, see {@link #onCVInitialized(long, long, long)}
+	 */
+	private volatile long native_load_ns = -1;
+	private volatile long detector_load_ns = -1;
+	private volatile long warm_up_ns = -1;
+
+	public void onDetectorIteration()
+	{
+		detectorIterations.incrementAndGet();
+	}
+
+	public void onTrackerIteration(double tracking_confidence)
+	{
+		trackerIterations.incrementAndGet();
+		this.tracking_confidence = tracking_confidence;
+	}
+
+	public void onTrackerLost(double tracking_confidence)
+	{
+		trackerLosses.incrementAndGet();
+		this.tracking_confidence = tracking_confidence;
+	}
+
+	public void onStaticSceneIteration()
+	{
+		staticSceneIterations.incrementAndGet();
+	}
+
+	/**
+	 * @param decode_latency_ns time elapsed since the frame was grabbed until it was decoded
+	 * @param frame_age_ns      time elapsed since the camera delivered the frame until it was decoded, -1 if the
+	 *                          backend doesn't provide the timestamp of the frames
+	 * @param n_drained         number of queued frames discarded before grabbing this one
+	 */
+	public void onFrameCaptured(long decode_latency_ns, long frame_age_ns, int n_drained)
+	{
+		capturedFrames.incrementAndGet();
+		drainedFrames.addAndGet(n_drained);
+		totalDecodeLatencyNs.addAndGet(decode_latency_ns);
+		last_decode_latency_ns = decode_latency_ns;
+
+		last_frame_age_ns = frame_age_ns;
+		if (frame_age_ns != -1) {
+			agedFrames.incrementAndGet();
+			totalFrameAgeNs.addAndGet(frame_age_ns);
+		}
+	}
+
+	/**
+	 * @param quality the quality of the rejected frame
+	 */
+	public void onFrameRejected(@NotNull FrameQuality quality)
+	{
+		switch (quality) {
+			case TOO_DARK -> darkFrames.incrementAndGet();
+			case OVEREXPOSED -> overexposedFrames.incrementAndGet();
+			case BLURRED -> blurredFrames.incrementAndGet();
+		}
+	}
+
+	public void onSamplingIntervalChanged(long sampling_interval_ms)
+	{
+		this.sampling_interval_ms = sampling_interval_ms;
+	}
+
+	/**
+	 * @return the current interval between captures in milliseconds
+	 */
+	public long getSamplingIntervalMs()
+	{
+		return sampling_interval_ms;
+	}
+
+	/**
+	 * @return the current (effective) capture rate in frames per second or 0 if it is unknown
+	 */
+	public double getSamplingRate()
+	{
+		long interval_ms = sampling_interval_ms;
+		return interval_ms == 0 ? 0 : 1000.0 / interval_ms;
+	}
+
+	/**
+	 * Invoke this from a single thread (the captures are never executed concurrently)
+	 *
+	 * @param overrun_ns      time the capture took beyond the interval
+	 * @param n_skipped_ticks number of ticks skipped because of the overrun
+	 */
+	public void onCaptureOverrun(long overrun_ns, long n_skipped_ticks)
+	{
+		captureOverruns.incrementAndGet();
+		skippedTicks.addAndGet(n_skipped_ticks);
+		totalOverrunNs.addAndGet(overrun_ns);
+		if (overrun_ns > max_overrun_ns)
+			max_overrun_ns = overrun_ns;
+	}
+
+	public long getCaptureOverruns()
+	{
+		return captureOverruns.get();
+	}
+
+	public long getSkippedTicks()
+	{
+		return skippedTicks.get();
+	}
+
+	/**
+	 * @return the average time the captures overran the interval in milliseconds
+	 */
+	public double getAvgOverrunMs()
+	{
+		long n_overruns = captureOverruns.get();
+		return n_overruns == 0 ? 0 : totalOverrunNs.get() / 1e6 / n_overruns;
+	}
+
+	public double getMaxOverrunMs()
+	{
+		return max_overrun_ns / 1e6;
+	}
+
+	/**
+	 * @param cpu_time_ns CPU time consumed by an iteration of a CV thread
+	 */
+	public void onCpuTime(long cpu_time_ns)
+	{
+		cpuTimeNs.addAndGet(cpu_time_ns);
+	}
+
+	public void onCpuGovernorUpdated(long cpu_min_interval_ms, double load_per_core)
+	{
+		this.cpu_min_interval_ms = cpu_min_interval_ms;
+		this.load_per_core = load_per_core;
+	}
+
+	public long getCpuTimeNs()
+	{
+		return cpuTimeNs.get();
+	}
+
+	/**
+	 * @return the average CPU time consumed by each capture (including the detection and evaluation of the
+	 * frame) in milliseconds
+	 */
+	public double getAvgCpuMsPerCapture()
+	{
+		long n_captures = captureStage.getExecutions();
+		return n_captures == 0 ? 0 : cpuTimeNs.get() / 1e6 / n_captures;
+	}
+
+	/**
+	 * @return the min interval between captures imposed by the {@link CpuGovernor} in milliseconds
+	 */
+	public long getCpuMinIntervalMs()
+	{
+		return cpu_min_interval_ms;
+	}
+
+	/**
+	 * @return the system load average per core, negative if it is not available
+	 */
+	public double getLoadPerCore()
+	{
+		return load_per_core;
+	}
+
+	/**
+	 * @param n_warm_up_frames number of frames discarded because the camera was still adjusting its exposure
+	 * @param n_frames         number of frames used in the vote
+	 */
+	public void onBurstCaptured(int n_warm_up_frames, int n_frames)
+	{
+		warmUpFrames.addAndGet(n_warm_up_frames);
+		burstFrames.addAndGet(n_frames);
+	}
+
+	@NotNull
+	public StageTimer getCameraOpenTimer()
+	{
+		return cameraOpenTimer;
+	}
+
+	@NotNull
+	public StageTimer getCameraCloseTimer()
+	{
+		return cameraCloseTimer;
+	}
+
+	public long getWarmUpFrames()
+	{
+		return warmUpFrames.get();
+	}
+
+	/**
+	 * @return the average number of frames used in the vote of each burst
+	 */
+	public double getAvgBurstSize()
+	{
+		long n_bursts = cameraOpenTimer.getExecutions();
+		return n_bursts == 0 ? 0 : (double) burstFrames.get() / n_bursts;
+	}
+
+	@NotNull
+	public StageTimer getMirrorRenderTimer()
+	{
+		return mirrorRenderTimer;
+	}
+
+	/**
+	 * Invoke this when a mirror frame is dropped because it arrived before the display could show the previous one
+	 */
+	public void onMirrorFrameThrottled()
+	{
+		throttledMirrorFrames.incrementAndGet();
+	}
+
+	/**
+	 * Invoke this when a mirror frame is dropped because the render surface is not available (e.g. the mirror is
+	 * not displayable yet)
+	 */
+	public void onMirrorFrameUnrendered()
+	{
+		unrenderedMirrorFrames.incrementAndGet();
+	}
+
+	public long getThrottledMirrorFrames()
+	{
+		return throttledMirrorFrames.get();
+	}
+
+	public long getUnrenderedMirrorFrames()
+	{
+		return unrenderedMirrorFrames.get();
+	}
+
+	public void onFrameSkipped()
+	{
+		skippedFrames.incrementAndGet();
+	}
+
+	public void onResultSkipped()
+	{
+		skippedResults.incrementAndGet();
+	}
+
+	/**
+	 * @param native_load_ns   time spent loading the OpenCV native libraries
+	 * @param detector_load_ns time spent loading the models of the face detectors
+	 * @param warm_up_ns       time spent running the detector on a synthetic frame, -1 if the warm-up was
+	 *                         not executed
+	 */
+	public void onCVInitialized(long native_load_ns, long detector_load_ns, long warm_up_ns)
+	{
+		this.native_load_ns = native_load_ns;
+		this.detector_load_ns = detector_load_ns;
+		this.warm_up_ns = warm_up_ns;
+	}
+
+	/**
+	 * @return the time spent loading the OpenCV native libraries in milliseconds or -1 if they've not been
+	 * loaded
+	 */
+	public double getNativeLoadMs()
+	{
+		return native_load_ns == -1 ? -1 : native_load_ns / 1e6;
+	}
+
+	/**
+	 * @return the time spent loading the models of the face detectors in milliseconds or -1 if they've not
+	 * been loaded
+	 */
+	public double getDetectorLoadMs()
+	{
+		return detector_load_ns == -1 ? -1 : detector_load_ns / 1e6;
+	}
+
+	/**
+	 * @return the time spent warming up the face detector in milliseconds or -1 if the warm-up was not executed
+	 */
+	public double getWarmUpMs()
+	{
+		return warm_up_ns == -1 ? -1 : warm_up_ns / 1e6;
+	}
+
+	@NotNull
+	public StageTimer getCaptureStage()
+	{
+		return captureStage;
+	}
+
+	@NotNull
+	public StageTimer getDetectionStage()
+	{
+		return detectionStage;
+	}
+
+	@NotNull
+	public StageTimer getEvaluationStage()
+	{
+		return evaluationStage;
+	}
+
+	public long getSkippedFrames()
+	{
+		return skippedFrames.get();
+	}
+
+	public long getSkippedResults()
+	{
+		return skippedResults.get();
+	}
+
+	public long getDarkFrames()
+	{
+		return darkFrames.get();
+	}
+
+	public long getOverexposedFrames()
+	{
+		return overexposedFrames.get();
+	}
+
+	public long getBlurredFrames()
+	{
+		return blurredFrames.get();
+	}
+
+	public long getDetectorIterations()
+	{
+		return detectorIterations.get();
+	}
+
+	public long getTrackerIterations()
+	{
+		return trackerIterations.get();
+	}
+
+	public long getStaticSceneIterations()
+	{
+		return staticSceneIterations.get();
+	}
+
+	public long getTrackerLosses()
+	{
+		return trackerLosses.get();
+	}
+
+	public double getTrackingConfidence()
+	{
+		return tracking_confidence;
+	}
+
+	public long getCapturedFrames()
+	{
+		return capturedFrames.get();
+	}
+
+	public long getDrainedFrames()
+	{
+		return drainedFrames.get();
+	}
+
+	/**
+	 * @return the time it took to decode the last captured frame in milliseconds
+	 */
+	public double getLastDecodeLatencyMs()
+	{
+		return last_decode_latency_ns / 1e6;
+	}
+
+	/**
+	 * @return the average time it took to decode the captured frames in milliseconds
+	 */
+	public double getAvgDecodeLatencyMs()
+	{
+		long n_frames = capturedFrames.get();
+		return n_frames == 0 ? 0 : totalDecodeLatencyNs.get() / 1e6 / n_frames;
+	}
+
+	/**
+	 * @return the age of the last captured frame in milliseconds, -1 if it is not known (the backend doesn't
+	 * provide the timestamp of the frames)
+	 */
+	public double getLastFrameAgeMs()
+	{
+		long frame_age_ns = last_frame_age_ns;
+		return frame_age_ns == -1 ? -1 : frame_age_ns / 1e6;
+	}
+
+	/**
+	 * @return the average age of the captured frames whose age is known in milliseconds, -1 if the age of no
+	 * frame is known
+	 */
+	public double getAvgFrameAgeMs()
+	{
+		long n_frames = agedFrames.get();
+		return n_frames == 0 ? -1 : totalFrameAgeNs.get() / 1e6 / n_frames;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CVMetrics{" +
+			"native_load_ms=" + this.getNativeLoadMs() +
+			", detector_load_ms=" + this.getDetectorLoadMs() +
+			", warm_up_ms=" + this.getWarmUpMs() +
+			", detectorIterations=" + detectorIterations +
+			", trackerIterations=" + trackerIterations +
+			", staticSceneIterations=" + staticSceneIterations +
+			", trackerLosses=" + trackerLosses +
+			", tracking_confidence=" + tracking_confidence +
+			", capturedFrames=" + capturedFrames +
+			", drainedFrames=" + drainedFrames +
+			", last_decode_latency_ms=" + this.getLastDecodeLatencyMs() +
+			", avg_decode_latency_ms=" + this.getAvgDecodeLatencyMs() +
+			", last_frame_age_ms=" + this.getLastFrameAgeMs() +
+			", avg_frame_age_ms=" + this.getAvgFrameAgeMs() +
+			", sampling_interval_ms=" + sampling_interval_ms +
+			", sampling_rate=" + this.getSamplingRate() +
+			", captureOverruns=" + captureOverruns +
+			", skippedTicks=" + skippedTicks +
+			", avg_overrun_ms=" + this.getAvgOverrunMs() +
+			", max_overrun_ms=" + this.getMaxOverrunMs() +
+			", avg_cpu_ms_per_capture=" + this.getAvgCpuMsPerCapture() +
+			", cpu_min_interval_ms=" + cpu_min_interval_ms +
+			", load_per_core=" + load_per_core +
+			", captureStage=" + captureStage +
+			", detectionStage=" + detectionStage +
+			", evaluationStage=" + evaluationStage +
+			", skippedFrames=" + skippedFrames +
+			", skippedResults=" + skippedResults +
+			", darkFrames=" + darkFrames +
+			", overexposedFrames=" + overexposedFrames +
+			", blurredFrames=" + blurredFrames +
+			", cameraOpenTimer=" + cameraOpenTimer +
+			", cameraCloseTimer=" + cameraCloseTimer +
+			", warmUpFrames=" + warmUpFrames +
+			", avg_burst_size=" + this.getAvgBurstSize() +
+			", mirrorRenderTimer=" + mirrorRenderTimer +
+			", throttledMirrorFrames=" + throttledMirrorFrames +
+			", unrenderedMirrorFrames=" + unrenderedMirrorFrames +
+			'}';
+	}
+
+	/**
+	 * Records how long the executions of a stage take
+	 */
+	public static class StageTimer
+	{
+		private final AtomicLong executions = new AtomicLong();
+		private final AtomicLong totalNs = new AtomicLong();
+		private volatile long last_ns;
+
+		/**
+		 * @param start_ns value of {@link System#nanoTime()} when the execution started
+		 */
+		public void record(long start_ns)
+		{
+			long elapsed_ns = System.nanoTime() - start_ns;
+			executions.incrementAndGet();
+			totalNs.addAndGet(elapsed_ns);
+			last_ns = elapsed_ns;
+		}
+
+		public long getExecutions()
+		{
+			return executions.get();
+		}
+
+		public double getLastMs()
+		{
+			return last_ns / 1e6;
+		}
+
+		public double getAvgMs()
+		{
+			long n_executions = executions.get();
+			return n_executions == 0 ? 0 : totalNs.get() / 1e6 / n_executions;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "{executions=" + executions +
+				", last_ms=" + this.getLastMs() +
+				", avg_ms=" + this.getAvgMs() +
+				'}';
+		}
+	}
+}
@@ -36,6 +36,39 @@ public class CVPrefs
 	public final int refresh_rate;
 	public final NotificationLocation notifLocation;
 
+	/**
+	 * Scale of the frame in which faces are detected, a value in the range (0, 1]
+	 * See {@link FrameContext#setDetectionScale(double)}
+	 */
+	public final double detection_scale;
+
+	/**
+	 * Profile (resolution, pixel format...) requested to the camera
+	 */
+	public final CaptureProfile captureProfile;
+
+	/**
+	 * Algorithm used to detect faces
+	 */
+	public final FaceDetectorType faceDetectorType;
+
+	/**
+	 * Max time in milliseconds between captures while the posture is stable, see {@link AdaptiveSampler}
+	 * If it is not greater than {@link #refresh_rate}, frames are always captured each {@link #refresh_rate} ms
+	 */
+	public final int max_refresh_rate;
+
+	/**
+	 * Percentage of one core the CV features can use, see {@link CpuGovernor}
+	 */
+	public final double cpu_budget;
+
+	/**
+	 * If true, the camera is only opened to capture a burst of frames on each refresh (see
+	 * {@link CVLoop#captureBurst()}), otherwise it is kept open while the CV loop is running
+	 */
+	public final boolean is_duty_cycled;
+
 	/**
 	 * @param margin_x       the margin x, this value ideally goes from 0.1 to 0.4 if it is 0.1 then the user can
 	 *                       move 90% away from the cam center in the X direction without triggering an
@@ -46,6 +79,13 @@ public class CVPrefs
 	 * @param ideal_f_length the ideal focal length, this is NOT the real focal length, just the ideal focal
 	 *                       length used to approximate the distance to the camera
 	 * @param is_enabled     indicates if the CV feature is enabled or not
+	 * @param detection_scale scale of the frame in which faces are detected, e.g. 0.5 means faces are
+	 *                        detected in a frame with half the width and height of the captured frame
+	 * @param captureProfile  the profile requested to the camera
+	 * @param faceDetectorType the algorithm used to detect faces
+	 * @param max_refresh_rate max time in milliseconds between captures while the posture is stable
+	 * @param cpu_budget       percentage of one core the CV features can use
+	 * @param is_duty_cycled   if true, the camera is only opened to capture a burst of frames on each refresh
 	 */
 	public CVPrefs(
 		double margin_x,
@@ -53,7 +93,13 @@ public class CVPrefs
 		double ideal_f_length,
 		boolean is_enabled,
 		int refresh_rate,
-		NotificationLocation notifLocation
+		NotificationLocation notifLocation,
+		double detection_scale,
+		CaptureProfile captureProfile,
+		FaceDetectorType faceDetectorType,
+		int max_refresh_rate,
+		double cpu_budget,
+		boolean is_duty_cycled
 	)
 	{
 		this.margin_x = margin_x;
@@ -62,6 +108,12 @@ public class CVPrefs
 		this.is_enabled = is_enabled;
 		this.refresh_rate = refresh_rate;
 		this.notifLocation = notifLocation;
+		this.detection_scale = detection_scale;
+		this.captureProfile = captureProfile;
+		this.faceDetectorType = faceDetectorType;
+		this.max_refresh_rate = max_refresh_rate;
+		this.cpu_budget = cpu_budget;
+		this.is_duty_cycled = is_duty_cycled;
 	}
 
 	@Override
@@ -74,6 +126,12 @@ public class CVPrefs
 			", is_enabled=" + is_enabled +
 			", refresh_rate=" + refresh_rate +
 			", notifLocation=" + notifLocation +
+			", detection_scale=" + detection_scale +
+			", captureProfile=" + captureProfile +
+			", faceDetectorType=" + faceDetectorType +
+			", max_refresh_rate=" + max_refresh_rate +
+			", cpu_budget=" + cpu_budget +
+			", is_duty_cycled=" + is_duty_cycled +
 			'}';
 	}
 }
@@ -19,29 +19,25 @@
 package dev.benjaminguzman.cv;
 
 import dev.benjaminguzman.InstanceAlreadyExistsException;
-import dev.benjaminguzman.SpineWare;
 import dev.benjaminguzman.core.Loggers;
 import dev.benjaminguzman.gui.sections.BreaksPanel;
 import org.bytedeco.javacpp.Loader;
 import org.bytedeco.opencv.opencv_java;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfRect;
 import org.opencv.core.Rect;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.objdetect.CascadeClassifier;
-import org.opencv.objdetect.Objdetect;
 import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 public class CVUtils implements AutoCloseable
@@ -56,7 +52,20 @@ public class CVUtils implements AutoCloseable
 	private static final float MIN_FACE_DETECTED_RATIO_HEIGHT = 0.2f;
 	private static boolean instantiated;
 	private final VideoCapture camCapture;
-	private final CascadeClassifier facesClassifier;
+
+	/**
+	 * Algorithm used to detect faces, see {@link #setFaceDetectorType(FaceDetectorType)}
+	 */
+	@NotNull
+	private volatile FaceDetector faceDetector;
+	private final Object faceDetectorLock = new Object();
+
+	/**
+	 * Type of the last detector whose model could not be loaded, see {@link #setFaceDetectorType(FaceDetectorType)}
+	 * Guarded by {@link #faceDetectorLock}
+	 */
+	@Nullable
+	private FaceDetectorType failedDetectorType;
 
 	public static final double INVALID_IDEAL_FOCAL_LENGTH = -1;
 
@@ -71,8 +80,103 @@ public class CVUtils implements AutoCloseable
 	 */
 	public static final double SAFE_DISTANCE_CM = 50;
 
+	/**
+	 * Size of the thumbnails used to check if the scene has changed between frames
+	 */
+	private static final Size THUMBNAIL_SIZE = new Size(32, 24);
+
+	/**
+	 * Size of the thumbnails used to assess the quality of the frames, see {@link #assessQuality(FrameContext)}
+	 */
+	private static final Size QUALITY_THUMBNAIL_SIZE = new Size(128, 96);
+
+	/**
+	 * Frames with a mean luminance (0 - 255) out of this range are too dark or too bright to detect faces
+	 */
+	private static final double MIN_MEAN_LUMINANCE = 25, MAX_MEAN_LUMINANCE = 235;
+
+	/**
+	 * Frames whose laplacian has a variance lower than this are too blurred to detect faces
+	 * The threshold is low because scenes with few details (e.g. a plain wall behind the user) also have a low
+	 * variance, only frames that are clearly blurred should be rejected
+	 */
+	private static final double MIN_LAPLACIAN_VARIANCE = 15;
+
+	/**
+	 * Frame rate assumed if the camera doesn't report it
+	 */
+	private static final double DEFAULT_FPS = 30;
+
+	/**
+	 * Max number of queued frames discarded by {@link #captureLatestFrame(Mat, CVMetrics)}
+	 * Backends usually queue no more than 4 frames, the limit prevents draining forever if the camera delivers
+	 * frames faster than expected
+	 */
+	private static final int MAX_DRAINED_FRAMES = 8;
+
+	/**
+	 * A frame timestamp giving an age greater than this (or negative) is considered to be on a clock other than
+	 * {@link System#nanoTime()}, and the age is reported as unavailable
+	 */
+	private static final long MAX_FRAME_AGE_MS = 10_000;
+
+	/**
+	 * Number of detections performed on the synthetic frame by {@link #warmUp(double)}
+	 */
+	private static final int WARM_UP_ITERATIONS = 2;
+
+	/**
+	 * Size of the synthetic frame used by {@link #warmUp(double)} if no capture profile has been set
+	 */
+	private static final int WARM_UP_FRAME_WIDTH = 640, WARM_UP_FRAME_HEIGHT = 480;
+
+	/**
+	 * Profile requested to the camera when it is opened. If null, backend defaults are used
+	 */
+	@Nullable
+	private CaptureProfile captureProfile;
+
+	/**
+	 * Profile actually negotiated with the camera
+	 */
+	@Nullable
+	private volatile CaptureProfile negotiatedProfile;
+
+	/**
+	 * True if the backend is currently returning raw frames (i.e. {@link Videoio#CAP_PROP_CONVERT_RGB} is false)
+	 * Guarded by {@link #camCapture}
+	 */
+	private boolean is_raw_capture;
+
+	/**
+	 * True if the timestamp of the frames ({@link Videoio#CAP_PROP_POS_MSEC}) is taken by the driver from the
+	 * monotonic clock, i.e. the clock of {@link System#nanoTime()} on Linux. Only V4L2 does it, other backends
+	 * return 0 or the time since the stream started
+	 * Guarded by {@link #camCapture}
+	 */
+	private boolean has_monotonic_timestamps;
+
+	/**
+	 * False if the camera can't deliver raw frames whose luma can be extracted, in that case grayscale captures
+	 * fall back to BGR frames. It is reset each time the camera is opened
+	 * Guarded by {@link #camCapture}
+	 */
+	private boolean is_raw_capture_supported = true;
+
+	/**
+	 * Buffer where raw frames are retrieved before extracting their luma
+	 * Guarded by {@link #camCapture}
+	 */
+	@NotNull
+	private final Mat rawFrame = new Mat();
+
 	// thresholds
-	private Size minFaceDetectedSize;
+	/**
+	 * Min size of the detected faces and the size of the frames it was computed for. It is recomputed when the
+	 * size of the frames changes (e.g. a new capture profile was negotiated), see {@link #getMinFaceSize(Mat)}
+	 */
+	@Nullable
+	private volatile MinFaceSize minFaceDetectedSize;
 
 	public CVUtils()
 	{
@@ -85,50 +189,115 @@ public class CVUtils implements AutoCloseable
 
 		instantiated = true;
 
+		loadNativeLibraries();
+		camCapture = new VideoCapture();
+		faceDetector = FaceDetectorType.LBP_CASCADE.create();
+	}
+
+	/**
+	 * Loads the OpenCV native libraries. The first time SpineWare is executed, JavaCPP extracts them from the jar,
+	 * so this may take a few seconds
+	 * <p>
+	 * Calling this method more than once has no effect
+	 */
+	public static void loadNativeLibraries()
+	{
 		Loader.load(opencv_java.class);
 		// OpenCV.loadShared();
 		// System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
-		camCapture = new VideoCapture();
-		facesClassifier = new CascadeClassifier();
-
-		Path tmpCascadePath = null;
-		try (InputStream cascadeClassifier =
-			     SpineWare.getFileAsStream("/resources/cv/lbpcascade_frontalface_improved.xml")
-		) {
-			// copy the haar cascade from inside the jar to the tmp dir
-			tmpCascadePath = Files.createTempFile("SpineWare_haar_cascade", ".xml");
-			Files.copy(
-				cascadeClassifier,
-				tmpCascadePath,
-				StandardCopyOption.REPLACE_EXISTING
-			);
+	}
 
-			// load the haar cascade from the tmp dir (loading it directly from the jar fails)
-			if (!this.facesClassifier.load(tmpCascadePath.toAbsolutePath().toString()))
-				Loggers.getErrorLogger().log(
-					Level.WARNING,
-					"Error while loading haar cascade face classifier: " + tmpCascadePath
-				);
-		} catch (IOException e) {
-			Loggers.getErrorLogger().log(
-				Level.WARNING,
-				"Error while loading haar cascade face classifier: " + tmpCascadePath,
-				e
-			);
-		} finally { // delete the temporary file if it was created
-			try {
-				if (tmpCascadePath != null)
-					Files.deleteIfExists(tmpCascadePath);
-			} catch (IOException e) {
-				Loggers.getErrorLogger().log(
-					Level.WARNING,
-					"Error while deleting temporary file: " + tmpCascadePath,
-					e
-				);
-			}
+	/**
+	 * Runs the face detector and the scene comparison on a synthetic frame, so the first real frame is not slowed
+	 * down by lazy initializations (native allocations, JIT compilation, etc.)
+	 * <p>
+	 * The synthetic frame has the size of the capture profile (see {@link #setCaptureProfile(CaptureProfile)})
+	 * and it doesn't change the state of this object (e.g. the thresholds)
+	 *
+	 * @param detection_scale the scale of the frame in which faces are detected, see
+	 *                        {@link FrameContext#setDetectionScale(double)}
+	 */
+	public void warmUp(double detection_scale)
+	{
+		CaptureProfile profile = captureProfile;
+		boolean use_profile = profile != null && profile.isValid();
+
+		FrameContext frameCtx = new FrameContext();
+		frameCtx.setDetectionScale(detection_scale);
+		Mat frame = frameCtx.getFrame();
+		frame.create(
+			use_profile ? profile.height : WARM_UP_FRAME_HEIGHT,
+			use_profile ? profile.width : WARM_UP_FRAME_WIDTH,
+			CvType.CV_8UC3
+		);
+		Core.randu(frame, 0, 256); // noise, so the detector doesn't take shortcuts
+
+		Size minFaceSize = getMinFaceSize(frame);
+		FaceDetector detector = faceDetector;
+		for (int i = 0; i < WARM_UP_ITERATIONS; ++i) {
+			detector.detect(frame, frameCtx, minFaceSize, frameCtx.getDetectedFacesMat());
+			this.computeThumbnail(frameCtx);
+			this.getThumbnailDifference(frameCtx);
+			frameCtx.updateReferenceThumbnail();
+		}
+		frameCtx.release();
+	}
+
+	/**
+	 * Sets the algorithm used to detect faces. If the model of the given type can't be loaded,
+	 * {@link FaceDetectorType#LBP_CASCADE} is used
+	 * <p>
+	 * The failure is remembered, so later calls with the same type (e.g. each time the CV loop is started) don't
+	 * try to load the model again. Use {@link #setFaceDetectorType(FaceDetectorType, boolean)} to retry
+	 * <p>
+	 * The model is loaded in this method, so it may take a while
+	 *
+	 * @param type the type of the detector
+	 * @return true if the detector of the given type is used, false if {@link FaceDetectorType#LBP_CASCADE} is
+	 * used instead
+	 */
+	public boolean setFaceDetectorType(@NotNull FaceDetectorType type)
+	{
+		return this.setFaceDetectorType(type, false);
+	}
+
+	/**
+	 * Same as {@link #setFaceDetectorType(FaceDetectorType)}, but the model can be loaded again even if it
+	 * failed previously (e.g. the user has just copied the model files)
+	 *
+	 * @param type  the type of the detector
+	 * @param retry if true, the model is loaded even if it could not be loaded the last time
+	 * @return true if the detector of the given type is used, false if {@link FaceDetectorType#LBP_CASCADE} is
+	 * used instead
+	 */
+	public boolean setFaceDetectorType(@NotNull FaceDetectorType type, boolean retry)
+	{
+		synchronized (faceDetectorLock) {
+			if (faceDetector.getType() == type)
+				return true;
+			if (type == failedDetectorType && !retry)
+				return false;
+
+			FaceDetector previousDetector = faceDetector;
+			faceDetector = type.createOrDefault();
+			previousDetector.close();
+			Loggers.getDebugLogger().log(Level.INFO, "Using face detector: " + faceDetector);
+
+			boolean is_loaded = faceDetector.getType() == type;
+			failedDetectorType = is_loaded ? null : type;
+			return is_loaded;
 		}
 	}
 
+	/**
+	 * @return the algorithm used to detect faces
+	 */
+	@NotNull
+	public FaceDetector getFaceDetector()
+	{
+		return faceDetector;
+	}
+
 	/**
 	 * Captures a single frame from the video source
 	 * The code inside this method is synchronized to avoid problems, for example, calling {@link #close()} from
@@ -151,40 +320,454 @@ public class CVUtils implements AutoCloseable
 		return frame;
 	}
 
+	/**
+	 * Same as {@link #captureFrame()} but the frame is written into the given buffer, this way no new
+	 * {@link Mat} is allocated on each call
+	 *
+	 * @param frame the buffer where the frame will be written. Its native memory is reused if the size and type
+	 *              of the captured frame have not changed
+	 * @return true if a non-empty frame was captured, false if the video source is not opened or there was an
+	 * error with it
+	 */
+	public boolean captureFrame(@NotNull Mat frame)
+	{
+		synchronized (camCapture) {
+			if (!camCapture.isOpened())
+				return false;
+
+			camCapture.read(frame);
+		}
+
+		return !frame.empty();
+	}
+
+	/**
+	 * Same as {@link #captureFrame(Mat)} but frames queued by the backend are discarded, so the returned frame is
+	 * the freshest one
+	 * <p>
+	 * Consumers sampling the camera much slower than its frame rate (e.g. {@link CVLoop}) would otherwise read a
+	 * frame that was buffered long ago. Queued frames are discarded with {@link VideoCapture#grab()}, which doesn't
+	 * decode them, and only the last grabbed frame is decoded with {@link VideoCapture#retrieve(Mat)}
+	 * <p>
+	 * A grab returning almost immediately means the frame was already queued. Grabbing stops once a grab blocks
+	 * (waits for the camera to deliver a new frame) or after {@link #MAX_DRAINED_FRAMES} grabs
+	 *
+	 * @param frame   the buffer where the frame will be written
+	 * @param metrics if not null, the age of the frame, the time it took to decode it and the number of
+	 *                discarded frames are recorded here
+	 * @return true if a non-empty frame was captured, false if the video source is not opened or there was an
+	 * error with it
+	 */
+	public boolean captureLatestFrame(@NotNull Mat frame, @Nullable CVMetrics metrics)
+	{
+		return this.captureLatestFrame(frame, metrics, false);
+	}
+
+	/**
+	 * Same as {@link #captureLatestFrame(Mat, CVMetrics)}, but the frame can be captured in grayscale
+	 * <p>
+	 * Many cameras deliver YUV frames (e.g. YUYV), whose luma (Y) plane is already the grayscale frame. In
+	 * grayscale mode, the backend is asked for raw frames ({@link Videoio#CAP_PROP_CONVERT_RGB} = false) and the
+	 * luma is extracted from them, so the conversion to BGR (done by the backend) and the conversion back to
+	 * grayscale (done by the detector) are skipped
+	 * <p>
+	 * If the backend or the pixel format doesn't support it, a BGR frame is captured instead. Therefore, callers
+	 * must check the number of channels of the captured frame
+	 *
+	 * @param frame     the buffer where the frame will be written
+	 * @param metrics   if not null, the age of the frame, the time it took to decode it and the number of
+	 *                  discarded frames are recorded here
+	 * @param grayscale if true, a grayscale (single channel) frame is captured, if the camera supports it
+	 * @return true if a non-empty frame was captured, false if the video source is not opened or there was an
+	 * error with it
+	 */
+	public boolean captureLatestFrame(@NotNull Mat frame, @Nullable CVMetrics metrics, boolean grayscale)
+	{
+		int n_drained = 0;
+		long grabbed_at;
+		double timestamp_ms = 0;
+		synchronized (camCapture) {
+			if (!camCapture.isOpened())
+				return false;
+
+			CaptureProfile profile = negotiatedProfile;
+			double fps = profile != null && profile.fps > 0 ? profile.fps : DEFAULT_FPS;
+			long queued_grab_threshold_ns = (long) (1e9 / fps / 2);
+
+			long grab_start = System.nanoTime();
+			if (!camCapture.grab())
+				return false;
+			grabbed_at = System.nanoTime();
+
+			while (grabbed_at - grab_start < queued_grab_threshold_ns && n_drained < MAX_DRAINED_FRAMES) {
+				grab_start = grabbed_at;
+				if (!camCapture.grab())
+					return false;
+				grabbed_at = System.nanoTime();
+				++n_drained;
+			}
+
+			if (has_monotonic_timestamps)
+				timestamp_ms = camCapture.get(Videoio.CAP_PROP_POS_MSEC);
+
+			if (!this.retrieve(frame, grayscale && is_raw_capture_supported))
+				return false;
+		}
+
+		if (metrics != null) {
+			long now = System.nanoTime();
+			metrics.onFrameCaptured(now - grabbed_at, getFrameAgeNs(timestamp_ms, now), n_drained);
+		}
+
+		return !frame.empty();
+	}
+
+	/**
+	 * Computes the time elapsed since the camera delivered a frame (e.g. the time it spent queued in the
+	 * backend), from the timestamp of the frame
+	 *
+	 * @param timestamp_ms the timestamp of the frame, as returned by {@link Videoio#CAP_PROP_POS_MSEC}. 0 if the
+	 *                     backend doesn't timestamp the frames with the monotonic clock
+	 * @param now_ns       the current value of {@link System#nanoTime()}
+	 * @return the age of the frame in nanoseconds or -1 if it is not available
+	 */
+	private static long getFrameAgeNs(double timestamp_ms, long now_ns)
+	{
+		if (timestamp_ms <= 0)
+			return -1;
+
+		long age_ns = now_ns - (long) (timestamp_ms * 1e6);
+		if (age_ns < 0 || age_ns > TimeUnit.MILLISECONDS.toNanos(MAX_FRAME_AGE_MS))
+			return -1;
+
+		return age_ns;
+	}
+
+	/**
+	 * Retrieves the last grabbed frame. Must be called while holding the lock on {@link #camCapture}
+	 *
+	 * @param frame the buffer where the frame will be written
+	 * @param raw   if true, the luma of the raw frame is written in the buffer. If it can't be extracted,
+	 *              raw capture is disabled until the camera is reopened and a BGR frame is written instead
+	 * @return true if the frame was retrieved
+	 */
+	private boolean retrieve(@NotNull Mat frame, boolean raw)
+	{
+		if (raw != is_raw_capture) {
+			// the backend returns false if the property is not supported
+			if (!camCapture.set(Videoio.CAP_PROP_CONVERT_RGB, raw ? 0 : 1) && raw) {
+				this.disableRawCapture("the backend doesn't support CAP_PROP_CONVERT_RGB");
+				return camCapture.retrieve(frame);
+			}
+			is_raw_capture = raw;
+		}
+
+		if (!raw)
+			return camCapture.retrieve(frame);
+
+		if (!camCapture.retrieve(rawFrame))
+			return false;
+
+		if (this.extractLuma(rawFrame, frame))
+			return true;
+
+		if (rawFrame.channels() == 3) { // the backend ignored the property and returned a BGR frame
+			this.disableRawCapture("the backend ignores CAP_PROP_CONVERT_RGB");
+			rawFrame.copyTo(frame);
+			return true;
+		}
+
+		this.disableRawCapture("unsupported raw frame: " + rawFrame);
+		camCapture.set(Videoio.CAP_PROP_CONVERT_RGB, 1);
+		is_raw_capture = false;
+		return camCapture.retrieve(frame); // the same grabbed frame is decoded again, this time as BGR
+	}
+
+	/**
+	 * Writes the luma (Y) plane of the given raw frame into the destination
+	 *
+	 * @param rawFrame the frame as delivered by the camera
+	 * @param luma     the buffer where the luma will be written
+	 * @return false if the format of the raw frame is not supported
+	 */
+	private boolean extractLuma(@NotNull Mat rawFrame, @NotNull Mat luma)
+	{
+		CaptureProfile profile = negotiatedProfile;
+		if (profile == null)
+			return false;
+
+		int width = profile.width, height = profile.height;
+		if (rawFrame.type() == CvType.CV_8UC2 && rawFrame.cols() == width && rawFrame.rows() == height) {
+			// packed 4:2:2 formats, each pixel is a (Y, U) or (Y, V) pair or, in UYVY, (U, Y) or (V, Y)
+			if (CaptureProfile.FOURCC_YUYV.equals(profile.fourcc) || "YUY2".equals(profile.fourcc))
+				Core.extractChannel(rawFrame, luma, 0);
+			else if ("UYVY".equals(profile.fourcc))
+				Core.extractChannel(rawFrame, luma, 1);
+			else
+				return false;
+			return true;
+		}
+
+		if (rawFrame.type() == CvType.CV_8UC1 && rawFrame.cols() == width) {
+			if (rawFrame.rows() == height) { // the camera delivers grayscale frames (GREY)
+				rawFrame.copyTo(luma);
+				return true;
+			}
+			if (rawFrame.rows() == height * 3 / 2) { // planar 4:2:0 formats (e.g. NV12), Y plane comes first
+				rawFrame.rowRange(0, height).copyTo(luma);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Disables grayscale capture until the camera is reopened. Must be called while holding the lock on
+	 * {@link #camCapture}
+	 */
+	private void disableRawCapture(@NotNull String reason)
+	{
+		is_raw_capture_supported = false;
+		Loggers.getDebugLogger().log(Level.INFO, "Grayscale capture is not available, " + reason);
+	}
+
+	/**
+	 * Converts the given frame to grayscale. Frames already in grayscale (see
+	 * {@link #captureLatestFrame(Mat, CVMetrics, boolean)}) are just copied
+	 *
+	 * @param frame     the BGR or grayscale frame
+	 * @param grayFrame the buffer where the grayscale frame will be written
+	 */
+	static void toGray(@NotNull Mat frame, @NotNull Mat grayFrame)
+	{
+		if (frame.channels() == 1)
+			frame.copyTo(grayFrame);
+		else
+			Imgproc.cvtColor(frame, grayFrame, Imgproc.COLOR_BGR2GRAY);
+	}
+
+	/**
+	 * Computes the mean luminance of the given frame without converting it to grayscale
+	 *
+	 * @param frame the BGR or grayscale frame
+	 * @return the mean luminance, in gray levels (0 - 255)
+	 */
+	static double getMeanLuminance(@NotNull Mat frame)
+	{
+		double[] mean = Core.mean(frame).val;
+		if (frame.channels() == 1)
+			return mean[0];
+
+		// same weights used by COLOR_BGR2GRAY
+		return 0.114 * mean[0] + 0.587 * mean[1] + 0.299 * mean[2];
+	}
+
 	/**
 	 * Tries to detect faces appearing in the given frame
+	 * <p>
+	 * Faces are detected in the frame downscaled by the detection scale of the context (see
+	 * {@link FrameContext#setDetectionScale(double)}). Use the scale used by the CV loop, so the sizes of the faces
+	 * (e.g. for the calibration) are consistent with the sizes measured by it
 	 *
-	 * @param frame the frame containing a photo with the face (if it does not contain any face the
-	 *              returned list will be empty)
+	 * @param frame    the frame containing a photo with the face (if it does not contain any face the
+	 *                 returned list will be empty)
+	 * @param frameCtx the context whose buffers are used, reuse it for consecutive frames to avoid allocating
+	 *                 native memory on each call. Only its buffers for the detection are used
 	 * @return a list of {@link Rect} describing the rectangles of the detected faces
 	 */
 	@NotNull
-	public List<Rect> detectFaces(@NotNull Mat frame)
+	public List<Rect> detectFaces(@NotNull Mat frame, @NotNull FrameContext frameCtx)
 	{
 		if (frame.empty())
 			return Collections.emptyList();
 
-		if (this.minFaceDetectedSize == null)
-			this.computeThresholds(frame);
-
-		// preprocess the frame
-		Mat grayFrame = new Mat(frame.rows(), frame.cols(), frame.type());
-		Imgproc.cvtColor(frame, grayFrame, Imgproc.COLOR_BGR2GRAY);
-		Imgproc.equalizeHist(grayFrame, grayFrame);
-
-		// use the cascade classifier to detect faces
-		MatOfRect detectedFaces = new MatOfRect();
-		facesClassifier.detectMultiScale(
-			grayFrame,
-			detectedFaces,
-			1.2,
-			5,
-			Objdetect.CASCADE_SCALE_IMAGE,
-			minFaceDetectedSize
+		Size minFaceSize = this.computeThresholds(frame);
+		int n_faces = this.detectFaces(frame, frameCtx, minFaceSize, 0, 0);
+
+		List<Rect> detectedFaces = new ArrayList<>(n_faces);
+		for (int i = 0; i < n_faces; ++i)
+			detectedFaces.add(new Rect(
+				frameCtx.getFaceX(i),
+				frameCtx.getFaceY(i),
+				frameCtx.getFaceWidth(i),
+				frameCtx.getFaceHeight(i)
+			));
+
+		return detectedFaces;
+	}
+
+	/**
+	 * Same as {@link #detectFaces(Mat, FrameContext)} but the frame of the context is used and the faces are not
+	 * copied to a list
+	 * <p>
+	 * The detected faces can be read with {@link FrameContext#getFaceX(int)}, {@link FrameContext#getFaceY(int)}
+	 * and so on
+	 *
+	 * @param frameCtx the context containing the frame (see {@link FrameContext#getFrame()})
+	 * @return the number of detected faces
+	 */
+	public int detectFaces(@NotNull FrameContext frameCtx)
+	{
+		if (frameCtx.getFrame().empty()) {
+			frameCtx.clearFaces();
+			return 0;
+		}
+
+		Size minFaceSize = this.computeThresholds(frameCtx.getFrame());
+		return this.detectFaces(frameCtx.getFrame(), frameCtx, minFaceSize, 0, 0);
+	}
+
+	/**
+	 * Same as {@link #detectFaces(FrameContext)} but faces are only searched inside the given region of the frame
+	 * <p>
+	 * The coordinates of the detected faces are relative to the whole frame, not to the region.
+	 * The min size of the faces is the same as if the whole frame were used, this way results are consistent
+	 * with the results of {@link #detectFaces(FrameContext)}
+	 *
+	 * @param frameCtx   the context containing the frame (see {@link FrameContext#getFrame()})
+	 * @param roi_x      x coordinate of the top left corner of the region. The region is clipped to the frame
+	 * @param roi_y      y coordinate of the top left corner of the region
+	 * @param roi_width  width of the region
+	 * @param roi_height height of the region
+	 * @return the number of detected faces
+	 */
+	public int detectFaces(@NotNull FrameContext frameCtx, int roi_x, int roi_y, int roi_width, int roi_height)
+	{
+		Mat frame = frameCtx.getFrame();
+		if (frame.empty()) {
+			frameCtx.clearFaces();
+			return 0;
+		}
+
+		Size minFaceSize = this.computeThresholds(frame);
+
+		// clip the region to the frame
+		int x0 = Math.max(roi_x, 0), y0 = Math.max(roi_y, 0);
+		int x1 = Math.min(roi_x + roi_width, frame.cols()), y1 = Math.min(roi_y + roi_height, frame.rows());
+		if (x1 - x0 < minFaceSize.width || y1 - y0 < minFaceSize.height) {
+			frameCtx.clearFaces(); // no face fits inside the region
+			return 0;
+		}
+
+		Mat frameROI = frameCtx.getFrameROI();
+		setROI(frame, frameROI, x0, y0, x1, y1);
+
+		return this.detectFaces(frameROI, frameCtx, minFaceSize, x0, y0);
+	}
+
+	/**
+	 * Makes the given header point to a region of the source Mat. No data is copied
+	 * <p>
+	 * Unlike {@link Mat#submat(int, int, int, int)}, this doesn't allocate a new Mat header, the header is made to
+	 * point to the whole source and then shrunk to the region
+	 *
+	 * @param src       the source Mat
+	 * @param roiHeader the header that will point to the region
+	 * @param x0        the first column of the region (inclusive), it must be inside the source
+	 * @param y0        the first row of the region (inclusive), it must be inside the source
+	 * @param x1        the last column of the region (exclusive), it must be inside the source
+	 * @param y1        the last row of the region (exclusive), it must be inside the source
+	 */
+	static void setROI(@NotNull Mat src, @NotNull Mat roiHeader, int x0, int y0, int x1, int y1)
+	{
+		src.assignTo(roiHeader);
+		roiHeader.adjustROI(-y0, -(src.rows() - y1), -x0, -(src.cols() - x1));
+	}
+
+	/**
+	 * Detects the faces with the {@link #faceDetector}
+	 *
+	 * @param frame       the frame (or a region of it), it must not be empty
+	 * @param frameCtx    the context whose buffers will be used. The detected faces are stored in it, with
+	 *                    coordinates relative to the full resolution frame
+	 * @param minFaceSize min size of the faces, see {@link #computeThresholds(Mat)}
+	 * @param offset_x    x coordinate of frame inside the whole frame (if frame is a region of it)
+	 * @param offset_y    y coordinate of frame inside the whole frame
+	 * @return the number of detected faces
+	 */
+	private int detectFaces(
+		@NotNull Mat frame,
+		@NotNull FrameContext frameCtx,
+		@NotNull Size minFaceSize,
+		int offset_x,
+		int offset_y
+	)
+	{
+		faceDetector.detect(frame, frameCtx, minFaceSize, frameCtx.getDetectedFacesMat());
+		return frameCtx.copyDetectedFaces(offset_x, offset_y, frameCtx.getDetectionScale());
+	}
+
+	/**
+	 * Computes a tiny grayscale version of the frame in the given context
+	 * The thumbnail is used by {@link #getThumbnailDifference(FrameContext)}
+	 *
+	 * @param frameCtx the context containing the frame, it must not be empty
+	 */
+	public void computeThumbnail(@NotNull FrameContext frameCtx)
+	{
+		// resize first so the color conversion is performed on a few pixels only
+		Imgproc.resize(frameCtx.getFrame(), frameCtx.getThumbnailColor(), THUMBNAIL_SIZE, 0, 0, Imgproc.INTER_AREA);
+		toGray(frameCtx.getThumbnailColor(), frameCtx.getThumbnail());
+	}
+
+	/**
+	 * Checks if faces can be detected in the frame in the given context, so the detector is not executed on
+	 * frames where it would certainly fail (e.g. black frames captured right after the camera is opened)
+	 * <p>
+	 * The check is performed on a thumbnail: the mean luminance detects dark and overexposed frames and the
+	 * variance of the laplacian (i.e. how many edges there are) detects blurred frames
+	 *
+	 * @param frameCtx the context containing the frame, it must not be empty
+	 * @return the quality of the frame
+	 */
+	@NotNull
+	public FrameQuality assessQuality(@NotNull FrameContext frameCtx)
+	{
+		Imgproc.resize(
+			frameCtx.getFrame(),
+			frameCtx.getQualityThumbnailColor(),
+			QUALITY_THUMBNAIL_SIZE,
+			0,
+			0,
+			Imgproc.INTER_AREA
 		);
-		grayFrame.release();
+		Mat qualityThumbnail = frameCtx.getQualityThumbnail();
+		toGray(frameCtx.getQualityThumbnailColor(), qualityThumbnail);
+
+		double[] statistic = frameCtx.getStatistic();
+		Core.meanStdDev(qualityThumbnail, frameCtx.getMean(), frameCtx.getStdDev());
+		frameCtx.getMean().get(0, 0, statistic);
+		if (statistic[0] < MIN_MEAN_LUMINANCE)
+			return FrameQuality.TOO_DARK;
+		if (statistic[0] > MAX_MEAN_LUMINANCE)
+			return FrameQuality.OVEREXPOSED;
+
+		// 16 bits are enough for the laplacian of an 8 bits image with a 3x3 kernel
+		Imgproc.Laplacian(qualityThumbnail, frameCtx.getLaplacian(), CvType.CV_16S);
+		Core.meanStdDev(frameCtx.getLaplacian(), frameCtx.getMean(), frameCtx.getStdDev());
+		frameCtx.getStdDev().get(0, 0, statistic);
+		if (statistic[0] * statistic[0] < MIN_LAPLACIAN_VARIANCE)
+			return FrameQuality.BLURRED;
+
+		return FrameQuality.OK;
+	}
 
-		return detectedFaces.toList();
+	/**
+	 * Compares the thumbnail with the reference thumbnail (see {@link FrameContext#updateReferenceThumbnail()})
+	 *
+	 * @param frameCtx the context containing the thumbnails
+	 * @return the mean absolute difference between the pixels of both thumbnails (0 - 255) or
+	 * {@link Double#MAX_VALUE} if there is no reference thumbnail
+	 */
+	public double getThumbnailDifference(@NotNull FrameContext frameCtx)
+	{
+		Mat thumbnail = frameCtx.getThumbnail(), referenceThumbnail = frameCtx.getReferenceThumbnail();
+		if (referenceThumbnail.empty() || thumbnail.empty())
+			return Double.MAX_VALUE;
+
+		// L1 norm is the sum of absolute differences, and unlike Core.mean it doesn't allocate a Scalar
+		return Core.norm(thumbnail, referenceThumbnail, Core.NORM_L1) / thumbnail.total();
 	}
 
 	/**
@@ -197,14 +780,20 @@ public class CVUtils implements AutoCloseable
 	 * @param distance       the distance at which the frame was captured
 	 * @param face_height_cm the face real height in cm
 	 * @param frame          the captured frame
+	 * @param frameCtx       the context used to detect the face, see {@link #detectFaces(Mat, FrameContext)}
 	 * @return {@link #INVALID_IDEAL_FOCAL_LENGTH} if no face was detected
 	 */
-	public double getIdealFocalLength(double distance, double face_height_cm, @Nullable Mat frame)
+	public double getIdealFocalLength(
+		double distance,
+		double face_height_cm,
+		@Nullable Mat frame,
+		@NotNull FrameContext frameCtx
+	)
 	{
 		if (frame == null)
 			return INVALID_IDEAL_FOCAL_LENGTH;
 
-		List<Rect> detectedFaces = this.detectFaces(frame);
+		List<Rect> detectedFaces = this.detectFaces(frame, frameCtx);
 		if (detectedFaces.isEmpty())
 			return INVALID_IDEAL_FOCAL_LENGTH;
 
@@ -242,12 +831,32 @@ public class CVUtils implements AutoCloseable
 	/**
 	 * This will compute the min required size for a face to be detected
 	 * The size computed will depend on the configuration of the class, check the method to see more
+	 * <p>
+	 * The size is only recomputed if the size of the frame is not the size of the previous frames
 	 *
+	 * @param frame the frame used as reference to compute the size (the whole frame, not a region of it)
+	 * @return the min size of the faces detected in the frame
+	 */
+	@NotNull
+	private Size computeThresholds(@NotNull Mat frame)
+	{
+		MinFaceSize minFaceSize = this.minFaceDetectedSize;
+		if (minFaceSize == null || minFaceSize.frame_rows != frame.rows() || minFaceSize.frame_cols != frame.cols()) {
+			minFaceSize = new MinFaceSize(frame.rows(), frame.cols(), getMinFaceSize(frame));
+			this.minFaceDetectedSize = minFaceSize;
+		}
+
+		return minFaceSize.size;
+	}
+
+	/**
 	 * @param frame the frame used as reference to compute the size
+	 * @return the min size of the faces detected in frames with the same size as the given frame
 	 */
-	private void computeThresholds(@NotNull Mat frame)
+	@NotNull
+	static Size getMinFaceSize(@NotNull Mat frame)
 	{
-		this.minFaceDetectedSize = new Size(
+		return new Size(
 			MIN_FACE_DETECTED_RATIO_WIDTH * frame.rows(),
 			MIN_FACE_DETECTED_RATIO_HEIGHT * frame.cols()
 		);
@@ -264,10 +873,85 @@ public class CVUtils implements AutoCloseable
 	public boolean open(int device_idx)
 	{
 		synchronized (camCapture) {
-			return camCapture.isOpened() || camCapture.open(device_idx);
+			if (camCapture.isOpened())
+				return true;
+
+			if (!camCapture.open(device_idx))
+				return false;
+
+			is_raw_capture = false;
+			is_raw_capture_supported = true; // it may be a different camera
+			has_monotonic_timestamps = "V4L2".equals(camCapture.getBackendName());
+
+			if (captureProfile != null)
+				this.negotiateCaptureProfile(captureProfile);
+			return true;
+		}
+	}
+
+	/**
+	 * Sets the profile (resolution, pixel format...) requested to the camera when it is opened
+	 * If the camera is already opened, the profile is requested immediately
+	 *
+	 * @param captureProfile the profile or null to use the backend defaults (only applies the next time the camera
+	 *                       is opened)
+	 */
+	public void setCaptureProfile(@Nullable CaptureProfile captureProfile)
+	{
+		synchronized (camCapture) {
+			this.captureProfile = captureProfile;
+			if (captureProfile != null && camCapture.isOpened())
+				this.negotiateCaptureProfile(captureProfile);
 		}
 	}
 
+	/**
+	 * Requests the given profile to the camera and reads the values the camera actually accepted
+	 * Cameras (or backends) ignore unsupported values, e.g. they choose the closest supported resolution
+	 * <p>
+	 * Must be called while holding the lock on {@link #camCapture} and the camera opened
+	 *
+	 * @param requestedProfile the requested profile
+	 */
+	private void negotiateCaptureProfile(@NotNull CaptureProfile requestedProfile)
+	{
+		// the pixel format must be set before the resolution, some backends (e.g. V4L) reject resolutions not
+		// supported by the current pixel format
+		if (requestedProfile.fourcc != null)
+			camCapture.set(Videoio.CAP_PROP_FOURCC, requestedProfile.getFourccCode());
+		camCapture.set(Videoio.CAP_PROP_FRAME_WIDTH, requestedProfile.width);
+		camCapture.set(Videoio.CAP_PROP_FRAME_HEIGHT, requestedProfile.height);
+		camCapture.set(Videoio.CAP_PROP_FPS, requestedProfile.fps);
+		camCapture.set(Videoio.CAP_PROP_BUFFERSIZE, requestedProfile.buffer_size);
+
+		// the thresholds depend on the resolution, they're recomputed with the next frame
+		minFaceDetectedSize = null;
+
+		negotiatedProfile = new CaptureProfile(
+			(int) camCapture.get(Videoio.CAP_PROP_FRAME_WIDTH),
+			(int) camCapture.get(Videoio.CAP_PROP_FRAME_HEIGHT),
+			CaptureProfile.decodeFourcc((int) camCapture.get(Videoio.CAP_PROP_FOURCC)),
+			camCapture.get(Videoio.CAP_PROP_FPS),
+			(int) camCapture.get(Videoio.CAP_PROP_BUFFERSIZE)
+		);
+
+		Loggers.getDebugLogger().log(
+			Level.INFO,
+			"Requested capture profile: " + requestedProfile + ". Negotiated: " + negotiatedProfile
+		);
+	}
+
+	/**
+	 * @return the profile negotiated with the camera the last time it was opened (see
+	 * {@link #setCaptureProfile(CaptureProfile)}) or null if no profile has been requested. Values not
+	 * reported by the backend are 0
+	 */
+	@Nullable
+	public CaptureProfile getNegotiatedProfile()
+	{
+		return negotiatedProfile;
+	}
+
 	/**
 	 * Tries to open the capture device at idx 0
 	 * (if just 1 camera is connected it will open it)
@@ -291,6 +975,7 @@ public class CVUtils implements AutoCloseable
 		synchronized (camCapture) {
 			if (camCapture.isOpened())
 				camCapture.release();
+			rawFrame.release();
 		}
 	}
 
@@ -304,8 +989,34 @@ public class CVUtils implements AutoCloseable
 	{
 		return "CVUtils{" +
 			"camCapture=" + camCapture +
-			", facesClassifier=" + facesClassifier +
+			", faceDetector=" + faceDetector +
 			", minFaceDetectedSize=" + minFaceDetectedSize +
+			", captureProfile=" + captureProfile +
+			", negotiatedProfile=" + negotiatedProfile +
 			'}';
 	}
+
+	/**
+	 * Min size of the detected faces computed for frames of a given size
+	 */
+	private static class MinFaceSize
+	{
+		private final int frame_rows, frame_cols;
+
+		@NotNull
+		private final Size size;
+
+		private MinFaceSize(int frame_rows, int frame_cols, @NotNull Size size)
+		{
+			this.frame_rows = frame_rows;
+			this.frame_cols = frame_cols;
+			this.size = size;
+		}
+
+		@Override
+		public String toString()
+		{
+			return size.toString();
+		}
+	}
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import dev.benjaminguzman.core.Loggers;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.opencv.core.Mat;
+
+import java.util.logging.Level;
+
+/**
+ * Shares a single camera among all the components needing frames (e.g. {@link CVLoop}, the mirror and the
+ * calibration)
+ * <p>
+ * A single capture thread captures frames and publishes the latest one to the subscribers. Frames are only
+ * captured when at least one subscriber is waiting for a frame, and subscribers waiting at the same time get the
+ * same frame, so two consumers never cost two captures (and decodes)
+ * <p>
+ * Subscribers are reference counted: the camera is opened when the first subscriber arrives and it is closed
+ * when the last one leaves
+ * <p>
+ * If all the subscribers accept grayscale frames, frames are captured in grayscale (see
+ * {@link CVUtils#captureLatestFrame(Mat, CVMetrics, boolean)}), which is cheaper
+ * <p>
+ * This class is thread safe
+ */
+public class CameraService
+{
+	@NotNull
+	private final CVUtils cvUtils;
+
+	@NotNull
+	private final CVMetrics metrics;
+
+	private final Object lock = new Object();
+
+	/**
+	 * Latest captured frame, subscribers copy it into their own buffers
+	 * Guarded by {@link #lock}
+	 */
+	@NotNull
+	private Mat latestFrame = new Mat();
+
+	/**
+	 * Sequence number of {@link #latestFrame}, incremented each time a new frame is published
+	 * Guarded by {@link #lock}
+	 */
+	private long frame_seq;
+
+	/**
+	 * Incremented each time a capture fails, so waiting subscribers can stop waiting
+	 * Guarded by {@link #lock}
+	 */
+	private long failure_seq;
+
+	/**
+	 * Guarded by {@link #lock}
+	 */
+	private int n_subscribers;
+
+	/**
+	 * Number of subscribers that need BGR frames (e.g. to show them to the user)
+	 * Guarded by {@link #lock}
+	 */
+	private int n_color_subscribers;
+
+	/**
+	 * Number of subscribers waiting for a new frame
+	 * Guarded by {@link #lock}
+	 */
+	private int n_waiting;
+
+	/**
+	 * Thread capturing frames. A new thread is created each time the camera is opened, a thread stops capturing
+	 * as soon as it is not the current capture thread
+	 * Guarded by {@link #lock}
+	 */
+	@Nullable
+	private Thread captureThread;
+
+	/**
+	 * @param cvUtils the object owning the camera
+	 * @param metrics the capture statistics (e.g. frame age) are recorded here
+	 */
+	public CameraService(@NotNull CVUtils cvUtils, @NotNull CVMetrics metrics)
+	{
+		this.cvUtils = cvUtils;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Same as {@link #subscribe(String, boolean)}, the subscriber will receive BGR frames
+	 *
+	 * @param name name of the subscriber, used only for debugging purposes
+	 * @return the subscription or null if the camera could not be opened
+	 */
+	@Nullable
+	public Subscription subscribe(@NotNull String name)
+	{
+		return this.subscribe(name, false);
+	}
+
+	/**
+	 * Subscribes to the camera. If this is the first subscriber, the camera is opened
+	 * Each call to this method must be paired with a call to {@link Subscription#close()}
+	 *
+	 * @param name              name of the subscriber, used only for debugging purposes
+	 * @param accepts_grayscale if true, the subscriber may receive grayscale (single channel) frames, otherwise
+	 *                          it will always receive BGR frames
+	 * @return the subscription or null if the camera could not be opened
+	 */
+	@Nullable
+	public Subscription subscribe(@NotNull String name, boolean accepts_grayscale)
+	{
+		synchronized (lock) {
+			boolean opens_camera = n_subscribers == 0;
+			if (opens_camera) {
+				if (!cvUtils.open())
+					return null;
+
+				captureThread = new Thread(this::captureLoop, "Camera-Capture-Thread");
+				captureThread.setDaemon(true);
+				captureThread.setPriority(Thread.MIN_PRIORITY);
+				captureThread.start();
+				Loggers.getDebugLogger().log(Level.FINE, "Camera opened for subscriber: " + name);
+			}
+
+			++n_subscribers;
+			if (!accepts_grayscale)
+				++n_color_subscribers;
+			return new Subscription(name, accepts_grayscale, opens_camera, frame_seq);
+		}
+	}
+
+	/**
+	 * Removes a subscriber. If this is the last subscriber, the camera is closed
+	 */
+	private void unsubscribe(@NotNull Subscription subscription)
+	{
+		synchronized (lock) {
+			if (!subscription.accepts_grayscale)
+				--n_color_subscribers;
+			if (--n_subscribers > 0)
+				return;
+
+			captureThread = null; // the thread will exit the next time it checks
+			lock.notifyAll();
+
+			// close the camera here (and not in the capture thread), that way a subscriber arriving right
+			// after this can open the camera again without the old thread closing it
+			// the close waits for any capture in progress (see CVUtils#close())
+			cvUtils.close();
+			latestFrame.release();
+			Loggers.getDebugLogger().log(
+				Level.FINE,
+				"Camera closed, last subscriber was: " + subscription.name
+			);
+		}
+	}
+
+	/**
+	 * @return the number of current subscribers
+	 */
+	public int getNSubscribers()
+	{
+		synchronized (lock) {
+			return n_subscribers;
+		}
+	}
+
+	/**
+	 * Captures frames while there are subscribers waiting for them
+	 */
+	private void captureLoop()
+	{
+		// each capture thread has its own buffer, it is swapped with latestFrame when a frame is published
+		Mat captureBuffer = new Mat();
+
+		try {
+			boolean grayscale;
+			while (true) {
+				synchronized (lock) {
+					while (captureThread == Thread.currentThread() && n_waiting == 0)
+						lock.wait();
+
+					if (captureThread != Thread.currentThread())
+						break;
+
+					grayscale = n_color_subscribers == 0;
+				}
+
+				long start_cpu_ns = CpuGovernor.getCpuTimeNs();
+				boolean captured = cvUtils.captureLatestFrame(captureBuffer, metrics, grayscale);
+				metrics.onCpuTime(CpuGovernor.getCpuTimeNs() - start_cpu_ns);
+
+				synchronized (lock) {
+					if (captureThread != Thread.currentThread()) // camera was closed while capturing
+						break;
+
+					if (captured) {
+						Mat tmp = latestFrame;
+						latestFrame = captureBuffer;
+						captureBuffer = tmp;
+						++frame_seq;
+					} else
+						++failure_seq;
+
+					lock.notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			captureBuffer.release();
+		}
+	}
+
+	/**
+	 * A subscription to the {@link CameraService}
+	 * <p>
+	 * This class is NOT thread safe, each consumer thread should have its own subscription
+	 */
+	public class Subscription implements AutoCloseable
+	{
+		@NotNull
+		private final String name;
+
+		private final boolean accepts_grayscale;
+
+		/**
+		 * True if the camera was opened for this subscriber, i.e. there were no other subscribers
+		 */
+		private final boolean has_opened_camera;
+
+		/**
+		 * Sequence number of the last frame received by this subscriber
+		 */
+		private long last_frame_seq;
+
+		private boolean is_closed;
+
+		private Subscription(
+			@NotNull String name,
+			boolean accepts_grayscale,
+			boolean has_opened_camera,
+			long last_frame_seq
+		)
+		{
+			this.name = name;
+			this.accepts_grayscale = accepts_grayscale;
+			this.has_opened_camera = has_opened_camera;
+			this.last_frame_seq = last_frame_seq;
+		}
+
+		/**
+		 * @return true if the camera was opened for this subscriber. In that case, the first frames may be dark
+		 * or overexposed because the camera is still adjusting its exposure
+		 */
+		public boolean hasOpenedCamera()
+		{
+			return has_opened_camera;
+		}
+
+		/**
+		 * Waits for a frame captured after the last frame received by this subscriber and copies it into the
+		 * given buffer
+		 *
+		 * @param frame      the buffer where the frame will be written. Its native memory is reused if the size
+		 *                   and type of the captured frame have not changed. If the subscriber accepts grayscale
+		 *                   frames, check the number of channels of the frame
+		 * @param timeout_ms max time to wait for the frame
+		 * @return true if a frame was written, false if the capture failed, the timeout elapsed or the
+		 * subscription is closed
+		 * @throws InterruptedException if the current thread is interrupted while waiting
+		 */
+		public boolean nextFrame(@NotNull Mat frame, long timeout_ms) throws InterruptedException
+		{
+			long deadline = System.nanoTime() + timeout_ms * 1_000_000;
+
+			synchronized (lock) {
+				if (is_closed)
+					return false;
+
+				long initial_failure_seq = failure_seq;
+				++n_waiting;
+				lock.notifyAll(); // wake up the capture thread
+				try {
+					long remaining_ns;
+					while (frame_seq == last_frame_seq && failure_seq == initial_failure_seq) {
+						remaining_ns = deadline - System.nanoTime();
+						if (remaining_ns <= 0 || captureThread == null)
+							return false;
+
+						lock.wait(remaining_ns / 1_000_000, (int) (remaining_ns % 1_000_000));
+					}
+				} finally {
+					--n_waiting;
+				}
+
+				if (frame_seq == last_frame_seq) // capture failed
+					return false;
+
+				latestFrame.copyTo(frame);
+				last_frame_seq = frame_seq;
+			}
+
+			return !frame.empty();
+		}
+
+		/**
+		 * Unsubscribes from the camera. Calling this method more than once has no effect
+		 */
+		@Override
+		public void close()
+		{
+			synchronized (lock) {
+				if (is_closed)
+					return;
+
+				is_closed = true;
+			}
+			unsubscribe(this);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Wrapper for the parameters requested to (or negotiated with) the camera
+ * <p>
+ * The posture checker only needs coarse geometry, so capturing at a low resolution reduces a lot the cost of
+ * decoding the frames and detecting faces
+ */
+public class CaptureProfile
+{
+	/**
+	 * Pixel format with no compression, frames don't need to be decoded
+	 */
+	public static final String FOURCC_YUYV = "YUYV";
+
+	/**
+	 * Pixel format with JPEG compression, usually required by cameras to deliver high resolutions at high FPS
+	 */
+	public static final String FOURCC_MJPG = "MJPG";
+
+	public final int width;
+	public final int height;
+
+	/**
+	 * Pixel format, e.g. {@link #FOURCC_YUYV}. If it is null, the backend default is used
+	 */
+	@Nullable
+	public final String fourcc;
+
+	public final double fps;
+
+	/**
+	 * Number of frames buffered by the backend. Since the camera is sampled much slower than its frame rate, a
+	 * small buffer makes captured frames fresher
+	 */
+	public final int buffer_size;
+
+	/**
+	 * @param width       the frame width
+	 * @param height      the frame height
+	 * @param fourcc      the pixel format (4 characters code), null to use the backend default
+	 * @param fps         the frames per second
+	 * @param buffer_size the number of frames buffered by the backend
+	 */
+	public CaptureProfile(int width, int height, @Nullable String fourcc, double fps, int buffer_size)
+	{
+		this.width = width;
+		this.height = height;
+		this.fourcc = fourcc;
+		this.fps = fps;
+		this.buffer_size = buffer_size;
+	}
+
+	/**
+	 * The values reported by a backend may be 0 if the backend doesn't support a property, so this is not checked in
+	 * the constructor
+	 *
+	 * @return true if all the values can be requested to a camera
+	 */
+	public boolean isValid()
+	{
+		return width > 0 && height > 0 && fps > 0 && buffer_size > 0 && (fourcc == null || fourcc.length() == 4);
+	}
+
+	/**
+	 * @return the fourcc code as an int, as expected by {@link org.opencv.videoio.Videoio#CAP_PROP_FOURCC}
+	 * or -1 if {@link #fourcc} is null
+	 */
+	public int getFourccCode()
+	{
+		if (fourcc == null)
+			return -1;
+
+		// same as VideoWriter.fourcc, but it doesn't require the native library
+		return (fourcc.charAt(0) & 0xFF)
+			| (fourcc.charAt(1) & 0xFF) << 8
+			| (fourcc.charAt(2) & 0xFF) << 16
+			| (fourcc.charAt(3) & 0xFF) << 24;
+	}
+
+	/**
+	 * Converts the given code to its 4 characters representation
+	 *
+	 * @param fourcc_code the code, as returned by {@link org.opencv.videoio.Videoio#CAP_PROP_FOURCC}
+	 * @return the 4 characters or null if the code is not valid (e.g. the backend doesn't report it)
+	 */
+	@Nullable
+	public static String decodeFourcc(int fourcc_code)
+	{
+		if (fourcc_code <= 0)
+			return null;
+
+		return new String(new char[]{
+			(char) (fourcc_code & 0xFF),
+			(char) ((fourcc_code >> 8) & 0xFF),
+			(char) ((fourcc_code >> 16) & 0xFF),
+			(char) ((fourcc_code >> 24) & 0xFF)
+		});
+	}
+
+	@NotNull
+	@Override
+	public String toString()
+	{
+		return "CaptureProfile{" +
+			"width=" + width +
+			", height=" + height +
+			", fourcc=" + fourcc +
+			", fps=" + fps +
+			", buffer_size=" + buffer_size +
+			'}';
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import dev.benjaminguzman.core.Loggers;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Executes the capture stage of the {@link CVLoop} periodically with an interval decided by an
+ * {@link AdaptiveSampler}, so it may change between executions. If a {@link CpuGovernor} is given, the interval is
+ * never shorter than the interval that keeps the CPU usage under the budget
+ * <p>
+ * Unlike {@link ScheduledExecutorService#scheduleAtFixedRate}, each execution schedules the next one with the
+ * current interval. If an execution takes longer than the interval (e.g. the camera driver blocks), the missed
+ * ticks are dropped instead of executed back-to-back: the next capture starts at the next tick, so an overloaded
+ * machine never receives a burst of captures. Overruns are recorded in {@link CVMetrics}
+ * <p>
+ * The scheduler stops when the executor is shut down
+ * <p>
+ * This class is thread safe
+ */
+public class CaptureScheduler
+{
+	@NotNull
+	private final ScheduledExecutorService executor;
+
+	@NotNull
+	private final Runnable capture;
+
+	@NotNull
+	private final AdaptiveSampler sampler;
+
+	@Nullable
+	private final CpuGovernor governor;
+
+	@NotNull
+	private final CVMetrics metrics;
+
+	/**
+	 * The next scheduled execution
+	 * Guarded by this
+	 */
+	@Nullable
+	private ScheduledFuture<?> nextCapture;
+
+	/**
+	 * @param executor        the executor running the captures
+	 * @param capture         the capture stage
+	 * @param min_interval_ms the interval between captures while the posture is unstable
+	 * @param max_interval_ms the max interval between captures while the posture is stable
+	 * @param governor        the governor limiting the CPU usage, null if the CPU usage is not limited
+	 * @param metrics         the metrics where overruns are recorded
+	 */
+	public CaptureScheduler(
+		@NotNull ScheduledExecutorService executor,
+		@NotNull Runnable capture,
+		long min_interval_ms,
+		long max_interval_ms,
+		@Nullable CpuGovernor governor,
+		@NotNull CVMetrics metrics
+	)
+	{
+		this.executor = executor;
+		this.capture = capture;
+		this.sampler = new AdaptiveSampler(min_interval_ms, max_interval_ms, this::rescheduleNow);
+		this.governor = governor;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the sampler deciding the interval between captures, it must be informed about the stability of the
+	 * posture
+	 */
+	@NotNull
+	public AdaptiveSampler getSampler()
+	{
+		return sampler;
+	}
+
+	/**
+	 * @return the current interval between captures in milliseconds, i.e. the interval decided by the sampler or
+	 * the interval imposed by the governor, whichever is longer
+	 */
+	public long getIntervalMs()
+	{
+		long interval_ms = sampler.getIntervalMs();
+		return governor == null ? interval_ms : Math.max(interval_ms, governor.getMinIntervalMs());
+	}
+
+	/**
+	 * Executes the first capture immediately
+	 */
+	public void start()
+	{
+		this.schedule(0);
+	}
+
+	/**
+	 * Reschedules the next capture, so it is executed after the current interval (from now) instead of the
+	 * interval that was current when it was scheduled
+	 * <p>
+	 * Invoke this when the interval is reduced, so a long interval doesn't delay the change
+	 */
+	public synchronized void rescheduleNow()
+	{
+		if (nextCapture == null)
+			return;
+
+		long remaining_ms = nextCapture.getDelay(TimeUnit.MILLISECONDS);
+		long interval_ms = this.getIntervalMs();
+		// if the capture has started (or it is about to start) it can't be cancelled, nothing to do
+		if (remaining_ms > interval_ms && nextCapture.cancel(false))
+			this.schedule(interval_ms);
+	}
+
+	private void runCapture()
+	{
+		long start_ns = System.nanoTime();
+		capture.run();
+		long elapsed_ns = System.nanoTime() - start_ns;
+
+		if (governor != null)
+			governor.update();
+
+		// the interval is measured between the start of two captures, like in scheduleAtFixedRate
+		long interval_ns = TimeUnit.MILLISECONDS.toNanos(this.getIntervalMs());
+		if (elapsed_ns <= interval_ns) {
+			this.schedule(TimeUnit.NANOSECONDS.toMillis(interval_ns - elapsed_ns));
+			return;
+		}
+
+		// the capture overran its interval, skip the missed ticks and wait for the next one
+		long n_skipped_ticks = elapsed_ns / interval_ns;
+		metrics.onCaptureOverrun(elapsed_ns - interval_ns, n_skipped_ticks);
+		if (Loggers.getDebugLogger().isLoggable(Level.FINE))
+			Loggers.getDebugLogger().log(
+				Level.FINE,
+				"Capture took " + TimeUnit.NANOSECONDS.toMillis(elapsed_ns) + " ms, the interval is "
+					+ TimeUnit.NANOSECONDS.toMillis(interval_ns) + " ms. Skipped ticks: " + n_skipped_ticks
+			);
+		this.schedule(TimeUnit.NANOSECONDS.toMillis(interval_ns - elapsed_ns % interval_ns));
+	}
+
+	private synchronized void schedule(long delay_ms)
+	{
+		if (executor.isShutdown())
+			return;
+
+		try {
+			nextCapture = executor.schedule(this::runCapture, delay_ms, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ignored) { // the executor was shut down concurrently
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.benjaminguzman.cv;
+
+import dev.benjaminguzman.SpineWare;
+import dev.benjaminguzman.core.Loggers;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.opencv.opencv_java;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+import org.opencv.objdetect.Objdetect;
+
+import java.nio.file.Path;
+import java.util.logging.Level;
+
+/**
+ * Detects faces with a cascade classifier (LBP or Haar)
+ * <p>
+ * Frames are converted to grayscale, downscaled and equalized before running the classifier
+ */
+public class CascadeFaceDetector implements FaceDetector
+{
+	/**
+	 * Path (inside the jar) of the LBP cascade bundled with SpineWare
+	 */
+	private static final String LBP_CASCADE_RESOURCE = "/resources/cv/lbpcascade_frontalface_improved.xml";
+	private static final String LBP_CASCADE_SHA256
+		= "15710bdb46468bf67b990334056b10e8368ae9ccd8c01c966659e432717c683a";
+
+	/**
+	 * Path (inside the OpenCV jar for the current platform) of the Haar cascade shipped with OpenCV
+	 */
+	private static final String HAAR_CASCADE_RESOURCE = "/org/bytedeco/opencv/" + Loader.getPlatform()
+		+ "/share/opencv4/haarcascades/haarcascade_frontalface_default.xml";
+	private static final String HAAR_CASCADE_SHA256
+		= "0f7d4527844eb514d4a4948e822da90fbb16a34a0bbbbc6adc6498747a5aafb0";
+
+	private static final double SCALE_FACTOR = 1.2;
+	private static final int MIN_NEIGHBORS = 5;
+
+	/**
+	 * Used to tell {@link Imgproc#resize} the destination size must be computed from the scale factors
+	 */
+	private static final Size ZERO_SIZE = new Size();
+
+	@NotNull
+	private final FaceDetectorType type;
+
+	@NotNull
+	private final CascadeClassifier classifier = new CascadeClassifier();
+
+	private final boolean is_loaded;
+
+	/**
+	 * @param type        the type of the detector
+	 * @param cascadePath path of the cascade file or null if it is not available
+	 */
+	private CascadeFaceDetector(@NotNull FaceDetectorType type, @Nullable Path cascadePath)
+	{
+		this.type = type;
+		this.is_loaded = cascadePath != null && classifier.load(cascadePath.toAbsolutePath().toString());
+		if (!is_loaded)
+			Loggers.getErrorLogger().log(
+				Level.WARNING,
+				"Error while loading cascade face classifier: " + cascadePath
+			);
+	}
+
+	/**
+	 * @return a detector using the LBP cascade bundled with SpineWare
+	 */
+	@NotNull
+	static CascadeFaceDetector lbp()
+	{
+		// OpenCV can't load the cascade from inside the jar, so it is loaded from the model cache
+		return new CascadeFaceDetector(
+			FaceDetectorType.LBP_CASCADE,
+			ModelCache.getBundledModel(SpineWare.class, LBP_CASCADE_RESOURCE, LBP_CASCADE_SHA256)
+		);
+	}
+
+	/**
+	 * @return a detector using the Haar cascade shipped with OpenCV. Some platforms don't ship it, in that case
+	 * the detector is not loaded (see {@link #isLoaded()})
+	 */
+	@NotNull
+	static CascadeFaceDetector haar()
+	{
+		return new CascadeFaceDetector(
+			FaceDetectorType.HAAR_CASCADE,
+			ModelCache.getBundledModel(opencv_java.class, HAAR_CASCADE_RESOURCE, HAAR_CASCADE_SHA256)
+		);
+	}
+
+	@NotNull
+	@Override
+	public FaceDetectorType getType()
+	{
+		return type;
+	}
+
+	@Override
+	public boolean isLoaded()
+	{
+		return is_loaded;
+	}
+
+	@Override
+	public void detect(
+		@NotNull Mat frame,
+		@NotNull FrameContext frameCtx,
+		@NotNull Size minFaceSize,
+		@NotNull MatOfRect faces
+	)
+	{
+		// preprocess the frame
+		Mat grayFrame = frameCtx.getGrayFrame();
+		if (frame.channels() == 1) // captured in grayscale, see CVUtils#captureLatestFrame(Mat, CVMetrics, boolean)
+			grayFrame = frame;
+		else
+			Imgproc.cvtColor(frame, grayFrame, Imgproc.COLOR_BGR2GRAY);
+
+		double scale = frameCtx.getDetectionScale();
+		if (scale < 1) {
+			Imgproc.resize(
+				grayFrame,
+				frameCtx.getScaledGrayFrame(),
+				ZERO_SIZE, // compute the size from the scale
+				scale,
+				scale,
+				Imgproc.INTER_AREA
+			);
+			grayFrame = frameCtx.getScaledGrayFrame();
+		}
+		// the frame must not be modified, in that case the equalized frame is written in the gray buffer
+		Mat equalizedFrame = grayFrame == frame ? frameCtx.getGrayFrame() : grayFrame;
+		Imgproc.equalizeHist(grayFrame, equalizedFrame);
+
+		// the min size must also be scaled (Size fields are updated to avoid creating a new object)
+		Size scaledMinFaceSize = frameCtx.getScaledMinFaceSize();
+		scaledMinFaceSize.width = minFaceSize.width * scale;
+		scaledMinFaceSize.height = minFaceSize.height * scale;
+
+		classifier.detectMultiScale(
+			equalizedFrame,
+			faces,
+			SCALE_FACTOR,
+			MIN_NEIGHBORS,
+			Objdetect.CASCADE_SCALE_IMAGE,
+			scaledMinFaceSize
+		);
+	}
+
+	/**
+	 * The Java API of {@link CascadeClassifier} doesn't expose a method to release it, its native memory is
+	 * freed when it is garbage collected
+	 */
+	@Override
+	public void close()
+	{
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CascadeFaceDetector{" +
+			"type=" + type +
+			", is_loaded=" + is_loaded +
+			'}';
+	}
+}
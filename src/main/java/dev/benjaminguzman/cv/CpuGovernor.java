@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import dev.benjaminguzman.core.Loggers;
+import org.jetbrains.annotations.NotNull;
+import org.opencv.core.Core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Level;
+
+/**
+ * Keeps the CPU used by the CV features under a budget (a percentage of one core)
+ * <p>
+ * The threads of the CV features report the CPU time they consume to {@link CVMetrics} (see
+ * {@link #getCpuTimeNs()}). From it, the governor estimates the CPU cost of each capture (including the
+ * detection and evaluation of the frame) and computes the min interval between captures that keeps the usage
+ * under the budget: {@code interval = cost / budget}
+ * <p>
+ * Only the CPU time of the threads reporting it is measured, so while the governor is in use OpenCV is limited
+ * to a single thread. Otherwise the worker threads of its parallel code (e.g. in the face detector) would consume
+ * CPU that is not measured, and the real usage could be several times the budget. The number of threads of OpenCV
+ * is global, so other components using OpenCV meanwhile (e.g. the mirror) are limited too
+ * <p>
+ * If the machine is overloaded (the system load average is greater than the number of cores), the interval is
+ * increased proportionally, so posture checking doesn't compete with the work of the user
+ * <p>
+ * {@link #update()} must be invoked from a single thread, the getters can be invoked from any thread
+ */
+public class CpuGovernor
+{
+	/**
+	 * The cost of the captures is recomputed every this number of captures
+	 */
+	private static final int UPDATE_EVERY_N_CAPTURES = 5;
+
+	/**
+	 * Weight of the last measurement in the (exponential moving) average cost of the captures
+	 */
+	private static final double COST_SMOOTHING = 0.3;
+
+	/**
+	 * If the system load average per core is greater than this, the machine is considered overloaded
+	 */
+	private static final double OVERLOADED_LOAD_PER_CORE = 1;
+
+	/**
+	 * Value for {@link Core#setNumThreads(int)} that restores the default number of threads
+	 */
+	private static final int DEFAULT_N_THREADS = -1;
+
+	private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	private static final OperatingSystemMXBean osMXBean = ManagementFactory.getOperatingSystemMXBean();
+	private static final boolean is_cpu_time_supported = initCpuTimeMeasurement();
+
+	@NotNull
+	private final CVMetrics metrics;
+
+	/**
+	 * Fraction of one core the CV features can use, e.g. 0.02 for 2%
+	 */
+	private final double cpu_budget;
+
+	private final int n_cores = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Values of the counters the last time the cost was computed
+	 */
+	private long last_cpu_time_ns, last_n_captures;
+
+	/**
+	 * Average CPU time consumed by each capture, -1 if it has not been measured yet
+	 */
+	private double avg_capture_cost_ns = -1;
+
+	private volatile long min_interval_ms;
+
+	/**
+	 * OpenCV is limited to a single thread (see the class doc), the native libraries must be loaded
+	 *
+	 * @param metrics            the metrics where the CPU time and the captures are counted
+	 * @param cpu_budget_percent percentage of one core the CV features can use, e.g. 2 for 2%
+	 */
+	public CpuGovernor(@NotNull CVMetrics metrics, double cpu_budget_percent)
+	{
+		if (cpu_budget_percent <= 0)
+			throw new IllegalArgumentException("CPU budget must be positive: " + cpu_budget_percent);
+
+		this.metrics = metrics;
+		this.cpu_budget = cpu_budget_percent / 100;
+		this.last_cpu_time_ns = metrics.getCpuTimeNs();
+		this.last_n_captures = metrics.getCaptureStage().getExecutions();
+		setOpenCVSingleThreaded(true);
+	}
+
+	/**
+	 * Enables the measurement of the CPU time of the threads, if the JVM supports it
+	 *
+	 * @return true if the CPU time of the current thread can be measured
+	 */
+	private static boolean initCpuTimeMeasurement()
+	{
+		if (!threadMXBean.isCurrentThreadCpuTimeSupported()) {
+			Loggers.getErrorLogger().warning(
+				"The JVM can't measure the CPU time of threads, the elapsed time will be used instead"
+			);
+			return false;
+		}
+
+		try {
+			if (!threadMXBean.isThreadCpuTimeEnabled())
+				threadMXBean.setThreadCpuTimeEnabled(true);
+			return true;
+		} catch (UnsupportedOperationException | SecurityException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Couldn't enable the measurement of CPU time", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Use this to measure the CPU time consumed by a piece of code: invoke it before and after the code and
+	 * subtract the values
+	 * <p>
+	 * If the JVM can't measure the CPU time of threads, the elapsed (wall) time is returned, which is an upper
+	 * bound of the CPU time consumed by a single thread. It includes the time spent blocked (e.g. waiting for a
+	 * frame from the camera), so the cost of the captures is overestimated and the loop runs slower than the
+	 * budget allows. That's preferred over exceeding the budget
+	 *
+	 * @return the CPU time consumed by the current thread in nanoseconds
+	 */
+	public static long getCpuTimeNs()
+	{
+		return is_cpu_time_supported ? threadMXBean.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/**
+	 * Recomputes the min interval between captures. Invoke it after each capture
+	 */
+	public void update()
+	{
+		long n_captures = metrics.getCaptureStage().getExecutions();
+		if (n_captures - last_n_captures < UPDATE_EVERY_N_CAPTURES)
+			return;
+
+		long cpu_time_ns = metrics.getCpuTimeNs();
+		double capture_cost_ns = (double) (cpu_time_ns - last_cpu_time_ns) / (n_captures - last_n_captures);
+		last_cpu_time_ns = cpu_time_ns;
+		last_n_captures = n_captures;
+
+		avg_capture_cost_ns = avg_capture_cost_ns == -1
+			? capture_cost_ns
+			: COST_SMOOTHING * capture_cost_ns + (1 - COST_SMOOTHING) * avg_capture_cost_ns;
+
+		double interval_ms = avg_capture_cost_ns / 1e6 / cpu_budget;
+
+		// the load average is not available on some platforms (e.g. Windows), in that case it is negative
+		double load_per_core = osMXBean.getSystemLoadAverage() / n_cores;
+		if (load_per_core > OVERLOADED_LOAD_PER_CORE)
+			interval_ms *= load_per_core;
+
+		min_interval_ms = Math.round(interval_ms);
+		metrics.onCpuGovernorUpdated(min_interval_ms, load_per_core);
+	}
+
+	/**
+	 * Limits OpenCV to a single thread or restores its default number of threads
+	 */
+	private static void setOpenCVSingleThreaded(boolean single_threaded)
+	{
+		Core.setNumThreads(single_threaded ? 1 : DEFAULT_N_THREADS);
+		Loggers.getDebugLogger().log(Level.INFO, "OpenCV threads: " + Core.getNumThreads());
+	}
+
+	/**
+	 * Restores the default number of threads of OpenCV. Invoke it when the governor is not used anymore
+	 */
+	public void release()
+	{
+		setOpenCVSingleThreaded(false);
+	}
+
+	/**
+	 * @return the min interval between captures that keeps the CPU usage under the budget, 0 if it has not
+	 * been computed yet
+	 */
+	public long getMinIntervalMs()
+	{
+		return min_interval_ms;
+	}
+
+	/**
+	 * @return the budget as a percentage of one core
+	 */
+	public double getCpuBudgetPercent()
+	{
+		return cpu_budget * 100;
+	}
+}
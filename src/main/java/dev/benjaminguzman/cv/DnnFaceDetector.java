@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.benjaminguzman.cv;
+
+import dev.benjaminguzman.core.Loggers;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+
+/**
+ * Detects faces with the ResNet-10 SSD face detector (Caffe model) executed on the CPU by the OpenCV DNN module
+ * <p>
+ * The model is not bundled with SpineWare because of its size. To use this detector, copy
+ * {@link #PROTOTXT_FILE_NAME} and {@link #MODEL_FILE_NAME} (both are distributed in the OpenCV samples) to
+ * {@link ModelCache#CACHE_DIR}
+ * <p>
+ * The network is not thread safe, so calls to {@link #detect(Mat, FrameContext, Size, MatOfRect)} are serialized
+ */
+public class DnnFaceDetector implements FaceDetector
+{
+	public static final String PROTOTXT_FILE_NAME = "deploy.prototxt";
+	public static final String MODEL_FILE_NAME = "res10_300x300_ssd_iter_140000.caffemodel";
+
+	/**
+	 * Size of the input expected by the network
+	 */
+	private static final Size INPUT_SIZE = new Size(300, 300);
+
+	/**
+	 * Mean (BGR) subtracted from the input, the same used to train the network
+	 */
+	private static final Scalar INPUT_MEAN = new Scalar(104, 177, 123);
+
+	/**
+	 * Detections with a confidence lower than this are ignored
+	 */
+	private static final float MIN_CONFIDENCE = 0.5f;
+
+	/**
+	 * Number of values describing each detection: image id, class id, confidence, x0, y0, x1, y1
+	 */
+	private static final int DETECTION_COMPONENTS = 7;
+
+	@Nullable
+	private Net net;
+
+	/**
+	 * Buffer where the frame resized to {@link #INPUT_SIZE} is stored
+	 */
+	@NotNull
+	private final Mat resizedFrame = new Mat();
+
+	/**
+	 * Buffers where the detections are copied. They only grow if more detections than their capacity are
+	 * returned by the network
+	 */
+	@NotNull
+	private float[] detections = new float[DETECTION_COMPONENTS * 200];
+	@NotNull
+	private int[] facesBuffer = new int[4 * 8];
+
+	public DnnFaceDetector()
+	{
+		this(ModelCache.getUserModel(PROTOTXT_FILE_NAME), ModelCache.getUserModel(MODEL_FILE_NAME));
+	}
+
+	/**
+	 * @param prototxtPath path of the network definition
+	 * @param modelPath    path of the network weights
+	 */
+	public DnnFaceDetector(@NotNull Path prototxtPath, @NotNull Path modelPath)
+	{
+		if (!Files.isReadable(prototxtPath) || !Files.isReadable(modelPath)) {
+			Loggers.getErrorLogger().log(
+				Level.WARNING,
+				"DNN face detector model not found: " + prototxtPath + ", " + modelPath
+			);
+			return;
+		}
+
+		try {
+			Net loadedNet = Dnn.readNetFromCaffe(prototxtPath.toString(), modelPath.toString());
+			if (loadedNet.empty()) {
+				Loggers.getErrorLogger().log(Level.WARNING, "DNN face detector model is empty: " + modelPath);
+				return;
+			}
+			loadedNet.setPreferableBackend(Dnn.DNN_BACKEND_OPENCV);
+			loadedNet.setPreferableTarget(Dnn.DNN_TARGET_CPU);
+			net = loadedNet;
+		} catch (Exception e) { // CvException if the model is corrupted
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while loading DNN face detector: " + modelPath, e);
+		}
+	}
+
+	@NotNull
+	@Override
+	public FaceDetectorType getType()
+	{
+		return FaceDetectorType.DNN_RES10_SSD;
+	}
+
+	@Override
+	public synchronized boolean isLoaded()
+	{
+		return net != null;
+	}
+
+	@Override
+	public synchronized void detect(
+		@NotNull Mat frame,
+		@NotNull FrameContext frameCtx,
+		@NotNull Size minFaceSize,
+		@NotNull MatOfRect faces
+	)
+	{
+		if (net == null) {
+			faces.release(); // no faces
+			return;
+		}
+
+		// the network input has a fixed size, so the detection scale is not used to downscale the frame
+		Imgproc.resize(frame, resizedFrame, INPUT_SIZE, 0, 0, Imgproc.INTER_AREA);
+		if (resizedFrame.channels() == 1) // the network expects BGR input
+			Imgproc.cvtColor(resizedFrame, resizedFrame, Imgproc.COLOR_GRAY2BGR);
+		Mat blob = Dnn.blobFromImage(resizedFrame, 1.0, INPUT_SIZE, INPUT_MEAN, false, false);
+		net.setInput(blob);
+		Mat output = net.forward(); // shape: 1x1xNx7
+		blob.release();
+
+		int n_detections = (int) (output.total() / DETECTION_COMPONENTS);
+		if (n_detections * DETECTION_COMPONENTS > detections.length)
+			detections = new float[n_detections * DETECTION_COMPONENTS];
+		Mat outputRows = output.reshape(1, n_detections); // no data is copied
+		if (n_detections > 0)
+			outputRows.get(0, 0, detections);
+		outputRows.release();
+		output.release();
+
+		// coordinates are normalized, map them to the downscaled frame (see FaceDetector#detect)
+		double scale = frameCtx.getDetectionScale();
+		int n_faces = 0;
+		for (int i = 0; i < n_detections; ++i) {
+			int offset = i * DETECTION_COMPONENTS;
+			if (detections[offset + 2] < MIN_CONFIDENCE)
+				continue;
+
+			double x0 = Math.max(detections[offset + 3], 0) * frame.cols();
+			double y0 = Math.max(detections[offset + 4], 0) * frame.rows();
+			double x1 = Math.min(detections[offset + 5], 1) * frame.cols();
+			double y1 = Math.min(detections[offset + 6], 1) * frame.rows();
+			if (x1 - x0 < minFaceSize.width || y1 - y0 < minFaceSize.height)
+				continue;
+
+			if ((n_faces + 1) * 4 > facesBuffer.length) {
+				int[] biggerBuffer = new int[facesBuffer.length * 2];
+				System.arraycopy(facesBuffer, 0, biggerBuffer, 0, facesBuffer.length);
+				facesBuffer = biggerBuffer;
+			}
+			facesBuffer[n_faces * 4] = (int) Math.round(x0 * scale);
+			facesBuffer[n_faces * 4 + 1] = (int) Math.round(y0 * scale);
+			facesBuffer[n_faces * 4 + 2] = (int) Math.round((x1 - x0) * scale);
+			facesBuffer[n_faces * 4 + 3] = (int) Math.round((y1 - y0) * scale);
+			++n_faces;
+		}
+
+		if (n_faces == 0) {
+			faces.release();
+			return;
+		}
+
+		faces.create(n_faces, 1, CvType.CV_32SC4);
+		faces.put(0, 0, facesBuffer);
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		net = null; // the Java API doesn't expose a method to release it, it is freed when garbage collected
+		resizedFrame.release();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DnnFaceDetector{" +
+			"is_loaded=" + (net != null) +
+			'}';
+	}
+}
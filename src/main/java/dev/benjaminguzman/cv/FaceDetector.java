@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.benjaminguzman.cv;
+
+import org.jetbrains.annotations.NotNull;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+
+/**
+ * Algorithm used to detect faces in a frame
+ * <p>
+ * Implementations are selected with {@link FaceDetectorType}. Each implementation should be safe to use from
+ * multiple threads, since the mirror, the calibration and the {@link CVLoop} may detect faces at the same time
+ */
+public interface FaceDetector extends AutoCloseable
+{
+	/**
+	 * @return the type of this detector
+	 */
+	@NotNull
+	FaceDetectorType getType();
+
+	/**
+	 * @return true if the model used by the detector was loaded and therefore faces can be detected
+	 */
+	boolean isLoaded();
+
+	/**
+	 * Detects the faces in the given frame
+	 * <p>
+	 * Implementations should analyse the frame downscaled by {@link FrameContext#getDetectionScale()} and
+	 * preprocess it using the buffers of the given context, so no new buffer is allocated on each call
+	 *
+	 * @param frame       the BGR frame (or a region of it), it must not be empty
+	 * @param frameCtx    the context whose buffers can be used to preprocess the frame
+	 * @param minFaceSize min size of the faces, relative to the full resolution frame
+	 * @param faces       where the rectangles of the detected faces are written. Coordinates must be relative to
+	 *                    the downscaled frame (i.e. full resolution coordinates multiplied by the detection scale)
+	 */
+	void detect(@NotNull Mat frame, @NotNull FrameContext frameCtx, @NotNull Size minFaceSize, @NotNull MatOfRect faces);
+
+	/**
+	 * Releases the native resources used by the detector
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import org.jetbrains.annotations.NotNull;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro-benchmark of the available {@link FaceDetector}s, so the user can pick the fastest detector that works
+ * on their hardware
+ * <p>
+ * The detectors are fed with the same frames and the same preprocessing used by the CV loop
+ */
+public class FaceDetectorBenchmark
+{
+	/**
+	 * Number of frames captured to run the benchmark
+	 */
+	public static final int DEFAULT_N_FRAMES = 10;
+
+	/**
+	 * Number of times each frame is analysed by each detector
+	 */
+	public static final int DEFAULT_ITERATIONS = 3;
+
+	/**
+	 * Number of detections performed before measuring, so lazy initializations are not measured
+	 */
+	private static final int WARM_UP_ITERATIONS = 2;
+
+	private static final long CAPTURE_TIMEOUT_MS = 1000;
+
+	private FaceDetectorBenchmark()
+	{
+		throw new RuntimeException(this.getClass().getName() + " cannot be instantiated");
+	}
+
+	/**
+	 * Captures some frames with the camera and benchmarks all the detectors with them
+	 *
+	 * @param cameraService the service used to capture the frames
+	 * @param detection_scale the scale of the frame in which faces are detected, see
+	 *                        {@link FrameContext#setDetectionScale(double)}
+	 * @return the results of the benchmark, one for each {@link FaceDetectorType}. The list is empty if no
+	 * frame could be captured
+	 * @throws InterruptedException if the current thread is interrupted while capturing the frames
+	 */
+	@NotNull
+	public static List<Result> run(@NotNull CameraService cameraService, double detection_scale)
+		throws InterruptedException
+	{
+		List<Mat> frames = new ArrayList<>(DEFAULT_N_FRAMES);
+		CameraService.Subscription subscription = cameraService.subscribe("Detector benchmark");
+		if (subscription == null)
+			return List.of();
+
+		try (subscription) {
+			for (int i = 0; i < DEFAULT_N_FRAMES; ++i) {
+				Mat frame = new Mat();
+				if (subscription.nextFrame(frame, CAPTURE_TIMEOUT_MS))
+					frames.add(frame);
+				else
+					frame.release();
+			}
+		}
+
+		try {
+			return run(frames, DEFAULT_ITERATIONS, detection_scale);
+		} finally {
+			frames.forEach(Mat::release);
+		}
+	}
+
+	/**
+	 * Benchmarks all the detectors with the given frames
+	 *
+	 * @param frames          the frames, they must not be empty and all of them must have the same size
+	 * @param iterations      number of times each frame is analysed by each detector
+	 * @param detection_scale the scale of the frame in which faces are detected
+	 * @return the results of the benchmark, one for each {@link FaceDetectorType}. The list is empty if there
+	 * are no frames
+	 */
+	@NotNull
+	public static List<Result> run(@NotNull List<Mat> frames, int iterations, double detection_scale)
+	{
+		if (frames.isEmpty())
+			return List.of();
+
+		Size minFaceSize = CVUtils.getMinFaceSize(frames.get(0));
+		FrameContext frameCtx = new FrameContext();
+		frameCtx.setDetectionScale(detection_scale);
+
+		List<Result> results = new ArrayList<>(FaceDetectorType.values().length);
+		try {
+			for (FaceDetectorType type : FaceDetectorType.values()) {
+				try (FaceDetector detector = type.create()) {
+					if (!detector.isLoaded()) {
+						results.add(new Result(type, false, -1, 0, frames.size()));
+						continue;
+					}
+
+					for (int i = 0; i < WARM_UP_ITERATIONS; ++i)
+						detector.detect(frames.get(0), frameCtx, minFaceSize, frameCtx.getDetectedFacesMat());
+
+					int frames_with_single_face = 0;
+					long start = System.nanoTime();
+					for (Mat frame : frames) {
+						for (int i = 0; i < iterations; ++i)
+							detector.detect(frame, frameCtx, minFaceSize, frameCtx.getDetectedFacesMat());
+
+						if (frameCtx.getDetectedFacesMat().rows() == 1)
+							++frames_with_single_face;
+					}
+					double avg_ms = (System.nanoTime() - start) / 1e6 / (frames.size() * iterations);
+
+					results.add(new Result(type, true, avg_ms, frames_with_single_face, frames.size()));
+				}
+			}
+		} finally {
+			frameCtx.release();
+		}
+
+		return results;
+	}
+
+	/**
+	 * Result of benchmarking a single detector
+	 */
+	public static class Result
+	{
+		@NotNull
+		public final FaceDetectorType type;
+
+		/**
+		 * False if the model of the detector could not be loaded, in that case the detector was not measured
+		 */
+		public final boolean is_loaded;
+
+		/**
+		 * Average time taken to analyse a single frame, -1 if the detector was not loaded
+		 */
+		public final double avg_ms;
+
+		/**
+		 * Number of frames in which exactly one face was detected. Since the user is usually alone in front
+		 * of the camera, the higher the better
+		 */
+		public final int frames_with_single_face;
+
+		public final int n_frames;
+
+		public Result(
+			@NotNull FaceDetectorType type,
+			boolean is_loaded,
+			double avg_ms,
+			int frames_with_single_face,
+			int n_frames
+		)
+		{
+			this.type = type;
+			this.is_loaded = is_loaded;
+			this.avg_ms = avg_ms;
+			this.frames_with_single_face = frames_with_single_face;
+			this.n_frames = n_frames;
+		}
+
+		@NotNull
+		@Override
+		public String toString()
+		{
+			if (!is_loaded)
+				return type.getName() + ": model could not be loaded";
+
+			return String.format(
+				"%s: %.2f ms/frame, single face detected in %d/%d frames",
+				type.getName(),
+				avg_ms,
+				frames_with_single_face,
+				n_frames
+			);
+		}
+	}
+}
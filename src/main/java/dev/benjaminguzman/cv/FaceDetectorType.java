@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.benjaminguzman.cv;
+
+import dev.benjaminguzman.core.Loggers;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.logging.Level;
+
+/**
+ * Available implementations of {@link FaceDetector}
+ */
+public enum FaceDetectorType
+{
+	/**
+	 * Local binary patterns cascade bundled with SpineWare. It is the fastest one
+	 */
+	LBP_CASCADE("lbp"),
+
+	/**
+	 * Haar cascade shipped with OpenCV. Slower than {@link #LBP_CASCADE}, but it has less false negatives
+	 */
+	HAAR_CASCADE("haar"),
+
+	/**
+	 * ResNet-10 SSD face detector executed on the CPU with the OpenCV DNN module. The most accurate and the
+	 * slowest one. The model is not bundled, see {@link DnnFaceDetector}
+	 */
+	DNN_RES10_SSD("dnn");
+
+	/**
+	 * Short name, used in the preferences and the CLI
+	 */
+	private final String name;
+
+	FaceDetectorType(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * @param name the short name of the type (see {@link #getName()})
+	 * @return the type with the given name
+	 */
+	public static Optional<FaceDetectorType> getInstance(@NotNull String name)
+	{
+		return Arrays.stream(FaceDetectorType.values())
+			.filter(type -> type.name.equals(name))
+			.findAny();
+	}
+
+	/**
+	 * Creates a new detector of this type. The model is loaded in this method, so it may take a while
+	 *
+	 * @return the detector, check {@link FaceDetector#isLoaded()} to know if the model could be loaded
+	 */
+	@NotNull
+	public FaceDetector create()
+	{
+		return switch (this) {
+			case LBP_CASCADE -> CascadeFaceDetector.lbp();
+			case HAAR_CASCADE -> CascadeFaceDetector.haar();
+			case DNN_RES10_SSD -> new DnnFaceDetector();
+		};
+	}
+
+	/**
+	 * Same as {@link #create()} but if the model of this type could not be loaded, {@link #LBP_CASCADE} is used
+	 *
+	 * @return the detector
+	 */
+	@NotNull
+	public FaceDetector createOrDefault()
+	{
+		FaceDetector detector = this.create();
+		if (detector.isLoaded() || this == LBP_CASCADE)
+			return detector;
+
+		Loggers.getErrorLogger().log(
+			Level.WARNING,
+			"Face detector " + name + " could not be loaded, using " + LBP_CASCADE.name + " instead"
+		);
+		detector.close();
+		return LBP_CASCADE.create();
+	}
+
+	/**
+	 * @return the short name of the type
+	 */
+	@NotNull
+	public String getName()
+	{
+		return name;
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import org.jetbrains.annotations.NotNull;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Follows a face between frames using template matching
+ * <p>
+ * Template matching on a downscaled frame is much cheaper than running the cascade classifier, so the face can be
+ * followed on every iteration while the detector is executed only every few seconds
+ * <p>
+ * The tracker only follows the position of the face, the size of the face is kept as it was when
+ * {@link #startTracking(Mat, int, int, int, int)} was called. Therefore, the detector must still be executed from
+ * time to time to update the distance to the camera
+ * <p>
+ * This class is NOT thread safe
+ */
+public class FaceTracker
+{
+	/**
+	 * Min confidence (normalized correlation coefficient) for a match to be accepted
+	 * If the best match has less confidence than this, the face is considered lost
+	 */
+	public static final double MIN_CONFIDENCE = 0.7;
+
+	/**
+	 * Scale of the frame in which the face is tracked
+	 */
+	private static final double TRACKING_SCALE = 0.25;
+
+	/**
+	 * The face is searched in a region around its last position, expanded by this ratio (of the face
+	 * width/height) on each side
+	 */
+	private static final double SEARCH_EXPANSION_RATIO = 0.5;
+
+	/**
+	 * Min width/height of the template, smaller templates match almost anything
+	 */
+	private static final int MIN_TEMPLATE_SIZE = 8;
+
+	private static final Size ZERO_SIZE = new Size();
+
+	private final Mat smallFrame = new Mat();
+	private final Mat smallGrayFrame = new Mat();
+	private final Mat searchWindow = new Mat();
+	private final Mat template = new Mat();
+	private final Mat matchResult = new Mat();
+
+	/**
+	 * Rectangle of the face in the downscaled frame
+	 */
+	private int small_face_x, small_face_y, small_face_width, small_face_height;
+
+	/**
+	 * Rectangle of the face in the full resolution frame
+	 */
+	private int face_x, face_y, face_width, face_height;
+
+	private boolean is_tracking;
+
+	/**
+	 * Confidence of the last match, see {@link #getConfidence()}
+	 */
+	private double confidence;
+
+	/**
+	 * Starts tracking the given face. The face patch is used as template to search the face in the next frames
+	 *
+	 * @param frame  the frame in which the face was detected
+	 * @param x      the x coordinate of the top left corner of the face
+	 * @param y      the y coordinate of the top left corner of the face
+	 * @param width  the width of the face
+	 * @param height the height of the face
+	 */
+	public void startTracking(@NotNull Mat frame, int x, int y, int width, int height)
+	{
+		this.downscale(frame);
+
+		int x0 = Math.max((int) (x * TRACKING_SCALE), 0);
+		int y0 = Math.max((int) (y * TRACKING_SCALE), 0);
+		int x1 = Math.min((int) ((x + width) * TRACKING_SCALE), smallGrayFrame.cols());
+		int y1 = Math.min((int) ((y + height) * TRACKING_SCALE), smallGrayFrame.rows());
+		if (x1 - x0 < MIN_TEMPLATE_SIZE || y1 - y0 < MIN_TEMPLATE_SIZE) {
+			is_tracking = false;
+			return;
+		}
+
+		// the template must own its data, smallGrayFrame will be overwritten in the next call to track()
+		CVUtils.setROI(smallGrayFrame, searchWindow, x0, y0, x1, y1);
+		searchWindow.copyTo(template);
+
+		small_face_x = x0;
+		small_face_y = y0;
+		small_face_width = x1 - x0;
+		small_face_height = y1 - y0;
+		face_x = x;
+		face_y = y;
+		face_width = width;
+		face_height = height;
+		confidence = 1;
+		is_tracking = true;
+	}
+
+	/**
+	 * Searches the tracked face in the given frame
+	 * If the face is found, its new position can be read with {@link #getFaceX()} and {@link #getFaceY()}
+	 * If it is not found, the tracker stops tracking and {@link #startTracking(Mat, int, int, int, int)} must be
+	 * called again
+	 *
+	 * @param frame the frame in which the face will be searched
+	 * @return true if the face was found with a confidence greater or equal than {@link #MIN_CONFIDENCE}
+	 */
+	public boolean track(@NotNull Mat frame)
+	{
+		if (!is_tracking)
+			return false;
+
+		this.downscale(frame);
+
+		int expand_x = (int) (small_face_width * SEARCH_EXPANSION_RATIO);
+		int expand_y = (int) (small_face_height * SEARCH_EXPANSION_RATIO);
+		int x0 = Math.max(small_face_x - expand_x, 0);
+		int y0 = Math.max(small_face_y - expand_y, 0);
+		int x1 = Math.min(small_face_x + small_face_width + expand_x, smallGrayFrame.cols());
+		int y1 = Math.min(small_face_y + small_face_height + expand_y, smallGrayFrame.rows());
+		if (x1 - x0 < template.cols() || y1 - y0 < template.rows()) { // e.g. frame size changed
+			this.stopTracking();
+			return false;
+		}
+
+		CVUtils.setROI(smallGrayFrame, searchWindow, x0, y0, x1, y1);
+		Imgproc.matchTemplate(searchWindow, template, matchResult, Imgproc.TM_CCOEFF_NORMED);
+		Core.MinMaxLocResult bestMatch = Core.minMaxLoc(matchResult);
+
+		confidence = bestMatch.maxVal;
+		if (confidence < MIN_CONFIDENCE) {
+			this.stopTracking();
+			return false;
+		}
+
+		small_face_x = x0 + (int) bestMatch.maxLoc.x;
+		small_face_y = y0 + (int) bestMatch.maxLoc.y;
+		face_x = (int) Math.round(small_face_x / TRACKING_SCALE);
+		face_y = (int) Math.round(small_face_y / TRACKING_SCALE);
+
+		return true;
+	}
+
+	/**
+	 * Stops tracking the face. Buffers are kept, so they can be reused when tracking starts again
+	 */
+	public void stopTracking()
+	{
+		is_tracking = false;
+	}
+
+	/**
+	 * Converts the frame to a downscaled grayscale frame, written into {@link #smallGrayFrame}
+	 */
+	private void downscale(@NotNull Mat frame)
+	{
+		// resize first so the color conversion is performed on fewer pixels
+		Imgproc.resize(frame, smallFrame, ZERO_SIZE, TRACKING_SCALE, TRACKING_SCALE, Imgproc.INTER_AREA);
+		CVUtils.toGray(smallFrame, smallGrayFrame);
+	}
+
+	public boolean isTracking()
+	{
+		return is_tracking;
+	}
+
+	/**
+	 * @return the confidence (normalized correlation coefficient, from -1 to 1) of the last match, 1 is a perfect
+	 * match
+	 */
+	public double getConfidence()
+	{
+		return confidence;
+	}
+
+	public int getFaceX()
+	{
+		return face_x;
+	}
+
+	public int getFaceY()
+	{
+		return face_y;
+	}
+
+	public int getFaceWidth()
+	{
+		return face_width;
+	}
+
+	public int getFaceHeight()
+	{
+		return face_height;
+	}
+
+	/**
+	 * Stops tracking and releases the native memory held by the buffers
+	 */
+	public void release()
+	{
+		this.stopTracking();
+		smallFrame.release();
+		smallGrayFrame.release();
+		searchWindow.release();
+		template.release();
+		matchResult.release();
+	}
+}
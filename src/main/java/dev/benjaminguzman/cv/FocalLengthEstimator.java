@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import java.util.Arrays;
+
+/**
+ * Online estimator of the ideal focal length from the measurements taken during the calibration
+ * <p>
+ * The estimate is the median of the measurements, so a few bad detections (e.g. a face partially out of the frame)
+ * don't shift it. The spread of the measurements is tracked with Welford's algorithm and used to decide when the
+ * estimate has converged: the relative standard error of the measurements is below the tolerance
+ * <p>
+ * This class is not thread safe
+ */
+public class FocalLengthEstimator
+{
+	/**
+	 * Min number of measurements needed for an estimate
+	 */
+	public static final int MIN_MEASUREMENTS = 5;
+
+	/**
+	 * Max relative standard error for the estimate to be considered converged
+	 */
+	private final double tolerance;
+
+	/**
+	 * The measurements, used to compute the median
+	 */
+	private double[] measurements = new double[16];
+	private int n_measurements;
+
+	/**
+	 * Running mean and sum of squared differences from the mean (Welford's algorithm)
+	 */
+	private double mean, m2;
+
+	/**
+	 * @param tolerance max relative standard error for the estimate to be considered converged, e.g. 0.01 for 1%
+	 */
+	public FocalLengthEstimator(double tolerance)
+	{
+		if (tolerance <= 0)
+			throw new IllegalArgumentException("Tolerance must be positive: " + tolerance);
+
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @param focal_length a measurement of the ideal focal length
+	 */
+	public void add(double focal_length)
+	{
+		if (n_measurements == measurements.length)
+			measurements = Arrays.copyOf(measurements, measurements.length * 2);
+		measurements[n_measurements++] = focal_length;
+
+		double delta = focal_length - mean;
+		mean += delta / n_measurements;
+		m2 += delta * (focal_length - mean);
+	}
+
+	/**
+	 * @return the number of measurements
+	 */
+	public int getMeasurements()
+	{
+		return n_measurements;
+	}
+
+	/**
+	 * @return true if there are enough measurements for an estimate, see {@link #MIN_MEASUREMENTS}
+	 */
+	public boolean hasEnoughMeasurements()
+	{
+		return n_measurements >= MIN_MEASUREMENTS;
+	}
+
+	/**
+	 * @return the median of the measurements or {@link CVUtils#INVALID_IDEAL_FOCAL_LENGTH} if there are no
+	 * measurements
+	 */
+	public double getEstimate()
+	{
+		if (n_measurements == 0)
+			return CVUtils.INVALID_IDEAL_FOCAL_LENGTH;
+
+		double[] sorted = Arrays.copyOf(measurements, n_measurements);
+		Arrays.sort(sorted);
+		int middle = n_measurements / 2;
+		return n_measurements % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+	}
+
+	/**
+	 * @return the sample standard deviation of the measurements, 0 if there are less than 2 measurements
+	 */
+	public double getStandardDeviation()
+	{
+		return n_measurements < 2 ? 0 : Math.sqrt(m2 / (n_measurements - 1));
+	}
+
+	/**
+	 * @return the standard error of the estimate relative to the estimate, e.g. 0.01 if the standard error is 1% of
+	 * the estimate. Infinity if there are less than 2 measurements
+	 */
+	public double getRelativeStandardError()
+	{
+		double estimate = this.getEstimate();
+		if (n_measurements < 2 || estimate <= 0)
+			return Double.POSITIVE_INFINITY;
+
+		return this.getStandardDeviation() / Math.sqrt(n_measurements) / estimate;
+	}
+
+	/**
+	 * @return true if there are enough measurements and the relative standard error is below the tolerance, i.e.
+	 * more measurements wouldn't change the estimate significantly
+	 */
+	public boolean hasConverged()
+	{
+		return this.hasEnoughMeasurements() && this.getRelativeStandardError() <= tolerance;
+	}
+
+	/**
+	 * @return the confidence on the estimate, a value in the range [0, 1]. 1 minus the relative standard error, 0
+	 * if there are not enough measurements
+	 */
+	public double getConfidence()
+	{
+		if (!this.hasEnoughMeasurements())
+			return 0;
+
+		return Math.max(0, 1 - this.getRelativeStandardError());
+	}
+}
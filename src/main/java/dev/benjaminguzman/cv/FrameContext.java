@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import org.jetbrains.annotations.NotNull;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+
+/**
+ * Holds the buffers used by a single CV pipeline (e.g. {@link CVLoop})
+ * <p>
+ * The buffers are allocated once and reused across iterations, that way the native memory is not allocated and
+ * freed every time a frame is processed (see Issue #8). OpenCV will only reallocate a buffer if the frame size or
+ * type changes
+ * <p>
+ * The detected faces are stored as primitive ints, so reading them does not allocate any {@link org.opencv.core.Rect}
+ * <p>
+ * This class is NOT thread safe, each thread processing frames should have its own context
+ */
+public class FrameContext
+{
+	/**
+	 * Number of ints used to describe a single face: x, y, width and height
+	 */
+	private static final int RECT_COMPONENTS = 4;
+
+	/**
+	 * Buffer where the captured frame is stored
+	 * It can be exchanged with another buffer, see {@link #swapFrame(Mat)}
+	 */
+	@NotNull
+	private Mat frame = new Mat();
+
+	/**
+	 * Header pointing to a region of {@link #frame}, it doesn't own any data (see {@link Mat#adjustROI})
+	 */
+	@NotNull
+	private final Mat frameROI = new Mat();
+
+	/**
+	 * Buffer where the preprocessed (grayscale & equalized) frame is stored
+	 */
+	@NotNull
+	private final Mat grayFrame = new Mat();
+
+	/**
+	 * Buffer where the downscaled {@link #grayFrame} is stored (see {@link #detection_scale})
+	 */
+	@NotNull
+	private final Mat scaledGrayFrame = new Mat();
+
+	/**
+	 * Min size of the faces in the downscaled frame
+	 */
+	@NotNull
+	private final Size scaledMinFaceSize = new Size();
+
+	/**
+	 * Tiny version of {@link #frame}, used to check quickly if the scene has changed
+	 */
+	@NotNull
+	private final Mat thumbnailColor = new Mat();
+
+	/**
+	 * Grayscale version of {@link #thumbnailColor}
+	 */
+	@NotNull
+	private final Mat thumbnail = new Mat();
+
+	/**
+	 * The {@link #thumbnail} of the frame in which faces were detected the last time
+	 */
+	@NotNull
+	private final Mat referenceThumbnail = new Mat();
+
+	/**
+	 * Grayscale thumbnail used to assess the quality of {@link #frame} (see {@link CVUtils#assessQuality}). It is
+	 * bigger than {@link #thumbnail} because small details (edges) are needed to detect blur
+	 */
+	@NotNull
+	private final Mat qualityThumbnailColor = new Mat();
+	@NotNull
+	private final Mat qualityThumbnail = new Mat();
+
+	/**
+	 * Laplacian of {@link #qualityThumbnail}
+	 */
+	@NotNull
+	private final Mat laplacian = new Mat();
+
+	/**
+	 * Buffers where the mean and the standard deviation computed by {@link CVUtils#assessQuality} are stored
+	 */
+	@NotNull
+	private final MatOfDouble mean = new MatOfDouble(), stdDev = new MatOfDouble();
+	@NotNull
+	private final double[] statistic = new double[1];
+
+	/**
+	 * Buffer where the cascade classifier writes the detected faces
+	 */
+	@NotNull
+	private final MatOfRect detectedFacesMat = new MatOfRect();
+
+	/**
+	 * Detected faces, each face is stored as {@link #RECT_COMPONENTS} consecutive ints (x, y, width, height)
+	 * The array only grows if more faces than its capacity are detected
+	 */
+	@NotNull
+	private int[] faces = new int[RECT_COMPONENTS * 2];
+
+	/**
+	 * Number of faces stored in {@link #faces}
+	 */
+	private int n_faces;
+
+	/**
+	 * Scale of the frame in which faces are detected. See {@link #setDetectionScale(double)}
+	 */
+	private double detection_scale = 1;
+
+	/**
+	 * @return the buffer where the frame should be captured
+	 */
+	@NotNull
+	public Mat getFrame()
+	{
+		return frame;
+	}
+
+	/**
+	 * Replaces the frame buffer with the given one, that way a frame captured by another thread can be processed
+	 * without copying it
+	 *
+	 * @param newFrame the buffer containing the frame to be processed. The context takes ownership of it
+	 * @return the previous frame buffer, the caller takes ownership of it (e.g. to capture the next frame)
+	 */
+	@NotNull
+	public Mat swapFrame(@NotNull Mat newFrame)
+	{
+		Mat previousFrame = frame;
+		frame = newFrame;
+		return previousFrame;
+	}
+
+	@NotNull
+	Mat getFrameROI()
+	{
+		return frameROI;
+	}
+
+	@NotNull
+	Mat getGrayFrame()
+	{
+		return grayFrame;
+	}
+
+	@NotNull
+	Mat getScaledGrayFrame()
+	{
+		return scaledGrayFrame;
+	}
+
+	@NotNull
+	Mat getThumbnailColor()
+	{
+		return thumbnailColor;
+	}
+
+	@NotNull
+	Mat getThumbnail()
+	{
+		return thumbnail;
+	}
+
+	@NotNull
+	Mat getQualityThumbnailColor()
+	{
+		return qualityThumbnailColor;
+	}
+
+	@NotNull
+	Mat getQualityThumbnail()
+	{
+		return qualityThumbnail;
+	}
+
+	@NotNull
+	Mat getLaplacian()
+	{
+		return laplacian;
+	}
+
+	@NotNull
+	MatOfDouble getMean()
+	{
+		return mean;
+	}
+
+	@NotNull
+	MatOfDouble getStdDev()
+	{
+		return stdDev;
+	}
+
+	/**
+	 * @return a single element array used to read the values of {@link #getMean()} and {@link #getStdDev()}
+	 * without allocating a new array
+	 */
+	@NotNull
+	double[] getStatistic()
+	{
+		return statistic;
+	}
+
+	@NotNull
+	Mat getReferenceThumbnail()
+	{
+		return referenceThumbnail;
+	}
+
+	/**
+	 * Makes the current thumbnail the reference thumbnail, i.e. the thumbnail other frames are compared with
+	 * Call this method when faces are detected in the current frame
+	 */
+	public void updateReferenceThumbnail()
+	{
+		thumbnail.copyTo(referenceThumbnail); // the thumbnail is tiny, copying it is cheap
+	}
+
+	@NotNull
+	Size getScaledMinFaceSize()
+	{
+		return scaledMinFaceSize;
+	}
+
+	/**
+	 * Sets the scale of the frame in which faces are detected.
+	 * Detecting faces in a downscaled frame is much faster and faces are big enough (compared to the frame) to be
+	 * detected anyway. The coordinates of the detected faces are always relative to the full resolution frame
+	 *
+	 * @param detection_scale a value in the range (0, 1], e.g. 0.5 means faces are detected in a frame with half
+	 *                        the width and half the height of the captured frame
+	 */
+	public void setDetectionScale(double detection_scale)
+	{
+		if (detection_scale <= 0 || detection_scale > 1)
+			throw new IllegalArgumentException("Detection scale must be in the range (0, 1]: " + detection_scale);
+
+		this.detection_scale = detection_scale;
+	}
+
+	public double getDetectionScale()
+	{
+		return detection_scale;
+	}
+
+	@NotNull
+	MatOfRect getDetectedFacesMat()
+	{
+		return detectedFacesMat;
+	}
+
+	/**
+	 * Copies the faces stored in {@link #detectedFacesMat} to the primitive buffer
+	 *
+	 * @param offset_x value added to the x coordinate of each face. Use it if faces were detected inside a region
+	 *                 of the frame
+	 * @param offset_y value added to the y coordinate of each face
+	 * @param scale    scale of the frame in which the faces were detected, coordinates and sizes are divided by
+	 *                 it to map them back to the full resolution frame
+	 * @return the number of faces copied
+	 */
+	int copyDetectedFaces(int offset_x, int offset_y, double scale)
+	{
+		n_faces = (int) detectedFacesMat.total();
+		if (n_faces * RECT_COMPONENTS > faces.length)
+			faces = new int[n_faces * RECT_COMPONENTS];
+
+		if (n_faces > 0)
+			detectedFacesMat.get(0, 0, faces);
+
+		if (scale != 1)
+			for (int i = 0; i < n_faces * RECT_COMPONENTS; ++i)
+				faces[i] = (int) Math.round(faces[i] / scale);
+
+		if (offset_x != 0 || offset_y != 0)
+			for (int i = 0; i < n_faces; ++i) {
+				faces[i * RECT_COMPONENTS] += offset_x;
+				faces[i * RECT_COMPONENTS + 1] += offset_y;
+			}
+
+		return n_faces;
+	}
+
+	/**
+	 * Replaces the detected faces with a single face
+	 *
+	 * @param x      the x coordinate of the top left corner of the face
+	 * @param y      the y coordinate of the top left corner of the face
+	 * @param width  the width of the face
+	 * @param height the height of the face
+	 */
+	void setFace(int x, int y, int width, int height)
+	{
+		faces[0] = x;
+		faces[1] = y;
+		faces[2] = width;
+		faces[3] = height;
+		n_faces = 1;
+	}
+
+	/**
+	 * Discards the detected faces
+	 */
+	void clearFaces()
+	{
+		n_faces = 0;
+	}
+
+	/**
+	 * @return the number of faces detected in the last call to {@link CVUtils#detectFaces(FrameContext)}
+	 */
+	public int getNFaces()
+	{
+		return n_faces;
+	}
+
+	/**
+	 * @param idx the index of the face, it must be less than {@link #getNFaces()}
+	 * @return the x coordinate of the top left corner of the face
+	 */
+	public int getFaceX(int idx)
+	{
+		return faces[idx * RECT_COMPONENTS];
+	}
+
+	/**
+	 * @param idx the index of the face, it must be less than {@link #getNFaces()}
+	 * @return the y coordinate of the top left corner of the face
+	 */
+	public int getFaceY(int idx)
+	{
+		return faces[idx * RECT_COMPONENTS + 1];
+	}
+
+	/**
+	 * @param idx the index of the face, it must be less than {@link #getNFaces()}
+	 * @return the width of the face
+	 */
+	public int getFaceWidth(int idx)
+	{
+		return faces[idx * RECT_COMPONENTS + 2];
+	}
+
+	/**
+	 * @param idx the index of the face, it must be less than {@link #getNFaces()}
+	 * @return the height of the face
+	 */
+	public int getFaceHeight(int idx)
+	{
+		return faces[idx * RECT_COMPONENTS + 3];
+	}
+
+	/**
+	 * Releases the native memory held by the buffers
+	 * The context can still be used after calling this method, buffers will be reallocated when needed
+	 */
+	public void release()
+	{
+		frame.release();
+		frameROI.release();
+		grayFrame.release();
+		scaledGrayFrame.release();
+		thumbnailColor.release();
+		thumbnail.release();
+		referenceThumbnail.release();
+		qualityThumbnailColor.release();
+		qualityThumbnail.release();
+		laplacian.release();
+		mean.release();
+		stdDev.release();
+		detectedFacesMat.release();
+		n_faces = 0;
+	}
+}
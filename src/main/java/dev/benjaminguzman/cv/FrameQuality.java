@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+/**
+ * Result of the quality check performed on a frame before detecting faces in it
+ * (see {@link CVUtils#assessQuality(FrameContext)})
+ */
+public enum FrameQuality
+{
+	/**
+	 * Faces can be detected in the frame
+	 */
+	OK,
+
+	/**
+	 * The frame is almost black, e.g. the camera has just been opened or the lens is covered
+	 */
+	TOO_DARK,
+
+	/**
+	 * The frame is almost white, e.g. the camera is adjusting its exposure
+	 */
+	OVEREXPOSED,
+
+	/**
+	 * The frame has almost no edges, e.g. the user or the camera was moving when it was captured
+	 */
+	BLURRED
+}
@@ -23,6 +23,11 @@ package dev.benjaminguzman.cv;
  */
 public class IdealFocalLengthMeasure
 {
+	/**
+	 * Confidence of the measurements taken before the confidence was recorded
+	 */
+	public static final double UNKNOWN_CONFIDENCE = -1;
+
 	/**
 	 * The distance at which {@link #ideal_focal_length} was obtained
 	 */
@@ -33,10 +38,22 @@ public class IdealFocalLengthMeasure
 	 */
 	private final double ideal_focal_length;
 
+	/**
+	 * The confidence on {@link #ideal_focal_length}, a value in the range [0, 1] (see
+	 * {@link FocalLengthEstimator#getConfidence()}) or {@link #UNKNOWN_CONFIDENCE}
+	 */
+	private final double confidence;
+
 	public IdealFocalLengthMeasure(double distance, double ideal_focal_length)
+	{
+		this(distance, ideal_focal_length, UNKNOWN_CONFIDENCE);
+	}
+
+	public IdealFocalLengthMeasure(double distance, double ideal_focal_length, double confidence)
 	{
 		this.distance = distance;
 		this.ideal_focal_length = ideal_focal_length;
+		this.confidence = confidence;
 	}
 
 	public double getDistance()
@@ -48,4 +65,9 @@ public class IdealFocalLengthMeasure
 	{
 		return ideal_focal_length;
 	}
+
+	public double getConfidence()
+	{
+		return confidence;
+	}
 }
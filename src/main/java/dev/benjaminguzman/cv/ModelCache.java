@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import dev.benjaminguzman.core.Loggers;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.logging.Level;
+
+/**
+ * Persistent cache of the models used by the {@link FaceDetector}s
+ * <p>
+ * OpenCV can only load models from the file system, but the bundled models are inside the jar. Instead of
+ * copying them to a temporary file each time they're loaded, they're extracted once to {@link #CACHE_DIR} and
+ * reused on the next starts. Each cached model is validated with its SHA-256 checksum, so a corrupted (or
+ * outdated) model is extracted again
+ * <p>
+ * Models not bundled with SpineWare (see {@link DnnFaceDetector}) are also searched in {@link #CACHE_DIR}
+ */
+public class ModelCache
+{
+	/**
+	 * Directory where the models are cached
+	 */
+	public static final Path CACHE_DIR = Paths.get(System.getProperty("user.home"), ".spineware", "models");
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private ModelCache()
+	{
+		throw new RuntimeException(this.getClass().getName() + " cannot be instantiated");
+	}
+
+	/**
+	 * Gets the path of a model bundled inside a jar. If the model has not been extracted or the extracted file
+	 * doesn't match the checksum, the model is extracted to {@link #CACHE_DIR}
+	 *
+	 * @param owner    class used to load the resource (i.e. the jar containing the model)
+	 * @param resource absolute path of the model inside the jar
+	 * @param sha256   expected SHA-256 checksum of the model (lowercase hex)
+	 * @return the path of the cached model or null if the model is not in the jar or it couldn't be extracted
+	 */
+	@Nullable
+	public static Path getBundledModel(@NotNull Class<?> owner, @NotNull String resource, @NotNull String sha256)
+	{
+		// the checksum is part of the name, so different versions of a model don't overwrite each other
+		String file_name = resource.substring(resource.lastIndexOf('/') + 1);
+		Path cachedModel = CACHE_DIR.resolve(sha256.substring(0, 12) + "-" + file_name);
+
+		try {
+			if (Files.isRegularFile(cachedModel)) {
+				if (sha256.equals(computeSha256(cachedModel)))
+					return cachedModel;
+
+				Loggers.getErrorLogger().log(
+					Level.WARNING,
+					"Cached model " + cachedModel + " is corrupted, extracting it again"
+				);
+			}
+
+			return extract(owner, resource, sha256, cachedModel) ? cachedModel : null;
+		} catch (IOException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while caching model: " + resource, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Resolves the path of a model not bundled with SpineWare, i.e. a model the user copied to
+	 * {@link #CACHE_DIR}. The file may not exist
+	 *
+	 * @param file_name name of the model file
+	 * @return the path of the model
+	 */
+	@NotNull
+	public static Path getUserModel(@NotNull String file_name)
+	{
+		return CACHE_DIR.resolve(file_name);
+	}
+
+	/**
+	 * Extracts a resource to the cache. The resource is first written to a temporary file inside the cache dir
+	 * and then (if the checksum is valid) atomically moved to the destination, so other processes never read a
+	 * partially written model
+	 *
+	 * @return true if the model was extracted, false if the resource doesn't exist or the checksum doesn't match
+	 */
+	private static boolean extract(
+		@NotNull Class<?> owner,
+		@NotNull String resource,
+		@NotNull String sha256,
+		@NotNull Path dest
+	) throws IOException
+	{
+		Files.createDirectories(CACHE_DIR);
+		Path tmpModel = Files.createTempFile(CACHE_DIR, dest.getFileName().toString(), ".tmp");
+
+		try (InputStream resourceStream = owner.getResourceAsStream(resource)) {
+			if (resourceStream == null) {
+				Loggers.getErrorLogger().warning("Model " + resource + " is not bundled");
+				return false;
+			}
+
+			String actual_sha256;
+			try (
+				DigestInputStream digestStream = new DigestInputStream(resourceStream, newSha256Digest());
+				OutputStream out = Files.newOutputStream(tmpModel)
+			) {
+				digestStream.transferTo(out);
+				actual_sha256 = HexFormat.of().formatHex(digestStream.getMessageDigest().digest());
+			}
+
+			if (!sha256.equals(actual_sha256)) {
+				Loggers.getErrorLogger().warning(
+					"Checksum of model " + resource + " doesn't match. Expected: " + sha256
+						+ ", actual: " + actual_sha256
+				);
+				return false;
+			}
+
+			Files.move(tmpModel, dest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			Loggers.getDebugLogger().log(Level.INFO, "Model " + resource + " extracted to " + dest);
+			return true;
+		} finally {
+			Files.deleteIfExists(tmpModel);
+		}
+	}
+
+	/**
+	 * @return the SHA-256 checksum (lowercase hex) of the given file
+	 */
+	@NotNull
+	static String computeSha256(@NotNull Path file) throws IOException
+	{
+		MessageDigest digest = newSha256Digest();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(file)) {
+			int n_read;
+			while ((n_read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, n_read);
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	@NotNull
+	private static MessageDigest newSha256Digest()
+	{
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) { // every JVM must support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
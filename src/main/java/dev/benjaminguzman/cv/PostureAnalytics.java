@@ -18,21 +18,152 @@
 
 package dev.benjaminguzman.cv;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+
 /**
  * Wrapper for the parameters indicating the state of the user's posture
  * These parameters include:
  * 1.- Distance to the screen
  * 2.- Margins
  * 3.- Ratio between the face and the screen size
+ * <p>
+ * The parameters describe the last evaluation only. The state notified to the user is decided by a
+ * {@link PostureRule} for each {@link Condition}, which looks at the last few seconds (see
+ * {@link #update(long, int)}), so a single noisy frame doesn't show or hide a notification
  */
 public class PostureAnalytics
 {
+	/**
+	 * An observation of a condition lasts at most this, see {@link PostureRule}
+	 */
+	private static final long MAX_OBSERVATION_MS = 5_000;
+
+	/**
+	 * Conditions about the user that are notified
+	 */
+	public enum Condition
+	{
+		/**
+		 * The user is closer to the screen than {@link CVUtils#SAFE_DISTANCE_CM}
+		 */
+		TOO_CLOSE(3_000, 5_000, 2_000, 3_000),
+
+		/**
+		 * The face of the user is outside the margins
+		 */
+		NOT_IN_CENTER(3_000, 5_000, 2_000, 3_000),
+
+		/**
+		 * More than one face is in front of the camera
+		 */
+		MULTIPLE_FACES(3_000, 5_000, 2_000, 3_000),
+
+		/**
+		 * No face is in front of the camera, i.e. the user is away
+		 */
+		NO_FACE(12_000, 15_000, 2_000, 3_000);
+
+		/**
+		 * Thresholds of the rule, see {@link PostureRule#PostureRule(long, long, long, long, long)}
+		 */
+		private final long enter_ms, enter_window_ms, exit_ms, exit_window_ms;
+
+		Condition(long enter_ms, long enter_window_ms, long exit_ms, long exit_window_ms)
+		{
+			this.enter_ms = enter_ms;
+			this.enter_window_ms = enter_window_ms;
+			this.exit_ms = exit_ms;
+			this.exit_window_ms = exit_window_ms;
+		}
+	}
+
+	private final Map<Condition, PostureRule> rules = new EnumMap<>(Condition.class);
+
+	/**
+	 * Conditions that changed in the last update, reused to avoid allocating a set on each evaluation
+	 */
+	private final EnumSet<Condition> changedConditions = EnumSet.noneOf(Condition.class);
+
 	private double distance = -1;
 	private boolean to_the_left;
 	private boolean to_the_right;
 	private boolean to_the_top;
 	private boolean to_the_bottom;
 
+	public PostureAnalytics()
+	{
+		for (Condition condition : Condition.values())
+			rules.put(condition, new PostureRule(
+				condition.enter_ms,
+				condition.enter_window_ms,
+				condition.exit_ms,
+				condition.exit_window_ms,
+				MAX_OBSERVATION_MS
+			));
+	}
+
+	/**
+	 * Updates the rules with the last evaluation
+	 * <p>
+	 * The rules about the posture (distance and margins) are only updated if a single face was detected, so
+	 * invoke {@link #setDistance(double)} and {@link #updateMargins(boolean, boolean, boolean, boolean)} before
+	 * this. Otherwise, there is nothing to say about the posture and those rules keep their state
+	 *
+	 * @param now_ms  the current time in milliseconds, from a monotonic clock
+	 * @param n_faces the number of faces detected in the last evaluation
+	 * @return the conditions that became active or inactive. The set is reused, it is only valid until the next
+	 * invocation
+	 */
+	@NotNull
+	public EnumSet<Condition> update(long now_ms, int n_faces)
+	{
+		changedConditions.clear();
+		this.updateRule(Condition.NO_FACE, now_ms, n_faces == 0);
+		this.updateRule(Condition.MULTIPLE_FACES, now_ms, n_faces > 1);
+		if (n_faces == 1) {
+			this.updateRule(
+				Condition.TOO_CLOSE,
+				now_ms,
+				distance != -1 && distance < CVUtils.SAFE_DISTANCE_CM
+			);
+			this.updateRule(
+				Condition.NOT_IN_CENTER,
+				now_ms,
+				to_the_left || to_the_right || to_the_top || to_the_bottom
+			);
+		}
+		return changedConditions;
+	}
+
+	private void updateRule(@NotNull Condition condition, long now_ms, boolean value)
+	{
+		if (rules.get(condition).update(now_ms, value))
+			changedConditions.add(condition);
+	}
+
+	/**
+	 * @return true if the rule for the given condition is active, i.e. the condition has been true recently
+	 */
+	public boolean isActive(@NotNull Condition condition)
+	{
+		return rules.get(condition).isActive();
+	}
+
+	/**
+	 * Deactivates all the rules and forgets the last evaluation, e.g. when the user may be in a different
+	 * position
+	 */
+	public void reset()
+	{
+		rules.values().forEach(PostureRule::reset);
+		distance = -1;
+		this.updateMargins(false, false, false, false);
+	}
+
 	/**
 	 * @param to_the_left   if true, indicates the user's face is to the very left of the cam
 	 * @param to_the_right  if true, indicates the user's face is to the very right of the cam
@@ -86,12 +217,11 @@ public class PostureAnalytics
 		return to_the_bottom;
 	}
 
+	/**
+	 * @return true if neither {@link Condition#TOO_CLOSE} nor {@link Condition#NOT_IN_CENTER} is active
+	 */
 	public boolean isPostureOk()
 	{
-		return distance >= CVUtils.SAFE_DISTANCE_CM
-			&& !to_the_left
-			&& !to_the_right
-			&& !to_the_top
-			&& !to_the_bottom;
+		return !this.isActive(Condition.TOO_CLOSE) && !this.isActive(Condition.NOT_IN_CENTER);
 	}
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.benjaminguzman.cv;
+
+import dev.benjaminguzman.utils.SlidingTimeWindow;
+
+/**
+ * A condition about the posture of the user (e.g. "too close to the screen") that becomes active or inactive
+ * based on how long it has been true or false recently, instead of on a single evaluation
+ * <p>
+ * The rule has hysteresis: it becomes active when the condition was true for at least {@code enter_ms} of the
+ * last {@code enter_window_ms}, and it becomes inactive when the condition was false for at least
+ * {@code exit_ms} of the last {@code exit_window_ms}. A single noisy evaluation never toggles the rule
+ * <p>
+ * This class is NOT thread safe
+ */
+public class PostureRule
+{
+	/**
+	 * The windows slide this often
+	 */
+	private static final long BUCKET_MS = 500;
+
+	/**
+	 * Min number of observations needed to activate or deactivate the rule. A single observation counts at most
+	 * {@code 1 / MIN_OBSERVATIONS} of {@code enter_ms} (or {@code exit_ms}), so when the observations are far
+	 * apart (e.g. the posture was stable and the sampling interval grew) one noisy evaluation can't toggle the rule
+	 */
+	public static final int MIN_OBSERVATIONS = 3;
+
+	private final long enter_ms, exit_ms;
+
+	/**
+	 * Max duration of a single observation in the enter and exit windows, see {@link #MIN_OBSERVATIONS}
+	 */
+	private final long max_enter_observation_ms, max_exit_observation_ms;
+
+	/**
+	 * An observation lasts since the previous observation, but at most this, so a long time without
+	 * observations (e.g. the loop was stopped) doesn't count as if the condition had been observed
+	 */
+	private final long max_observation_ms;
+
+	private final SlidingTimeWindow enterWindow;
+	private final SlidingTimeWindow exitWindow;
+
+	private boolean is_active;
+
+	/**
+	 * Time of the last observation, {@link Long#MIN_VALUE} if there are no observations
+	 */
+	private long last_observation_ms = Long.MIN_VALUE;
+
+	/**
+	 * @param enter_ms           how long the condition must be true to activate the rule
+	 * @param enter_window_ms    the window in which {@code enter_ms} is measured
+	 * @param exit_ms            how long the condition must be false to deactivate the rule
+	 * @param exit_window_ms     the window in which {@code exit_ms} is measured
+	 * @param max_observation_ms max duration of a single observation
+	 */
+	public PostureRule(
+		long enter_ms,
+		long enter_window_ms,
+		long exit_ms,
+		long exit_window_ms,
+		long max_observation_ms
+	)
+	{
+		if (enter_ms <= 0 || enter_ms > enter_window_ms || exit_ms <= 0 || exit_ms > exit_window_ms)
+			throw new IllegalArgumentException(
+				"Invalid thresholds. Enter: " + enter_ms + " of " + enter_window_ms + " ms, exit: "
+					+ exit_ms + " of " + exit_window_ms + " ms"
+			);
+
+		this.enter_ms = enter_ms;
+		this.exit_ms = exit_ms;
+		this.max_observation_ms = max_observation_ms;
+		// rounded up, so MIN_OBSERVATIONS long observations are enough
+		this.max_enter_observation_ms = (enter_ms + MIN_OBSERVATIONS - 1) / MIN_OBSERVATIONS;
+		this.max_exit_observation_ms = (exit_ms + MIN_OBSERVATIONS - 1) / MIN_OBSERVATIONS;
+		this.enterWindow = new SlidingTimeWindow(enter_window_ms, (int) Math.max(1, enter_window_ms / BUCKET_MS));
+		this.exitWindow = new SlidingTimeWindow(exit_window_ms, (int) Math.max(1, exit_window_ms / BUCKET_MS));
+	}
+
+	/**
+	 * Adds an observation of the condition. It lasts since the previous observation (the first observation
+	 * only marks the start), but it counts at most {@code 1 / }{@link #MIN_OBSERVATIONS} of the threshold
+	 *
+	 * @param now_ms    the current time in milliseconds, from a monotonic clock
+	 * @param condition the value of the condition
+	 * @return true if the rule became active or inactive
+	 */
+	public boolean update(long now_ms, boolean condition)
+	{
+		long duration_ms = last_observation_ms == Long.MIN_VALUE
+			? 0
+			: Math.min(now_ms - last_observation_ms, max_observation_ms);
+		last_observation_ms = now_ms;
+
+		enterWindow.add(now_ms, Math.min(duration_ms, max_enter_observation_ms), condition);
+		exitWindow.add(now_ms, Math.min(duration_ms, max_exit_observation_ms), condition);
+
+		if (!is_active && enterWindow.getTrueMs(now_ms) >= enter_ms) {
+			is_active = true;
+			exitWindow.clear(); // the condition must be false for exit_ms from now on
+			return true;
+		}
+
+		if (is_active && exitWindow.getFalseMs(now_ms) >= exit_ms) {
+			is_active = false;
+			enterWindow.clear(); // the condition must be true for enter_ms from now on
+			return true;
+		}
+
+		return false;
+	}
+
+	public boolean isActive()
+	{
+		return is_active;
+	}
+
+	/**
+	 * Deactivates the rule and forgets all the observations
+	 */
+	public void reset()
+	{
+		is_active = false;
+		last_observation_ms = Long.MIN_VALUE;
+		enterWindow.clear();
+		exitWindow.clear();
+	}
+}
@@ -21,23 +21,31 @@ package dev.benjaminguzman.gui.cv;
 import dev.benjaminguzman.SpineWare;
 import dev.benjaminguzman.core.Loggers;
 import dev.benjaminguzman.core.NotificationLocation;
+import dev.benjaminguzman.cv.CVManager;
 import dev.benjaminguzman.cv.CVUtils;
+import dev.benjaminguzman.cv.CaptureProfile;
+import dev.benjaminguzman.cv.CameraService;
+import dev.benjaminguzman.cv.FrameContext;
 import dev.benjaminguzman.gui.Hideable;
 import dev.benjaminguzman.gui.Initializable;
 import dev.benjaminguzman.gui.Showable;
 import dev.benjaminguzman.gui.util.NotificationLocationComponent;
 import dev.benjaminguzman.prefs.cv.CVPrefsManager;
 import dev.benjaminguzman.prefs.NotificationPrefsIO;
+import dev.benjaminguzman.utils.CoalescingMailbox;
 import dev.benjaminguzman.utils.DaemonThreadFactory;
-import org.opencv.core.Point;
-import org.opencv.core.*;
-import org.opencv.imgproc.Imgproc;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 
 import javax.swing.*;
 import java.awt.*;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
@@ -48,15 +56,36 @@ public class CVConfigPanel extends JPanel implements Hideable, Showable, Initial
 	 */
 	private static final int FPS = 30;
 
+	/**
+	 * Max time to wait for a frame from the camera
+	 */
+	private static final long CAPTURE_TIMEOUT_MS = 1000;
+
 	private final ProjectionScreen projectionScreen;
 	private final CamCalibrationPanel camCalibrationPanel;
 	private final CamMarginsPanel marginsPanel;
 	private final RefreshRatePanel refreshRateConfigPanel;
 	private final NotificationLocationComponent notificationLocationSelect;
 
-	private final CVUtils cvUtils;
-	private final Scalar CV_RED = new Scalar(0, 0, 255), CV_BLUE = new Scalar(255, 0, 0); // BGR not RGB
-	private ScheduledExecutorService grabberService;
+	/**
+	 * Hands the distances computed in the mirror thread to the EDT. At most one update is pending, if the EDT falls
+	 * behind (e.g. while a dialog is shown) older distances are dropped
+	 */
+	private final CoalescingMailbox<Double> distanceMailbox;
+
+	/**
+	 * The distance to the camera is shown every this number of face detections
+	 */
+	private static final int COMPUTE_DISTANCE_EVERY_N_DETECTIONS = 3;
+
+	private static final Stroke FACE_STROKE = new BasicStroke(3), MARGIN_STROKE = new BasicStroke(2);
+	private static final Font OVERLAY_FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 20);
+
+	/**
+	 * Executes the {@link Mirror} while it is running
+	 */
+	@Nullable
+	private ExecutorService grabberService;
 	/**
 	 * The ideal focal length
 	 * It may be {@link CVUtils#INVALID_IDEAL_FOCAL_LENGTH}
@@ -65,7 +94,6 @@ public class CVConfigPanel extends JPanel implements Hideable, Showable, Initial
 	private int margin_x = 10, margin_y = 10;
 	private int min_acceptable_x, max_acceptable_x, min_acceptable_y, max_acceptable_y;
 	private int frame_width, frame_height;
-	private int compute_distance_countdown = 15;
 
 	/**
 	 * Indicates if there is a dialog currently visible
@@ -76,13 +104,13 @@ public class CVConfigPanel extends JPanel implements Hideable, Showable, Initial
 	public CVConfigPanel()
 	{
 		super();
-		cvUtils = SpineWare.getCVUtils();
-		projectionScreen = new ProjectionScreen();
+		projectionScreen = new ProjectionScreen(CVManager.getMetrics());
 		camCalibrationPanel = new CamCalibrationPanel(
 			this::onHide,
 			this::onShown,
 			() -> setFocalLength(CVPrefsManager.getFocalLength())
 		);
+		distanceMailbox = new CoalescingMailbox<>(SwingUtilities::invokeLater, camCalibrationPanel::updateDistance);
 		marginsPanel = new CamMarginsPanel(this::onSetMarginX, this::onSetMarginY);
 		refreshRateConfigPanel = new RefreshRatePanel((Integer i) -> {
 		} /* just ignore the new values */);
@@ -164,13 +192,12 @@ public class CVConfigPanel extends JPanel implements Hideable, Showable, Initial
 		++gbc.gridy;
 		this.add(notificationLocationSelect, gbc);
 
-		Mat frame;
-		if ((frame = cvUtils.captureFrame()) != null) {
-			projectionScreen.initComponents(frame);
-			this.frame_width = frame.width();
-			this.frame_height = frame.height();
-			frame.release();
-		}
+		// the size of the frames is not known until the camera is opened, assume the requested size
+		// the camera is not opened here, that would block the EDT while OpenCV is loaded
+		CaptureProfile captureProfile = CVPrefsManager.getCaptureProfile();
+		this.frame_width = captureProfile.width;
+		this.frame_height = captureProfile.height;
+		projectionScreen.initComponents(this.frame_width, this.frame_height);
 
 		setFocalLength(CVPrefsManager.getFocalLength());
 
@@ -213,114 +240,66 @@ public class CVConfigPanel extends JPanel implements Hideable, Showable, Initial
 	}
 
 	/**
-	 * Grabs a frame from the webcam and displays it in the projection screen
-	 * This function is intended to be called repeatedly
+	 * Invoked (in the mirror thread) when the size of the frames captured by the camera is not the assumed one
+	 *
+	 * @param width  the width of the frames
+	 * @param height the height of the frames
 	 */
-	private void showMirror()
+	private void onFrameSizeChanged(int width, int height)
 	{
-		Mat frame = cvUtils.captureFrame();
-		if ((frame == null || frame.empty()) && Thread.currentThread().isInterrupted())
-			return;
-
-		if (frame == null) {
-			SwingUtilities.invokeLater(() -> projectionScreen.updateProjectedImage(null));
-			return;
-		}
-		if (this.frame_width == 0 || this.frame_height == 0) {
-			this.frame_width = frame.width();
-			this.frame_height = frame.height();
-		}
+		this.frame_width = width;
+		this.frame_height = height;
+		this.computeMargins();
+		SwingUtilities.invokeLater(() -> {
+			projectionScreen.initComponents(width, height);
+			this.revalidate();
+		});
+	}
 
-		Mat flippedFrame = new Mat();
-		Core.flip(frame, flippedFrame, 1);
-		frame.release();
-		frame = null;
-		List<Rect> detectedFaces = cvUtils.detectFaces(flippedFrame);
-		boolean faces_were_detected = !detectedFaces.isEmpty();
+	/**
+	 * Draws the margins, the face and the error message (if any) on top of the mirror
+	 *
+	 * @param g     the graphics of the mirror
+	 * @param faces the faces detected in the flipped frame
+	 */
+	private void drawOverlay(@NotNull Graphics2D g, @NotNull List<Rect> faces)
+	{
+		boolean faces_were_detected = !faces.isEmpty();
 
 		// show error message if no face was detected or more than 1 face was detected
 		String errorMsg = null;
-		if (detectedFaces.size() > 1)
+		if (faces.size() > 1)
 			errorMsg = SpineWare.messagesBundle.getString("too_many_faces");
 		else if (!faces_were_detected)
 			errorMsg = SpineWare.messagesBundle.getString("no_face_detected");
 
-		if (errorMsg != null)
-			Imgproc.putText(
-				flippedFrame,
-				errorMsg,
-				new Point(10, 30), // top left of the frame
-				Imgproc.FONT_HERSHEY_PLAIN,
-				2.0,
-				new Scalar(0, 0, 255) // BGR
-			);
-
-		// draw rectangles on the detected faces
-		/*for (Rect detectedFaceRect : detectedFaces)
-			Imgproc.rectangle(frame, detectedFaceRect, new Scalar(0, 255, 0), 3);*/
+		if (errorMsg != null) {
+			g.setColor(Color.RED);
+			g.setFont(OVERLAY_FONT);
+			g.drawString(errorMsg, 10, 30); // top left of the frame
+		}
 
-		Rect faceRect = faces_were_detected ? detectedFaces.get(0) : null;
+		Rect faceRect = faces_were_detected ? faces.get(0) : null;
 
-		if (faces_were_detected) // draw just the first detected face to improve performance
-			Imgproc.rectangle(flippedFrame, faceRect, new Scalar(0, 255, 0), 3);
+		if (faces_were_detected) { // draw just the first detected face
+			g.setColor(Color.GREEN);
+			g.setStroke(FACE_STROKE);
+			g.drawRect(faceRect.x, faceRect.y, faceRect.width, faceRect.height);
+		}
 
 		// draw margins
-		Imgproc.line( // vertical margin left
-			flippedFrame,
-			new Point(min_acceptable_x, 0),
-			new Point(min_acceptable_x, this.frame_height),
-			faces_were_detected && faceRect.x < min_acceptable_x ? CV_RED : CV_BLUE,
-			2
-		);
-		Imgproc.line( // vertical margin right
-			flippedFrame,
-			new Point(max_acceptable_x, 0),
-			new Point(max_acceptable_x, this.frame_height),
-			faces_were_detected && faceRect.x + faceRect.width > max_acceptable_x ? CV_RED : CV_BLUE,
-			2
-		);
-		Imgproc.line( // horizontal margin top
-			flippedFrame,
-			new Point(0, min_acceptable_y),
-			new Point(this.frame_width, min_acceptable_y),
-			faces_were_detected && faceRect.y < min_acceptable_y ? CV_RED : CV_BLUE,
-			2
-		);
-		Imgproc.line( // horizontal margin bottom
-			flippedFrame,
-			new Point(0, max_acceptable_y),
-			new Point(this.frame_width, max_acceptable_y),
-			faces_were_detected && faceRect.y + faceRect.height > max_acceptable_y ? CV_RED : CV_BLUE,
-			2
-		);
-
-		SwingUtilities.invokeLater(() -> {
-			projectionScreen.updateProjectedImage(flippedFrame); // update the mirror
-			flippedFrame.release();
-
-			// wait compute_distance_countdown iterations to show the distance
-			// this is done to avoid cluttering the screen (and also performing too many calculations)
-			if (--compute_distance_countdown > 0)
-				return;
+		g.setStroke(MARGIN_STROKE);
+		g.setColor(faces_were_detected && faceRect.x < min_acceptable_x ? Color.RED : Color.BLUE);
+		g.drawLine(min_acceptable_x, 0, min_acceptable_x, this.frame_height); // vertical margin left
 
-			if (this.ideal_focal_length == CVUtils.INVALID_IDEAL_FOCAL_LENGTH) {
-				camCalibrationPanel.updateDistance(0);
-				return;
-			} else if (detectedFaces.isEmpty()) {
-				camCalibrationPanel.updateDistance(-1);
-				return;
-			}
+		g.setColor(faces_were_detected && faceRect.x + faceRect.width > max_acceptable_x ? Color.RED : Color.BLUE);
+		g.drawLine(max_acceptable_x, 0, max_acceptable_x, this.frame_height); // vertical margin right
 
-			camCalibrationPanel.updateDistance(
-				cvUtils.computeDistance(
-					this.ideal_focal_length,
-					detectedFaces.get(0).height,
-					CVUtils.ESTIMATED_FACE_HEIGHT_CM
-				)
-			);
+		g.setColor(faces_were_detected && faceRect.y < min_acceptable_y ? Color.RED : Color.BLUE);
+		g.drawLine(0, min_acceptable_y, this.frame_width, min_acceptable_y); // horizontal margin top
 
-			compute_distance_countdown = 15;
-		});
+		g.setColor(faces_were_detected && faceRect.y + faceRect.height > max_acceptable_y ? Color.RED : Color.BLUE);
+		g.drawLine(0, max_acceptable_y, this.frame_width, max_acceptable_y); // horizontal margin bottom
 	}
 
 	/**
@@ -363,15 +342,16 @@ public class CVConfigPanel extends JPanel implements Hideable, Showable, Initial
 	 */
 	private void startMirror()
 	{
-		if (!cvUtils.getCamCapture().isOpened())
-			cvUtils.open();
+		if (grabberService != null) // already running
+			return;
 
-		grabberService = Executors.newSingleThreadScheduledExecutor(
-			new DaemonThreadFactory("CVPanel-Mirror-Thread")
-		);
-		long period = (long) (1.0 / FPS * 1000);
-		grabberService.scheduleAtFixedRate(this::showMirror, 0, period, TimeUnit.MILLISECONDS);
-		Loggers.getDebugLogger().log(Level.FINE, "Updating the projection screen each " + period + "ms");
+		grabberService = Executors.newSingleThreadExecutor(new DaemonThreadFactory("CVPanel-Mirror-Thread"));
+		// OpenCV is loaded in background (if it has not been loaded), the mirror waits for it in its thread
+		grabberService.execute(new Mirror(
+			SpineWare.initCV(true),
+			TimeUnit.SECONDS.toNanos(1) / CVPrefsManager.getMirrorDetectionRate()
+		));
+		Loggers.getDebugLogger().log(Level.FINE, "Updating the projection screen " + FPS + " times per second");
 	}
 
 	/**
@@ -380,14 +360,13 @@ public class CVConfigPanel extends JPanel implements Hideable, Showable, Initial
 	private void stopMirror()
 	{
 		if (grabberService != null) {
+			// interrupts the mirror, it releases its resources (and the camera) when it stops
 			grabberService.shutdownNow();
-			Loggers.getDebugLogger().log(Level.FINE, "Stopping the \"mirror\"");
-		}
-
-		try {
-			SpineWare.getCVUtils().close();
-		} catch (Exception e) {
-			Loggers.getErrorLogger().log(Level.WARNING, "Error while closing the web cam", e);
+			grabberService = null;
+			Loggers.getDebugLogger().log(
+				Level.FINE,
+				"Stopping the \"mirror\". Dropped distance updates: " + distanceMailbox.getSupersededStates()
+			);
 		}
 
 		projectionScreen.onHide();
@@ -410,4 +389,176 @@ public class CVConfigPanel extends JPanel implements Hideable, Showable, Initial
 	{
 		this.stopMirror();
 	}
+
+	/**
+	 * Grabs frames from the webcam and displays them in the projection screen until the thread is interrupted
+	 * <p>
+	 * Faces are detected at most {@link CVPrefsManager#getMirrorDetectionRate()} times per second, the overlays of
+	 * the frames in between are drawn with the last detected faces
+	 * <p>
+	 * Each time the mirror starts, a new instance is created. Its state is only accessed from its thread, so a
+	 * mirror that is still stopping doesn't interfere with the new one
+	 */
+	private class Mirror implements Runnable
+	{
+		/**
+		 * Completed when OpenCV is loaded
+		 */
+		@NotNull
+		private final CompletableFuture<CVUtils> cvUtilsFuture;
+
+		/**
+		 * Subscription to the camera, it is closed when the mirror stops
+		 * null until OpenCV is loaded or if the camera is not available
+		 */
+		@Nullable
+		private CameraService.Subscription subscription;
+
+		/**
+		 * Buffer where the frames are captured, its native memory is reused for every frame
+		 * It is allocated in the mirror thread once OpenCV is loaded, the constructor runs in the EDT
+		 */
+		private Mat frame;
+
+		/**
+		 * Buffers used to detect the faces, allocated along with {@link #frame}. Faces are detected at the same
+		 * scale as in the CV loop, so the distance shown is consistent with the distance measured by it
+		 */
+		private FrameContext detectionCtx;
+
+		/**
+		 * Min time between two face detections
+		 */
+		private final long detection_interval_ns;
+
+		/**
+		 * Scale of the frames in which faces are detected, see {@link CVPrefsManager#getDetectionScale()}
+		 */
+		private final double detection_scale = CVPrefsManager.getDetectionScale();
+
+		/**
+		 * Faces detected in the last detection (flipped like the mirror) and the time it was performed
+		 * null if no detection has been performed yet
+		 */
+		@Nullable
+		private List<Rect> detectedFaces;
+		private long last_detection_ns;
+
+		private int compute_distance_countdown = COMPUTE_DISTANCE_EVERY_N_DETECTIONS;
+
+		/**
+		 * @param cvUtilsFuture         future completed when OpenCV is loaded, see {@link SpineWare#initCV(boolean)}
+		 * @param detection_interval_ns min time between two face detections
+		 */
+		private Mirror(@NotNull CompletableFuture<CVUtils> cvUtilsFuture, long detection_interval_ns)
+		{
+			this.cvUtilsFuture = cvUtilsFuture;
+			this.detection_interval_ns = detection_interval_ns;
+		}
+
+		@Override
+		public void run()
+		{
+			long period_ns = TimeUnit.SECONDS.toNanos(1) / FPS;
+			long next_frame_ns, sleep_ns;
+			try {
+				// the canvas stays empty while OpenCV is loaded
+				cvUtilsFuture.get();
+				frame = new Mat();
+				detectionCtx = new FrameContext();
+				detectionCtx.setDetectionScale(detection_scale);
+				subscription = SpineWare.getCameraService().subscribe("Mirror");
+
+				next_frame_ns = System.nanoTime();
+				while (!Thread.currentThread().isInterrupted()) {
+					this.showFrame();
+
+					next_frame_ns += period_ns;
+					sleep_ns = next_frame_ns - System.nanoTime();
+					if (sleep_ns > 0)
+						TimeUnit.NANOSECONDS.sleep(sleep_ns);
+					else // behind schedule, don't try to catch up
+						next_frame_ns = System.nanoTime();
+				}
+			} catch (InterruptedException ignored) { // mirror is being stopped
+			} catch (ExecutionException e) {
+				Loggers.getErrorLogger().log(Level.SEVERE, "OpenCV couldn't be loaded, the mirror is not shown", e);
+				projectionScreen.render(null, null);
+			} finally {
+				// the camera is closed if nobody else (e.g. the CV loop) is using it
+				if (subscription != null)
+					subscription.close();
+				if (frame != null)
+					frame.release();
+				if (detectionCtx != null)
+					detectionCtx.release();
+			}
+		}
+
+		/**
+		 * Grabs a frame from the webcam and displays it in the projection screen
+		 *
+		 * @throws InterruptedException if the mirror is stopped while waiting for the frame
+		 */
+		private void showFrame() throws InterruptedException
+		{
+			if (subscription == null) {
+				projectionScreen.render(null, null);
+				return;
+			}
+
+			if (!subscription.nextFrame(frame, CAPTURE_TIMEOUT_MS))
+				return;
+
+			if (frame.width() != frame_width || frame.height() != frame_height)
+				onFrameSizeChanged(frame.width(), frame.height());
+
+			long now_ns = System.nanoTime();
+			if (detectedFaces == null || now_ns - last_detection_ns >= detection_interval_ns) {
+				last_detection_ns = now_ns;
+				this.onFacesDetected(SpineWare.getCVUtils().detectFaces(frame, detectionCtx));
+			}
+
+			// the mirror may have been stopped (and hidden) while the faces were detected
+			if (Thread.currentThread().isInterrupted())
+				return;
+
+			// the projection screen flips the frame, overlays are drawn in the coordinates of the flipped frame
+			List<Rect> faces = detectedFaces;
+			projectionScreen.render(frame, (Graphics2D g) -> drawOverlay(g, faces));
+		}
+
+		/**
+		 * Invoked each time faces are detected
+		 *
+		 * @param faces the faces detected in the (not flipped) frame
+		 */
+		private void onFacesDetected(@NotNull List<Rect> faces)
+		{
+			// flip the faces, so they match the flipped frame shown in the mirror
+			for (Rect face : faces)
+				face.x = frame_width - face.x - face.width;
+			this.detectedFaces = faces;
+
+			// wait compute_distance_countdown detections to show the distance
+			// this is done to avoid cluttering the screen (and also performing too many calculations)
+			if (--compute_distance_countdown > 0)
+				return;
+			compute_distance_countdown = COMPUTE_DISTANCE_EVERY_N_DETECTIONS;
+
+			final double distance;
+			if (ideal_focal_length == CVUtils.INVALID_IDEAL_FOCAL_LENGTH)
+				distance = 0;
+			else if (faces.isEmpty())
+				distance = -1;
+			else
+				distance = SpineWare.getCVUtils().computeDistance(
+					ideal_focal_length,
+					faces.get(0).height,
+					CVUtils.ESTIMATED_FACE_HEIGHT_CM
+				);
+
+			distanceMailbox.post(distance);
+		}
+	}
 }
@@ -21,6 +21,9 @@ package dev.benjaminguzman.gui.cv;
 import dev.benjaminguzman.SpineWare;
 import dev.benjaminguzman.core.Loggers;
 import dev.benjaminguzman.cv.CVUtils;
+import dev.benjaminguzman.cv.CameraService;
+import dev.benjaminguzman.cv.FocalLengthEstimator;
+import dev.benjaminguzman.cv.FrameContext;
 import dev.benjaminguzman.cv.IdealFocalLengthMeasure;
 import dev.benjaminguzman.gui.Colors;
 import dev.benjaminguzman.gui.Fonts;
@@ -36,6 +39,7 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.text.DecimalFormat;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.stream.IntStream;
 
@@ -43,6 +47,27 @@ public class CamCalibrationPanel extends JPanel implements Initializable
 {
 	private static final String DISTANCE_UNITS = "cm";
 
+	/**
+	 * Max time to wait for a frame from the camera
+	 */
+	private static final long CAPTURE_TIMEOUT_MS = 1000;
+
+	/**
+	 * Max time the calibration takes, it finishes earlier if the estimate of the focal length converges
+	 */
+	private static final int MAX_CALIBRATION_TIME_S = 5;
+
+	/**
+	 * Min time between two measurements of the focal length during the calibration
+	 * Consecutive frames are almost equal, measuring all of them would only waste CPU
+	 */
+	private static final long MEASUREMENT_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(200);
+
+	/**
+	 * The calibration finishes when the relative standard error of the focal length is below this
+	 */
+	private static final double CONVERGENCE_TOLERANCE = 0.01;
+
 	/**
 	 * Callback to execute when calibration is being performed
 	 */
@@ -232,11 +257,12 @@ public class CamCalibrationPanel extends JPanel implements Initializable
 		CountDownLatch latch = new CountDownLatch(1);
 
 		// show countdown
+		// the dialog is modal, so the constructor blocks until it is closed
 		SwingUtilities.invokeLater(() -> {
 			is_dialog_visible = true; // value will be changed in the background thread (see below)
 			new CountDownDialog(
 				SpineWare.messagesBundle.getString("performing_calibration") + " (@ " + distanceStr + ")",
-				new WallClock(0, 0, 3),
+				new WallClock(0, 0, MAX_CALIBRATION_TIME_S),
 				latch,
 				SwingUtilities.windowForComponent(this)
 			);
@@ -244,35 +270,59 @@ public class CamCalibrationPanel extends JPanel implements Initializable
 
 		// start calibration
 		Thread calibrationThread = new Thread(() -> {
-			Mat frame;
+			Mat frame = new Mat();
 			CVUtils cvUtils = SpineWare.getCVUtils();
+			// faces are detected at the same scale as in the CV loop, so the measured sizes are consistent
+			FrameContext detectionCtx = new FrameContext();
+			detectionCtx.setDetectionScale(CVPrefsManager.getDetectionScale());
 
-			double avg_focal_length = 0;
-			double n_focal_lengths = 0;
+			FocalLengthEstimator estimator = new FocalLengthEstimator(CONVERGENCE_TOLERANCE);
 			double tmp_focal_length;
-
-			// capture frames while the notification is showing
-			while (latch.getCount() != 0 && !Thread.currentThread().isInterrupted()) {
-				frame = SpineWare.getCVUtils().captureFrame();
-				if (frame == null || frame.empty())
-					continue;
-
-				tmp_focal_length = cvUtils.getIdealFocalLength(
-					distance,
-					CVUtils.ESTIMATED_FACE_HEIGHT_CM,
-					frame
-				);
+			long next_measurement_ns = System.nanoTime(), wait_ns;
+
+			// if the mirror is showing, the frames captured for it are shared with this thread
+			CameraService.Subscription subscription = SpineWare.getCameraService().subscribe("Calibration");
+
+			// capture frames while the notification is showing or until the focal length converges
+			try {
+				while (subscription != null && latch.getCount() != 0 && !Thread.currentThread().isInterrupted()) {
+					// wait for the next measurement, unless the countdown finishes first
+					wait_ns = next_measurement_ns - System.nanoTime();
+					if (wait_ns > 0 && latch.await(wait_ns, TimeUnit.NANOSECONDS))
+						break;
+					next_measurement_ns = System.nanoTime() + MEASUREMENT_INTERVAL_NS;
+
+					if (!subscription.nextFrame(frame, CAPTURE_TIMEOUT_MS))
+						continue;
+
+					tmp_focal_length = cvUtils.getIdealFocalLength(
+						distance,
+						CVUtils.ESTIMATED_FACE_HEIGHT_CM,
+						frame,
+						detectionCtx
+					);
+					if (tmp_focal_length == -1)
+						continue;
+
+					estimator.add(tmp_focal_length);
+					if (estimator.hasConverged()) {
+						// the dialog closes itself once it sees the latch counted down
+						latch.countDown();
+						break;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (subscription != null)
+					subscription.close();
 				frame.release();
-				if (tmp_focal_length == -1)
-					continue;
-
-				avg_focal_length += tmp_focal_length;
-				++n_focal_lengths;
+				detectionCtx.release();
 			}
 			is_dialog_visible = false;
 
 			// if not enough frames were captured, notify the user
-			if (n_focal_lengths <= 2) {
+			if (!estimator.hasEnoughMeasurements()) {
 				SwingUtilities.invokeLater(() -> JOptionPane.showConfirmDialog(
 					this,
 					SpineWare.messagesBundle.getString("no_face_detected") + ".\nTry again.",
@@ -281,14 +331,17 @@ public class CamCalibrationPanel extends JPanel implements Initializable
 					JOptionPane.WARNING_MESSAGE
 				));
 			} else {
-				avg_focal_length /= n_focal_lengths;
+				double focal_length = estimator.getEstimate();
+				double confidence = estimator.getConfidence();
 
 				Loggers.getDebugLogger().log(
 					Level.FINE,
-					"Average IDEAL focal length at distance " + distanceStr + " is: " + avg_focal_length
+					"IDEAL focal length at distance " + distanceStr + " is: " + focal_length
+						+ ". Measurements: " + estimator.getMeasurements() + ", confidence: " + confidence
+						+ ", converged: " + estimator.hasConverged()
 				);
 
-				CVPrefsManager.saveFocalLength(new IdealFocalLengthMeasure(distance, avg_focal_length));
+				CVPrefsManager.saveFocalLength(new IdealFocalLengthMeasure(distance, focal_length, confidence));
 				this.recomputeFocalLength.run();
 			}
 
@@ -20,62 +20,220 @@ package dev.benjaminguzman.gui.cv;
 
 import dev.benjaminguzman.SpineWare;
 import dev.benjaminguzman.core.Loggers;
+import dev.benjaminguzman.cv.CVMetrics;
 import dev.benjaminguzman.gui.Hideable;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.highgui.HighGui;
 
 import javax.imageio.ImageIO;
-import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 
+/**
+ * Canvas showing the mirror of the configuration panel
+ * <p>
+ * The mirror is rendered actively with a {@link BufferStrategy} from the thread producing the frames (see
+ * {@link #render(Mat, Consumer)}), so frames don't wait for (nor delay) the rest of the Swing work in the EDT.
+ * Frames arriving faster than the refresh rate of the display are dropped, they would never be seen anyway
+ */
 public class ProjectionScreen extends Canvas implements Hideable
 {
-	private Graphics graphics; // the graphics object for this Canvas
+	/**
+	 * Refresh rate assumed if the refresh rate of the display is unknown
+	 */
+	private static final int DEFAULT_REFRESH_RATE = 60;
+
+	/**
+	 * Number of buffers of the buffer strategy (double buffering)
+	 */
+	private static final int N_BUFFERS = 2;
+
+	@NotNull
+	private final CVMetrics metrics;
+
+	/**
+	 * Guards the render surface and the images, the frames are rendered from the mirror thread but the canvas is
+	 * hidden from the EDT
+	 */
+	private final Object renderLock = new Object();
+
+	@Nullable
+	private BufferStrategy bufferStrategy;
 
 	private Image technicalDifficultiesImg;
 
-	public ProjectionScreen()
+	/**
+	 * Image where the frames are converted (see {@link #toBufferedImage(Mat)}). It is reused while the size and
+	 * type of the frames don't change, so no image is allocated per frame
+	 */
+	@Nullable
+	private BufferedImage projectedImage;
+
+	/**
+	 * The array backing {@link #projectedImage}
+	 */
+	@Nullable
+	private byte[] projectedImageData;
+
+	/**
+	 * Min time between two rendered frames, i.e. the period of the display, and the time the last frame was rendered
+	 */
+	private long min_render_interval_ns;
+	private long last_render_ns;
+
+	/**
+	 * @param metrics the metrics where the rendered and dropped frames are counted
+	 */
+	public ProjectionScreen(@NotNull CVMetrics metrics)
+	{
+		this.metrics = metrics;
+		// the canvas is painted only by render(), nothing is painted from the EDT
+		this.setIgnoreRepaint(true);
+	}
+
+	/**
+	 * Sets the size of the canvas, it should be the size of the frames
+	 *
+	 * @param width  the width of the frames
+	 * @param height the height of the frames
+	 */
+	public void initComponents(int width, int height)
+	{
+		Dimension size = new Dimension(width, height);
+		this.setPreferredSize(size);
+		this.setSize(size);
+	}
+
+	/**
+	 * Renders the frame on the canvas, flipped horizontally (like a mirror). This can be invoked from any thread (not
+	 * necessarily the EDT)
+	 * <p>
+	 * If the previous frame was rendered less than a display period ago or the canvas is not showing, the frame
+	 * is dropped
+	 *
+	 * @param frame   the frame to be projected, it will be automatically converted from {@link Mat} to
+	 *                {@link Image}. If it is null or empty an error image is shown
+	 * @param overlay draws on top of the flipped frame, in the coordinates of the flipped frame. It is not invoked if
+	 *                the error image is shown
+	 */
+	public void render(@Nullable Mat frame, @Nullable Consumer<Graphics2D> overlay)
 	{
+		synchronized (renderLock) {
+			long start_ns = System.nanoTime();
+			if (last_render_ns != 0 && start_ns - last_render_ns < min_render_interval_ns) {
+				metrics.onMirrorFrameThrottled();
+				return;
+			}
+
+			BufferStrategy strategy = this.getBufferStrategyIfDisplayable();
+			if (strategy == null) {
+				metrics.onMirrorFrameUnrendered();
+				return;
+			}
 
+			boolean is_error = frame == null || frame.empty();
+			Image image = is_error ? this.getErrorImage() : this.toBufferedImage(frame);
+			try {
+				// see the docs of BufferStrategy, the contents of the buffers may be lost at any time
+				do {
+					do {
+						Graphics2D graphics = (Graphics2D) strategy.getDrawGraphics();
+						try {
+							if (is_error) {
+								graphics.drawImage(image, 0, 0, null);
+							} else {
+								// a negative width flips the image while it is drawn, no copy is needed
+								int width = frame.width(), height = frame.height();
+								graphics.drawImage(image, width, 0, -width, height, null);
+								if (overlay != null)
+									overlay.accept(graphics);
+							}
+						} finally {
+							graphics.dispose();
+						}
+					} while (strategy.contentsRestored());
+					strategy.show();
+				} while (strategy.contentsLost());
+			} catch (IllegalStateException e) { // the canvas was removed concurrently
+				bufferStrategy = null;
+				metrics.onMirrorFrameUnrendered();
+				return;
+			}
+			// otherwise, some systems (e.g. Linux) queue the rendering and the frames are shown in bursts
+			Toolkit.getDefaultToolkit().sync();
+
+			last_render_ns = start_ns;
+			metrics.getMirrorRenderTimer().record(start_ns);
+		}
 	}
 
-	public void initComponents(@NotNull Mat frame)
+	/**
+	 * Creates the buffer strategy if needed. Must be invoked while holding {@link #renderLock}
+	 *
+	 * @return the buffer strategy or null if the canvas is not showing (e.g. it has not been added to a visible
+	 * window)
+	 */
+	@Nullable
+	private BufferStrategy getBufferStrategyIfDisplayable()
 	{
-		this.setSize(frame.width(), frame.height());
+		if (!this.isShowing())
+			return null;
+
+		if (bufferStrategy == null) {
+			this.createBufferStrategy(N_BUFFERS);
+			bufferStrategy = this.getBufferStrategy();
+
+			GraphicsConfiguration graphicsConfiguration = this.getGraphicsConfiguration();
+			int refresh_rate = graphicsConfiguration == null
+				? DisplayMode.REFRESH_RATE_UNKNOWN
+				: graphicsConfiguration.getDevice().getDisplayMode().getRefreshRate();
+			if (refresh_rate == DisplayMode.REFRESH_RATE_UNKNOWN)
+				refresh_rate = DEFAULT_REFRESH_RATE;
+			min_render_interval_ns = TimeUnit.SECONDS.toNanos(1) / refresh_rate;
+		}
+
+		return bufferStrategy;
 	}
 
 	/**
-	 * Updates the projected image and repaints it on the canvas
+	 * Converts the frame to an image with a single bulk copy into the array backing {@link #projectedImage}
+	 * The image is only reallocated if the size or type of the frame changes
+	 * Must be invoked while holding {@link #renderLock}
 	 *
-	 * @param frame the frame to be projected, it will be automatically converted from {@link Mat} to {@link Image}.
-	 *              The frame will be released with {@link Mat#release()} so you'd better not use it after this
+	 * @param frame the BGR or grayscale frame
+	 * @return the image, it is overwritten on the next invocation
 	 */
-	public void updateProjectedImage(@Nullable Mat frame)
+	@NotNull
+	private Image toBufferedImage(@NotNull Mat frame)
 	{
-		assert SwingUtilities.isEventDispatchThread();
-		//System.out.println("Is AWT: " + SwingUtilities.isEventDispatchThread());
-
-		if (graphics == null && ((graphics = this.getGraphics()) == null))
-			return;
-
-		if (frame == null || frame.empty()) {
-			graphics.drawImage(
-				this.getErrorImage(),
-				0,
-				0,
-				this
-			);
-			return;
+		int image_type;
+		if (frame.type() == CvType.CV_8UC3)
+			image_type = BufferedImage.TYPE_3BYTE_BGR; // same layout as the Mat, no conversion needed
+		else if (frame.type() == CvType.CV_8UC1)
+			image_type = BufferedImage.TYPE_BYTE_GRAY;
+		else
+			return HighGui.toBufferedImage(frame);
+
+		if (projectedImage == null
+			|| projectedImage.getWidth() != frame.width()
+			|| projectedImage.getHeight() != frame.height()
+			|| projectedImage.getType() != image_type) {
+			projectedImage = new BufferedImage(frame.width(), frame.height(), image_type);
+			projectedImageData = ((DataBufferByte) projectedImage.getRaster().getDataBuffer()).getData();
 		}
 
-		Image projectedImage = HighGui.toBufferedImage(frame);
-		graphics.drawImage(projectedImage, 0, 0, this);
-		projectedImage.flush();
+		frame.get(0, 0, projectedImageData);
+		return projectedImage;
 	}
 
 	private Image getErrorImage()
@@ -115,6 +273,21 @@ public class ProjectionScreen extends Canvas implements Hideable
 	@Override
 	public void onHide()
 	{
-		this.graphics = null;
+		synchronized (renderLock) {
+			// the mirror is not shown anymore, free the memory
+			this.projectedImage = null;
+			this.projectedImageData = null;
+			this.last_render_ns = 0;
+		}
+	}
+
+	@Override
+	public void removeNotify()
+	{
+		synchronized (renderLock) {
+			// the buffer strategy is destroyed along with the peer
+			this.bufferStrategy = null;
+		}
+		super.removeNotify();
 	}
 }
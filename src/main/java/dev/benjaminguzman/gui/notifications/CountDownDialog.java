@@ -223,10 +223,22 @@ public class CountDownDialog extends JDialog
 		CountDownDialog.spineWareIcon = new ImageIcon(icon);
 	}
 
+	/**
+	 * Invoked each second by {@link #timerCountDown}
+	 * <p>
+	 * If the latch was counted down by someone else (e.g. the work the countdown waits for finished earlier), the
+	 * dialog is disposed. This way the dialog can be closed from any thread, even if it is modal and the reference
+	 * to it is not available yet (the constructor blocks until a modal dialog is closed)
+	 */
 	public void countDown()
 	{
 		assert SwingUtilities.isEventDispatchThread();
 
+		if (this.countDownLatch != null && this.countDownLatch.getCount() == 0) {
+			this.dispose();
+			return;
+		}
+
 		if (!this.countDownTime.subtractSeconds((byte) 1)) { // if the subtraction could not be done because timer is at 0
 			this.dispose();
 			return;
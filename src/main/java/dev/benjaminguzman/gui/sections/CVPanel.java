@@ -102,7 +102,9 @@ public class CVPanel extends AbstractSection
 		// add listeners
 		featureEnabledCheckBox.addActionListener(e -> {
 			CVPrefsManager.setFeatureEnabled(featureEnabledCheckBox.isSelected());
-			cvConfigPanel.setEnabled(featureEnabledCheckBox.isSelected());
+			if (featureEnabledCheckBox.isSelected())
+				SpineWare.initCV(true); // load OpenCV in background (with warm-up), if it has not been loaded
+			cvConfigPanel.setEnabled(featureEnabledCheckBox.isSelected()); // the mirror waits for OpenCV
 			if (!featureEnabledCheckBox.isSelected())
 				CVManager.stopCVLoop();
 			// CVManager.startCVLoop(); will be invoked in the hook onHide
@@ -134,7 +136,7 @@ public class CVPanel extends AbstractSection
 	@Override
 	public void onShown()
 	{
-		CVManager.stopCVLoop(false);
+		CVManager.stopCVLoop();
 		cvConfigPanel.onShown();
 	}
 
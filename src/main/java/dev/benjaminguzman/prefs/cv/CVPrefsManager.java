@@ -20,6 +20,8 @@ package dev.benjaminguzman.prefs.cv;
 
 import dev.benjaminguzman.core.Loggers;
 import dev.benjaminguzman.cv.CVPrefs;
+import dev.benjaminguzman.cv.CaptureProfile;
+import dev.benjaminguzman.cv.FaceDetectorType;
 import dev.benjaminguzman.cv.CVUtils;
 import dev.benjaminguzman.cv.IdealFocalLengthMeasure;
 import dev.benjaminguzman.prefs.NotificationPrefsIO;
@@ -41,6 +43,51 @@ public class CVPrefsManager
 	 */
 	public static final int DEFAULT_REFRESH_RATE_MS = 700;
 	private static final String REFRESH_RATE_KEY = "refresh rate";
+	/**
+	 * Default max time between captures while the posture is stable (see
+	 * {@link dev.benjaminguzman.cv.AdaptiveSampler})
+	 */
+	public static final int DEFAULT_MAX_REFRESH_RATE_MS = 5_000;
+	private static final String MAX_REFRESH_RATE_KEY = "max refresh rate";
+	/**
+	 * Default percentage of one core the CV features can use (see {@link dev.benjaminguzman.cv.CpuGovernor})
+	 */
+	public static final double DEFAULT_CPU_BUDGET_PERCENT = 2;
+	private static final String CPU_BUDGET_KEY = "cpu budget";
+	private static final String DUTY_CYCLE_ENABLED_KEY = "duty cycle enabled";
+	/**
+	 * Default number of times per second faces are detected in the mirror of the configuration panel. The mirror
+	 * itself is rendered at the frame rate of the camera
+	 */
+	public static final int DEFAULT_MIRROR_DETECTION_RATE = 5;
+	private static final String MIRROR_DETECTION_RATE_KEY = "mirror detection rate";
+	/**
+	 * Default scale of the frame in which faces are detected. Faces must be at least 20% of the frame, so they're
+	 * still big enough in a frame with half the resolution
+	 */
+	public static final double DEFAULT_DETECTION_SCALE = 0.5;
+	private static final String DETECTION_SCALE_KEY = "detection scale";
+	/**
+	 * Default profile requested to the camera. A low resolution uncompressed stream is enough to check the
+	 * posture and avoids decoding MJPG frames, a buffer of 1 frame keeps captured frames fresh
+	 */
+	public static final CaptureProfile DEFAULT_CAPTURE_PROFILE = new CaptureProfile(
+		640,
+		480,
+		CaptureProfile.FOURCC_YUYV,
+		15,
+		1
+	);
+	private static final String CAPTURE_WIDTH_KEY = "capture width";
+	private static final String CAPTURE_HEIGHT_KEY = "capture height";
+	private static final String CAPTURE_FOURCC_KEY = "capture fourcc";
+	private static final String CAPTURE_FPS_KEY = "capture fps";
+	private static final String CAPTURE_BUFFER_SIZE_KEY = "capture buffer size";
+	/**
+	 * Default algorithm used to detect faces, the fastest one
+	 */
+	public static final FaceDetectorType DEFAULT_FACE_DETECTOR_TYPE = FaceDetectorType.LBP_CASCADE;
+	private static final String FACE_DETECTOR_KEY = "face detector";
 
 	private CVPrefsManager() // prevent instantiation
 	{
@@ -60,6 +107,7 @@ public class CVPrefsManager
 
 	/**
 	 * Gets the average ideal focal length from the saved focal lengths
+	 * Each focal length is weighted by its confidence, focal lengths with unknown confidence have full weight
 	 *
 	 * @return the average focal length or {@link CVUtils#INVALID_IDEAL_FOCAL_LENGTH} if nothing has been saved
 	 */
@@ -70,6 +118,19 @@ public class CVPrefsManager
 		if (fLengths.isEmpty())
 			return CVUtils.INVALID_IDEAL_FOCAL_LENGTH;
 
+		double weighted_sum = 0, weights_sum = 0, weight;
+		for (IdealFocalLengthMeasure fLength : fLengths) {
+			weight = fLength.getConfidence() == IdealFocalLengthMeasure.UNKNOWN_CONFIDENCE
+				? 1
+				: fLength.getConfidence();
+			weighted_sum += weight * fLength.getIdealFocalLength();
+			weights_sum += weight;
+		}
+
+		if (weights_sum > 0)
+			return weighted_sum / weights_sum;
+
+		// all confidences are 0
 		OptionalDouble fLengthAvg = fLengths.stream()
 			.mapToDouble(IdealFocalLengthMeasure::getIdealFocalLength)
 			.average();
@@ -129,6 +190,33 @@ public class CVPrefsManager
 		}
 	}
 
+	/**
+	 * @return true if the camera is only opened to capture a burst of frames on each refresh, see
+	 * {@link dev.benjaminguzman.cv.CVLoop#captureBurst()}
+	 */
+	public static boolean isDutyCycleEnabled()
+	{
+		try {
+			cvPrefs.sync();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while syncing prefs", e);
+		}
+		return cvPrefs.getBoolean(DUTY_CYCLE_ENABLED_KEY, false);
+	}
+
+	/**
+	 * @param enabled if true the camera will only be opened to capture a burst of frames on each refresh
+	 */
+	public static void setDutyCycleEnabled(boolean enabled)
+	{
+		cvPrefs.putBoolean(DUTY_CYCLE_ENABLED_KEY, enabled);
+		try {
+			cvPrefs.flush();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while flushing prefs", e);
+		}
+	}
+
 	/**
 	 * Saves the refresh rate in the preferences
 	 *
@@ -159,6 +247,222 @@ public class CVPrefsManager
 		return cvPrefs.getInt(REFRESH_RATE_KEY, DEFAULT_REFRESH_RATE_MS);
 	}
 
+	/**
+	 * Saves the max time between captures while the posture is stable
+	 *
+	 * @param max_refresh_rate the max refresh rate in milliseconds to be saved. If it is not greater than the
+	 *                         refresh rate, frames are always captured at the refresh rate
+	 */
+	public static void saveMaxRefreshRate(int max_refresh_rate)
+	{
+		if (max_refresh_rate <= 0)
+			throw new IllegalArgumentException("Max refresh rate must be positive: " + max_refresh_rate);
+
+		cvPrefs.putInt(MAX_REFRESH_RATE_KEY, max_refresh_rate);
+		try {
+			cvPrefs.flush();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while flushing prefs", e);
+		}
+	}
+
+	/**
+	 * Gets the saved max time between captures while the posture is stable
+	 *
+	 * @return the saved max refresh rate or the default {@link #DEFAULT_MAX_REFRESH_RATE_MS}
+	 */
+	public static int getMaxRefreshRate()
+	{
+		try {
+			cvPrefs.sync();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while syncing prefs", e);
+		}
+		return cvPrefs.getInt(MAX_REFRESH_RATE_KEY, DEFAULT_MAX_REFRESH_RATE_MS);
+	}
+
+	/**
+	 * Saves the percentage of one core the CV features can use
+	 *
+	 * @param cpu_budget_percent the percentage, e.g. 2 for 2% of one core
+	 */
+	public static void saveCpuBudget(double cpu_budget_percent)
+	{
+		if (cpu_budget_percent <= 0)
+			throw new IllegalArgumentException("CPU budget must be positive: " + cpu_budget_percent);
+
+		cvPrefs.putDouble(CPU_BUDGET_KEY, cpu_budget_percent);
+		try {
+			cvPrefs.flush();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while flushing prefs", e);
+		}
+	}
+
+	/**
+	 * Gets the saved percentage of one core the CV features can use
+	 *
+	 * @return the saved CPU budget or the default {@link #DEFAULT_CPU_BUDGET_PERCENT}
+	 */
+	public static double getCpuBudget()
+	{
+		try {
+			cvPrefs.sync();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while syncing prefs", e);
+		}
+		return cvPrefs.getDouble(CPU_BUDGET_KEY, DEFAULT_CPU_BUDGET_PERCENT);
+	}
+
+	/**
+	 * Saves the number of times per second faces are detected in the mirror of the configuration panel
+	 *
+	 * @param detection_rate the number of detections per second
+	 */
+	public static void saveMirrorDetectionRate(int detection_rate)
+	{
+		if (detection_rate <= 0)
+			throw new IllegalArgumentException("Mirror detection rate must be positive: " + detection_rate);
+
+		cvPrefs.putInt(MIRROR_DETECTION_RATE_KEY, detection_rate);
+		try {
+			cvPrefs.flush();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while flushing prefs", e);
+		}
+	}
+
+	/**
+	 * Gets the saved number of times per second faces are detected in the mirror of the configuration panel
+	 *
+	 * @return the saved rate or {@link #DEFAULT_MIRROR_DETECTION_RATE} if nothing valid has been saved
+	 */
+	public static int getMirrorDetectionRate()
+	{
+		try {
+			cvPrefs.sync();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while syncing prefs", e);
+		}
+		int detection_rate = cvPrefs.getInt(MIRROR_DETECTION_RATE_KEY, DEFAULT_MIRROR_DETECTION_RATE);
+		return detection_rate <= 0 ? DEFAULT_MIRROR_DETECTION_RATE : detection_rate;
+	}
+
+	/**
+	 * Saves the scale of the frame in which faces are detected
+	 *
+	 * @param detection_scale the scale, a value in the range (0, 1]
+	 */
+	public static void saveDetectionScale(double detection_scale)
+	{
+		if (detection_scale <= 0 || detection_scale > 1)
+			throw new IllegalArgumentException("Detection scale must be in the range (0, 1]: " + detection_scale);
+
+		cvPrefs.putDouble(DETECTION_SCALE_KEY, detection_scale);
+		try {
+			cvPrefs.flush();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while flushing prefs", e);
+		}
+	}
+
+	/**
+	 * Gets the saved scale of the frame in which faces are detected
+	 *
+	 * @return the saved scale or {@link #DEFAULT_DETECTION_SCALE} if nothing valid has been saved
+	 */
+	public static double getDetectionScale()
+	{
+		try {
+			cvPrefs.sync();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while syncing prefs", e);
+		}
+		double detection_scale = cvPrefs.getDouble(DETECTION_SCALE_KEY, DEFAULT_DETECTION_SCALE);
+		return detection_scale <= 0 || detection_scale > 1 ? DEFAULT_DETECTION_SCALE : detection_scale;
+	}
+
+	/**
+	 * Saves the profile requested to the camera
+	 *
+	 * @param captureProfile the profile, it must be valid (see {@link CaptureProfile#isValid()})
+	 */
+	public static void saveCaptureProfile(CaptureProfile captureProfile)
+	{
+		if (!captureProfile.isValid())
+			throw new IllegalArgumentException("Invalid capture profile: " + captureProfile);
+
+		cvPrefs.putInt(CAPTURE_WIDTH_KEY, captureProfile.width);
+		cvPrefs.putInt(CAPTURE_HEIGHT_KEY, captureProfile.height);
+		if (captureProfile.fourcc == null)
+			cvPrefs.remove(CAPTURE_FOURCC_KEY);
+		else
+			cvPrefs.put(CAPTURE_FOURCC_KEY, captureProfile.fourcc);
+		cvPrefs.putDouble(CAPTURE_FPS_KEY, captureProfile.fps);
+		cvPrefs.putInt(CAPTURE_BUFFER_SIZE_KEY, captureProfile.buffer_size);
+		try {
+			cvPrefs.flush();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while flushing prefs", e);
+		}
+	}
+
+	/**
+	 * Gets the saved profile requested to the camera
+	 *
+	 * @return the saved profile or {@link #DEFAULT_CAPTURE_PROFILE} if nothing valid has been saved
+	 */
+	public static CaptureProfile getCaptureProfile()
+	{
+		try {
+			cvPrefs.sync();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while syncing prefs", e);
+		}
+		if (cvPrefs.get(CAPTURE_WIDTH_KEY, null) == null)
+			return DEFAULT_CAPTURE_PROFILE;
+
+		CaptureProfile captureProfile = new CaptureProfile(
+			cvPrefs.getInt(CAPTURE_WIDTH_KEY, DEFAULT_CAPTURE_PROFILE.width),
+			cvPrefs.getInt(CAPTURE_HEIGHT_KEY, DEFAULT_CAPTURE_PROFILE.height),
+			cvPrefs.get(CAPTURE_FOURCC_KEY, null),
+			cvPrefs.getDouble(CAPTURE_FPS_KEY, DEFAULT_CAPTURE_PROFILE.fps),
+			cvPrefs.getInt(CAPTURE_BUFFER_SIZE_KEY, DEFAULT_CAPTURE_PROFILE.buffer_size)
+		);
+		return captureProfile.isValid() ? captureProfile : DEFAULT_CAPTURE_PROFILE;
+	}
+
+	/**
+	 * Saves the algorithm used to detect faces
+	 *
+	 * @param faceDetectorType the type of the detector
+	 */
+	public static void saveFaceDetectorType(FaceDetectorType faceDetectorType)
+	{
+		cvPrefs.put(FACE_DETECTOR_KEY, faceDetectorType.getName());
+		try {
+			cvPrefs.flush();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while flushing prefs", e);
+		}
+	}
+
+	/**
+	 * Gets the saved algorithm used to detect faces
+	 *
+	 * @return the saved type or {@link #DEFAULT_FACE_DETECTOR_TYPE} if nothing valid has been saved
+	 */
+	public static FaceDetectorType getFaceDetectorType()
+	{
+		try {
+			cvPrefs.sync();
+		} catch (BackingStoreException e) {
+			Loggers.getErrorLogger().log(Level.WARNING, "Error while syncing prefs", e);
+		}
+		return FaceDetectorType.getInstance(cvPrefs.get(FACE_DETECTOR_KEY, DEFAULT_FACE_DETECTOR_TYPE.getName()))
+			.orElse(DEFAULT_FACE_DETECTOR_TYPE);
+	}
+
 	/**
 	 * @return true if the camera has been calibrated (and the ideal focal length has been calculated)
 	 */
@@ -178,7 +482,13 @@ public class CVPrefsManager
 			NotificationPrefsIO.getNotificationPrefLocation(
 				true, // ignore cached values
 				NotificationPrefsIO.NotificationPreferenceType.CV_NOTIFICATION
-			)
+			),
+			getDetectionScale(),
+			getCaptureProfile(),
+			getFaceDetectorType(),
+			getMaxRefreshRate(),
+			getCpuBudget(),
+			isDutyCycleEnabled()
 		);
 	}
 }
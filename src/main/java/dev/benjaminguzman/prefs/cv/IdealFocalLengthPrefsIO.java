@@ -34,6 +34,10 @@ import java.util.prefs.Preferences;
 public class IdealFocalLengthPrefsIO extends PrefsIO
 {
 	private static final String IDEAL_FOCAL_LENGTH_PREFIX = "ideal focal length";
+	/**
+	 * Prefix of the keys of the confidences. It must not contain {@link #IDEAL_FOCAL_LENGTH_PREFIX}
+	 */
+	private static final String CONFIDENCE_PREFIX = "focal length confidence";
 
 	public IdealFocalLengthPrefsIO()
 	{
@@ -51,6 +55,10 @@ public class IdealFocalLengthPrefsIO extends PrefsIO
 			IDEAL_FOCAL_LENGTH_PREFIX + fLengthMeasure.getDistance(),
 			fLengthMeasure.getIdealFocalLength()
 		);
+		this.prefs.putDouble(
+			CONFIDENCE_PREFIX + fLengthMeasure.getDistance(),
+			fLengthMeasure.getConfidence()
+		);
 
 		flushPrefs();
 	}
@@ -71,9 +79,14 @@ public class IdealFocalLengthPrefsIO extends PrefsIO
 				if (!key.contains(IDEAL_FOCAL_LENGTH_PREFIX))
 					continue;
 
+				String distanceStr = key.replace(IDEAL_FOCAL_LENGTH_PREFIX, "");
 				fLengths.add(new IdealFocalLengthMeasure(
-					Double.parseDouble(key.replace(IDEAL_FOCAL_LENGTH_PREFIX, "").trim()),
-					this.prefs.getDouble(key, CVUtils.INVALID_IDEAL_FOCAL_LENGTH)
+					Double.parseDouble(distanceStr.trim()),
+					this.prefs.getDouble(key, CVUtils.INVALID_IDEAL_FOCAL_LENGTH),
+					this.prefs.getDouble(
+						CONFIDENCE_PREFIX + distanceStr,
+						IdealFocalLengthMeasure.UNKNOWN_CONFIDENCE
+					)
 				));
 			}
 		} catch (BackingStoreException e) {
@@ -95,7 +108,8 @@ public class IdealFocalLengthPrefsIO extends PrefsIO
 		try {
 			// remove only the focal length preferences
 			Arrays.stream(this.prefs.keys())
-				.filter(prefName -> prefName.contains(IDEAL_FOCAL_LENGTH_PREFIX))
+				.filter(prefName -> prefName.contains(IDEAL_FOCAL_LENGTH_PREFIX)
+					|| prefName.contains(CONFIDENCE_PREFIX))
 				.forEach(prefs::remove);
 		} catch (BackingStoreException e) {
 			Loggers.getErrorLogger().log(
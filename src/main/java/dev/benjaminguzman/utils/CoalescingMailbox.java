@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.benjaminguzman.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Single slot used to publish the latest state from a producer thread to a consumer running in an executor
+ * (e.g. the Swing event dispatch thread)
+ * <p>
+ * Unlike posting a task for each state, states coalesce: if several states are posted before the consumer runs,
+ * only the latest one is consumed, and a task is only submitted to the executor if none is pending. A state equal
+ * to the previously posted one is ignored. The producer never blocks
+ * <p>
+ * This class is thread safe and lock-free
+ *
+ * @param <T> the type of the states
+ */
+public class CoalescingMailbox<T>
+{
+	@NotNull
+	private final Executor executor;
+
+	@NotNull
+	private final Consumer<T> consumer;
+
+	/**
+	 * Latest posted state
+	 */
+	private final AtomicReference<T> latest = new AtomicReference<>();
+
+	/**
+	 * Latest consumed state, only accessed from the executor
+	 */
+	private T lastConsumed;
+
+	/**
+	 * True if a task consuming the pending state has been submitted and has not started yet
+	 */
+	private final AtomicBoolean is_drain_scheduled = new AtomicBoolean();
+
+	/**
+	 * Number of states replaced by a newer state before they were consumed
+	 */
+	private final AtomicLong supersededStates = new AtomicLong();
+
+	/**
+	 * @param executor the executor where the states are consumed, e.g. {@code SwingUtilities::invokeLater}. It
+	 *                 must execute the tasks one at a time
+	 * @param consumer the consumer of the states
+	 */
+	public CoalescingMailbox(@NotNull Executor executor, @NotNull Consumer<T> consumer)
+	{
+		this.executor = executor;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Publishes a state. If it is equal to the previously posted state, nothing is done
+	 *
+	 * @param state the new state
+	 * @return true if a task was submitted to the executor, false if the state didn't change or a task was
+	 * already pending (the pending task will consume this state)
+	 */
+	public boolean post(@NotNull T state)
+	{
+		if (Objects.equals(latest.getAndSet(state), state))
+			return false;
+
+		if (!is_drain_scheduled.compareAndSet(false, true)) {
+			// the pending task has not read the previous state yet, so it will never be consumed
+			supersededStates.incrementAndGet();
+			return false;
+		}
+
+		executor.execute(this::drain);
+		return true;
+	}
+
+	/**
+	 * @return the number of states that were replaced by a newer state before they were consumed
+	 */
+	public long getSupersededStates()
+	{
+		return supersededStates.get();
+	}
+
+	/**
+	 * Consumes the latest state if it is not equal to the last consumed state. Executed in the executor
+	 * <p>
+	 * States are compared with {@link Object#equals(Object)}, like in {@link #post(Object)}
+	 */
+	private void drain()
+	{
+		// clear the flag before reading the state, so a state posted from now on schedules another task
+		is_drain_scheduled.set(false);
+		T state = latest.get();
+		if (Objects.equals(state, lastConsumed))
+			return;
+
+		lastConsumed = state;
+		consumer.accept(state);
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.Consumer;
+
+/**
+ * Single slot used to hand off values from a producer thread to a consumer thread where only the latest value
+ * matters (e.g. frames from a camera)
+ * <p>
+ * If the producer puts a value while the previous one has not been taken, the previous value is discarded
+ * (latest wins). Therefore, a slow consumer never makes values queue up and the producer never blocks
+ * <p>
+ * Discarded values are passed to the discard callback, so they can be recycled or released
+ * <p>
+ * This class is thread safe
+ *
+ * @param <T> the type of the values
+ */
+public class LatestValueSlot<T>
+{
+	private final Object lock = new Object();
+
+	/**
+	 * Invoked (outside the lock) with each value that is discarded without being taken
+	 */
+	@Nullable
+	private final Consumer<T> onDiscarded;
+
+	/**
+	 * Guarded by {@link #lock}
+	 */
+	@Nullable
+	private T value;
+
+	public LatestValueSlot()
+	{
+		this(null);
+	}
+
+	/**
+	 * @param onDiscarded callback invoked with each value that is replaced (or cleared) before being taken
+	 */
+	public LatestValueSlot(@Nullable Consumer<T> onDiscarded)
+	{
+		this.onDiscarded = onDiscarded;
+	}
+
+	/**
+	 * Puts a value in the slot, if the slot already has a value, it is discarded
+	 *
+	 * @param newValue the value
+	 * @return true if a value was discarded
+	 */
+	public boolean put(@NotNull T newValue)
+	{
+		T discardedValue;
+		synchronized (lock) {
+			discardedValue = value;
+			value = newValue;
+			lock.notifyAll();
+		}
+
+		if (discardedValue == null)
+			return false;
+
+		if (onDiscarded != null)
+			onDiscarded.accept(discardedValue);
+		return true;
+	}
+
+	/**
+	 * Waits until the slot has a value and takes it, leaving the slot empty
+	 *
+	 * @return the value
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 */
+	@NotNull
+	public T take() throws InterruptedException
+	{
+		synchronized (lock) {
+			while (value == null)
+				lock.wait();
+
+			T takenValue = value;
+			value = null;
+			return takenValue;
+		}
+	}
+
+	/**
+	 * Takes the value in the slot (if any) without waiting, leaving the slot empty
+	 *
+	 * @return the value or null if the slot is empty
+	 */
+	@Nullable
+	public T poll()
+	{
+		synchronized (lock) {
+			T takenValue = value;
+			value = null;
+			return takenValue;
+		}
+	}
+
+	/**
+	 * Discards the value in the slot (if any)
+	 */
+	public void clear()
+	{
+		T discardedValue = this.poll();
+		if (discardedValue != null && onDiscarded != null)
+			onDiscarded.accept(discardedValue);
+	}
+}
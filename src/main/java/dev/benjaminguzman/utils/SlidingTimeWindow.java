@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.benjaminguzman.utils;
+
+/**
+ * Aggregates, over the last few seconds, how long a boolean condition has been true and how long it has been
+ * observed (e.g. "the user was too close for 6 of the last 10 seconds")
+ * <p>
+ * Time is divided in buckets kept in a ring buffer. Each bucket stores how long the condition was observed and
+ * how long it was true during that bucket, and the sums over the whole window are updated incrementally, so the
+ * aggregates are obtained in O(1) and adding an observation costs O(1) amortized (old buckets are expired as time
+ * goes by, never scanned)
+ * <p>
+ * Times are given by the caller in milliseconds and they must come from a monotonic clock
+ * (e.g. {@link System#nanoTime()})
+ * <p>
+ * This class is NOT thread safe
+ */
+public class SlidingTimeWindow
+{
+	private static final long NO_BUCKET = Long.MIN_VALUE;
+
+	private final long window_ms;
+	private final long bucket_ms;
+
+	/**
+	 * Time observed and time the condition was true in each bucket
+	 */
+	private final long[] observedMs;
+	private final long[] trueMs;
+
+	/**
+	 * Sums of {@link #observedMs} and {@link #trueMs}
+	 */
+	private long observed_sum_ms, true_sum_ms;
+
+	/**
+	 * Index (in the ring buffer) of the bucket containing the latest time
+	 */
+	private int head;
+
+	/**
+	 * Number of the bucket containing the latest time (i.e. time / bucket size)
+	 * {@link #NO_BUCKET} if the window is empty
+	 */
+	private long head_bucket = NO_BUCKET;
+
+	/**
+	 * @param window_ms length of the window
+	 * @param n_buckets number of buckets the window is divided in, the window slides one bucket at a time
+	 */
+	public SlidingTimeWindow(long window_ms, int n_buckets)
+	{
+		if (window_ms <= 0 || n_buckets <= 0 || window_ms < n_buckets)
+			throw new IllegalArgumentException("Invalid window: " + window_ms + " ms, " + n_buckets + " buckets");
+
+		this.window_ms = window_ms;
+		this.bucket_ms = window_ms / n_buckets;
+		this.observedMs = new long[n_buckets];
+		this.trueMs = new long[n_buckets];
+	}
+
+	/**
+	 * Adds an observation of the condition. The observation covers the period that ends now and lasts the
+	 * given duration (e.g. the time elapsed since the previous observation)
+	 *
+	 * @param now_ms      the current time
+	 * @param duration_ms how long the observation lasted
+	 * @param value       the value of the condition
+	 */
+	public void add(long now_ms, long duration_ms, boolean value)
+	{
+		this.advance(now_ms);
+
+		// split the duration among the buckets, from the newest to the oldest
+		long remaining_ms = Math.min(duration_ms, window_ms);
+		long bucket_end_ms = now_ms, bucket_start_ms = head_bucket * bucket_ms;
+		for (int i = 0, idx = head; i < observedMs.length && remaining_ms > 0; ++i) {
+			long portion_ms = Math.min(remaining_ms, bucket_end_ms - bucket_start_ms);
+			observedMs[idx] += portion_ms;
+			observed_sum_ms += portion_ms;
+			if (value) {
+				trueMs[idx] += portion_ms;
+				true_sum_ms += portion_ms;
+			}
+
+			remaining_ms -= portion_ms;
+			bucket_end_ms = bucket_start_ms;
+			bucket_start_ms -= bucket_ms;
+			idx = idx == 0 ? observedMs.length - 1 : idx - 1;
+		}
+	}
+
+	/**
+	 * @param now_ms the current time
+	 * @return how long the condition was true within the window
+	 */
+	public long getTrueMs(long now_ms)
+	{
+		this.advance(now_ms);
+		return true_sum_ms;
+	}
+
+	/**
+	 * @param now_ms the current time
+	 * @return how long the condition was false within the window
+	 */
+	public long getFalseMs(long now_ms)
+	{
+		this.advance(now_ms);
+		return observed_sum_ms - true_sum_ms;
+	}
+
+	/**
+	 * @param now_ms the current time
+	 * @return how long the condition was observed within the window
+	 */
+	public long getObservedMs(long now_ms)
+	{
+		this.advance(now_ms);
+		return observed_sum_ms;
+	}
+
+	/**
+	 * Forgets all the observations
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < observedMs.length; ++i) {
+			observedMs[i] = 0;
+			trueMs[i] = 0;
+		}
+		observed_sum_ms = 0;
+		true_sum_ms = 0;
+		head_bucket = NO_BUCKET;
+	}
+
+	/**
+	 * Slides the window up to the given time, i.e. expires the buckets that are not in the window anymore
+	 */
+	private void advance(long now_ms)
+	{
+		long bucket = Math.floorDiv(now_ms, bucket_ms);
+		if (head_bucket == NO_BUCKET) {
+			head_bucket = bucket;
+			return;
+		}
+
+		long n_expired = bucket - head_bucket;
+		if (n_expired <= 0)
+			return;
+
+		if (n_expired >= observedMs.length) { // the whole window expired
+			this.clear();
+			head_bucket = bucket;
+			return;
+		}
+
+		for (long i = 0; i < n_expired; ++i) {
+			head = (head + 1) % observedMs.length;
+			observed_sum_ms -= observedMs[head];
+			true_sum_ms -= trueMs[head];
+			observedMs[head] = 0;
+			trueMs[head] = 0;
+		}
+		head_bucket = bucket;
+	}
+}
@@ -3,6 +3,7 @@ module dev.benjaminguzman.sw {
 	requires java.desktop;
 	requires commons.cli;
 	requires java.logging;
+	requires java.management;
 	requires com.formdev.flatlaf;
 	requires org.bytedeco.opencv;
 	requires java.prefs;
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveSamplerTest
+{
+	@Test
+	void slowsDownWhileStable()
+	{
+		AdaptiveSampler sampler = new AdaptiveSampler(1000, 5000, null);
+		assertEquals(1000, sampler.getIntervalMs());
+
+		for (int i = 0; i < AdaptiveSampler.STABLE_EVALUATIONS_BEFORE_SLOWING_DOWN - 1; ++i)
+			sampler.onStable();
+		assertEquals(1000, sampler.getIntervalMs());
+
+		sampler.onStable();
+		assertEquals(1500, sampler.getIntervalMs());
+
+		for (int i = 0; i < AdaptiveSampler.STABLE_EVALUATIONS_BEFORE_SLOWING_DOWN * 10; ++i)
+			sampler.onStable();
+		assertEquals(5000, sampler.getIntervalMs()); // never exceeds the max interval
+	}
+
+	@Test
+	void speedsUpWhenUnstable()
+	{
+		AtomicInteger speed_ups = new AtomicInteger();
+		AdaptiveSampler sampler = new AdaptiveSampler(700, 5000, speed_ups::incrementAndGet);
+
+		sampler.onUnstable();
+		assertEquals(0, speed_ups.get()); // already at the min interval
+
+		for (int i = 0; i < AdaptiveSampler.STABLE_EVALUATIONS_BEFORE_SLOWING_DOWN * 3; ++i)
+			sampler.onStable();
+		assertTrue(sampler.getIntervalMs() > 700);
+
+		sampler.onUnstable();
+		assertEquals(700, sampler.getIntervalMs());
+		assertEquals(1, speed_ups.get());
+
+		// a single unstable evaluation restarts the count of stable evaluations
+		for (int i = 0; i < AdaptiveSampler.STABLE_EVALUATIONS_BEFORE_SLOWING_DOWN - 1; ++i)
+			sampler.onStable();
+		sampler.onUnstable();
+		sampler.onStable();
+		assertEquals(700, sampler.getIntervalMs());
+
+		assertThrows(IllegalArgumentException.class, () -> new AdaptiveSampler(700, 500, null));
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CVLoopTest
+{
+	private static CVLoop.FaceDetectionResult face(int x, int y, int width, int height)
+	{
+		return new CVLoop.FaceDetectionResult(false, 1, x, y, width, height, 640, 480);
+	}
+
+	private static CVLoop.FaceDetectionResult faces(int n_faces)
+	{
+		return new CVLoop.FaceDetectionResult(false, n_faces, 0, 0, 0, 0, 640, 480);
+	}
+
+	@Test
+	void outlierFaceIsOutvoted()
+	{
+		CVLoop.BurstVote vote = new CVLoop.BurstVote();
+		vote.add(face(100, 80, 200, 200));
+		vote.add(face(102, 82, 198, 202));
+		vote.add(face(10, 10, 400, 400)); // noisy detection, e.g. the user was sneezing
+		vote.add(face(98, 78, 202, 198));
+		vote.add(face(101, 81, 200, 200));
+
+		CVLoop.FaceDetectionResult result = vote.getResult();
+		assertFalse(result.is_rejected);
+		assertEquals(1, result.n_faces);
+		assertEquals(100, result.face_x);
+		assertEquals(80, result.face_y);
+		assertEquals(200, result.face_width);
+		assertEquals(200, result.face_height);
+	}
+
+	@Test
+	void outlierCountIsOutvoted()
+	{
+		CVLoop.BurstVote vote = new CVLoop.BurstVote();
+		vote.add(face(100, 80, 200, 200));
+		vote.add(faces(2)); // a false positive in the background
+		vote.add(face(100, 80, 200, 200));
+		vote.add(face(100, 80, 200, 200));
+		vote.add(face(100, 80, 200, 200));
+		assertEquals(1, vote.getResult().n_faces);
+
+		vote = new CVLoop.BurstVote();
+		vote.add(faces(0));
+		vote.add(faces(0));
+		vote.add(face(100, 80, 200, 200));
+		vote.add(faces(0));
+		vote.add(faces(0));
+		assertEquals(0, vote.getResult().n_faces);
+	}
+
+	@Test
+	void rejectedFramesDontVote()
+	{
+		CVLoop.BurstVote vote = new CVLoop.BurstVote();
+		vote.add(new CVLoop.FaceDetectionResult(true, 0, 0, 0, 0, 0, 640, 480));
+		vote.add(new CVLoop.FaceDetectionResult(true, 0, 0, 0, 0, 0, 640, 480));
+		vote.add(new CVLoop.FaceDetectionResult(true, 0, 0, 0, 0, 0, 640, 480));
+		vote.add(faces(2));
+		vote.add(face(100, 80, 200, 200));
+		assertEquals(1, vote.getResult().n_faces); // ties are resolved in favour of a single face
+	}
+}
@@ -57,8 +57,10 @@ class CVPrefsManagerTest
 	@AfterAll
 	static void afterAll() throws BackingStoreException, IOException, InvalidPreferencesFormatException
 	{
-		marginsBackupPrefs.restore();
+		// both prefs IO classes share the node of CVPrefsManager, so the first backup holds all the
+		// preferences (the second one was taken after clearing the node) and must be restored last
 		fBackupPrefs.restore();
+		marginsBackupPrefs.restore();
 	}
 
 	@Test
@@ -88,6 +90,114 @@ class CVPrefsManagerTest
 		assertTrue(CVPrefsManager.isFeatureEnabled());
 	}
 
+	@Test
+	void saveDetectionScale()
+	{
+		double previous_detection_scale = CVPrefsManager.getDetectionScale();
+		try {
+			CVPrefsManager.saveDetectionScale(0.25);
+			assertEquals(CVPrefsManager.getDetectionScale(), 0.25);
+
+			assertThrows(IllegalArgumentException.class, () -> CVPrefsManager.saveDetectionScale(0));
+			assertThrows(IllegalArgumentException.class, () -> CVPrefsManager.saveDetectionScale(1.5));
+			assertEquals(CVPrefsManager.getDetectionScale(), 0.25);
+		} finally {
+			CVPrefsManager.saveDetectionScale(previous_detection_scale);
+		}
+	}
+
+	@Test
+	void saveMaxRefreshRate()
+	{
+		CVPrefsManager.saveMaxRefreshRate(3000);
+		assertEquals(CVPrefsManager.getMaxRefreshRate(), 3000);
+
+		assertThrows(IllegalArgumentException.class, () -> CVPrefsManager.saveMaxRefreshRate(0));
+		assertEquals(CVPrefsManager.getMaxRefreshRate(), 3000);
+
+		CVPrefsManager.saveMaxRefreshRate(CVPrefsManager.DEFAULT_MAX_REFRESH_RATE_MS);
+	}
+
+	@Test
+	void saveCpuBudget()
+	{
+		CVPrefsManager.saveCpuBudget(5);
+		assertEquals(CVPrefsManager.getCpuBudget(), 5);
+
+		assertThrows(IllegalArgumentException.class, () -> CVPrefsManager.saveCpuBudget(-1));
+		assertEquals(CVPrefsManager.getCpuBudget(), 5);
+
+		CVPrefsManager.saveCpuBudget(CVPrefsManager.DEFAULT_CPU_BUDGET_PERCENT);
+	}
+
+	@Test
+	void saveMirrorDetectionRate()
+	{
+		CVPrefsManager.saveMirrorDetectionRate(2);
+		assertEquals(CVPrefsManager.getMirrorDetectionRate(), 2);
+
+		assertThrows(IllegalArgumentException.class, () -> CVPrefsManager.saveMirrorDetectionRate(0));
+		assertEquals(CVPrefsManager.getMirrorDetectionRate(), 2);
+
+		CVPrefsManager.saveMirrorDetectionRate(CVPrefsManager.DEFAULT_MIRROR_DETECTION_RATE);
+	}
+
+	@Test
+	void setDutyCycleEnabled()
+	{
+		CVPrefsManager.setDutyCycleEnabled(true);
+		assertTrue(CVPrefsManager.isDutyCycleEnabled());
+		assertTrue(CVPrefsManager.getCVPrefs().is_duty_cycled);
+
+		CVPrefsManager.setDutyCycleEnabled(false);
+		assertFalse(CVPrefsManager.isDutyCycleEnabled());
+	}
+
+	@Test
+	void saveCaptureProfile()
+	{
+		CaptureProfile previousProfile = CVPrefsManager.getCaptureProfile();
+		try {
+			CaptureProfile captureProfile = new CaptureProfile(320, 240, CaptureProfile.FOURCC_MJPG, 10, 2);
+			CVPrefsManager.saveCaptureProfile(captureProfile);
+
+			CaptureProfile savedProfile = CVPrefsManager.getCaptureProfile();
+			assertEquals(savedProfile.width, 320);
+			assertEquals(savedProfile.height, 240);
+			assertEquals(savedProfile.fourcc, CaptureProfile.FOURCC_MJPG);
+			assertEquals(savedProfile.fps, 10);
+			assertEquals(savedProfile.buffer_size, 2);
+
+			assertThrows(
+				IllegalArgumentException.class,
+				() -> CVPrefsManager.saveCaptureProfile(new CaptureProfile(0, 240, null, 10, 1))
+			);
+			assertThrows(
+				IllegalArgumentException.class,
+				() -> CVPrefsManager.saveCaptureProfile(new CaptureProfile(320, 240, "H264X", 10, 1))
+			);
+
+			assertEquals(
+				CaptureProfile.decodeFourcc(captureProfile.getFourccCode()),
+				CaptureProfile.FOURCC_MJPG
+			);
+		} finally {
+			CVPrefsManager.saveCaptureProfile(previousProfile);
+		}
+	}
+
+	@Test
+	void saveFaceDetectorType()
+	{
+		CVPrefsManager.saveFaceDetectorType(FaceDetectorType.HAAR_CASCADE);
+		assertEquals(CVPrefsManager.getFaceDetectorType(), FaceDetectorType.HAAR_CASCADE);
+
+		assertEquals(FaceDetectorType.getInstance("dnn").orElseThrow(), FaceDetectorType.DNN_RES10_SSD);
+		assertTrue(FaceDetectorType.getInstance("yolo").isEmpty());
+
+		CVPrefsManager.saveFaceDetectorType(CVPrefsManager.DEFAULT_FACE_DETECTOR_TYPE);
+	}
+
 	@Test
 	void getCVPrefs()
 	{
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CaptureSchedulerTest
+{
+	@Test
+	void skipsMissedTicks() throws InterruptedException
+	{
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		CVMetrics metrics = new CVMetrics();
+		AtomicInteger n_captures = new AtomicInteger();
+		AtomicLong first_start_ns = new AtomicLong(), second_start_ns = new AtomicLong();
+		CountDownLatch secondCapture = new CountDownLatch(1);
+
+		CaptureScheduler scheduler = new CaptureScheduler(executor, () -> {
+			if (n_captures.incrementAndGet() == 1) {
+				first_start_ns.set(System.nanoTime());
+				try {
+					Thread.sleep(120); // overruns the interval, i.e. misses 2 ticks
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			} else {
+				second_start_ns.set(System.nanoTime());
+				secondCapture.countDown();
+			}
+		}, 50, 50, null, metrics);
+
+		try {
+			scheduler.start();
+			assertTrue(secondCapture.await(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(1, metrics.getCaptureOverruns());
+		assertTrue(metrics.getSkippedTicks() >= 2);
+		assertTrue(metrics.getMaxOverrunMs() >= 70);
+
+		// the next capture waits for the next tick instead of being executed right after the late one
+		long gap_ms = TimeUnit.NANOSECONDS.toMillis(second_start_ns.get() - first_start_ns.get());
+		assertTrue(gap_ms >= 145, "Gap between captures: " + gap_ms + " ms");
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.cv;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FocalLengthEstimatorTest
+{
+	@Test
+	void convergesWithStableMeasurements()
+	{
+		FocalLengthEstimator estimator = new FocalLengthEstimator(0.01);
+		assertEquals(CVUtils.INVALID_IDEAL_FOCAL_LENGTH, estimator.getEstimate());
+
+		double[] measurements = {700, 705, 695, 702};
+		for (double measurement : measurements)
+			estimator.add(measurement);
+
+		assertFalse(estimator.hasEnoughMeasurements());
+		assertFalse(estimator.hasConverged());
+		assertEquals(0, estimator.getConfidence());
+
+		estimator.add(698);
+		assertTrue(estimator.hasConverged());
+		assertEquals(700, estimator.getEstimate()); // median
+		assertTrue(estimator.getConfidence() > 0.99);
+	}
+
+	@Test
+	void ignoresOutliers()
+	{
+		FocalLengthEstimator estimator = new FocalLengthEstimator(0.01);
+		double[] measurements = {700, 1400, 702, 698, 701, 350};
+		for (double measurement : measurements)
+			estimator.add(measurement);
+
+		// the median is not affected by the outliers, but they delay the convergence
+		assertEquals(700.5, estimator.getEstimate());
+		assertFalse(estimator.hasConverged());
+		assertTrue(estimator.getConfidence() < 0.9);
+	}
+}
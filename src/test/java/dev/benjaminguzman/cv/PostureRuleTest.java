@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.benjaminguzman.cv;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PostureRuleTest
+{
+	@Test
+	void hysteresis()
+	{
+		// active after 3 of the last 5 seconds, inactive after 2 of the last 3 seconds
+		PostureRule rule = new PostureRule(3_000, 5_000, 2_000, 3_000, 5_000);
+		long now_ms = 0;
+
+		assertFalse(rule.update(now_ms, true));
+		for (int i = 0; i < 5; ++i) // 2.5 s
+			assertFalse(rule.update(now_ms += 500, true));
+		assertTrue(rule.update(now_ms += 500, true)); // 3 s
+		assertTrue(rule.isActive());
+
+		// a single noisy evaluation doesn't deactivate the rule
+		assertFalse(rule.update(now_ms += 500, false));
+		assertFalse(rule.update(now_ms += 500, true));
+		assertTrue(rule.isActive());
+
+		for (int i = 0; i < 2; ++i) // 1 s
+			assertFalse(rule.update(now_ms += 500, false));
+		assertTrue(rule.update(now_ms += 500, false)); // 2 s of the last 3 s, including the noisy evaluation
+		assertFalse(rule.isActive());
+
+		// nor activates it again
+		assertFalse(rule.update(now_ms += 500, true));
+		assertFalse(rule.isActive());
+	}
+
+	@Test
+	void sparseObservations()
+	{
+		// observations 5 s apart, e.g. the posture was stable and the sampler slowed down
+		PostureRule rule = new PostureRule(3_000, 5_000, 2_000, 3_000, 5_000);
+		long now_ms = 0;
+		for (int i = 0; i < 5; ++i)
+			assertFalse(rule.update(now_ms += 5_000, false));
+
+		// a single noisy evaluation counts 1 s, not 5 s
+		assertFalse(rule.update(now_ms += 5_000, true));
+		assertFalse(rule.isActive());
+
+		// if the condition persists, the sampler speeds up and the rule becomes active
+		assertFalse(rule.update(now_ms += 700, true));
+		assertFalse(rule.update(now_ms += 700, true));
+		assertTrue(rule.update(now_ms += 700, true));
+	}
+
+	@Test
+	void reset()
+	{
+		PostureRule rule = new PostureRule(1_000, 2_000, 1_000, 2_000, 5_000);
+		rule.update(0, true);
+		rule.update(500, true);
+		rule.update(1_000, true);
+		assertTrue(rule.update(1_500, true));
+
+		rule.reset();
+		assertFalse(rule.isActive());
+		// the first observation after the reset only marks the start
+		assertFalse(rule.update(60_000, true));
+		assertFalse(rule.update(60_500, true));
+		assertFalse(rule.update(61_000, true));
+		assertTrue(rule.update(61_500, true));
+
+		assertThrows(IllegalArgumentException.class, () -> new PostureRule(3_000, 2_000, 1_000, 2_000, 5_000));
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.benjaminguzman.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoalescingMailboxTest
+{
+	@Test
+	void coalescesStates()
+	{
+		Queue<Runnable> tasks = new ArrayDeque<>();
+		List<String> consumed = new ArrayList<>();
+		CoalescingMailbox<String> mailbox = new CoalescingMailbox<>(tasks::add, consumed::add);
+
+		assertTrue(mailbox.post("too close"));
+		assertFalse(mailbox.post("not in center")); // a task is already pending
+		assertFalse(mailbox.post("ok"));
+		assertEquals(1, tasks.size());
+
+		tasks.poll().run();
+		assertEquals(List.of("ok"), consumed); // only the latest state is consumed
+		assertEquals(2, mailbox.getSupersededStates());
+
+		assertFalse(mailbox.post("ok")); // the state didn't change
+		assertTrue(tasks.isEmpty());
+
+		assertTrue(mailbox.post("too close"));
+		assertFalse(mailbox.post("ok")); // back to the consumed state before the task runs
+		tasks.poll().run();
+		assertEquals(List.of("ok"), consumed);
+	}
+
+	@Test
+	void comparesStatesWithEquals()
+	{
+		Queue<Runnable> tasks = new ArrayDeque<>();
+		List<String> consumed = new ArrayList<>();
+		CoalescingMailbox<String> mailbox = new CoalescingMailbox<>(tasks::add, consumed::add);
+
+		mailbox.post(new String("ok"));
+		tasks.poll().run();
+
+		// a state equal to the consumed one (but a different object) is not consumed again
+		assertTrue(mailbox.post("too close"));
+		assertFalse(mailbox.post(new String("ok")));
+		tasks.poll().run();
+		assertEquals(List.of("ok"), consumed);
+
+		assertTrue(mailbox.post(new String("too close")));
+		tasks.poll().run();
+		assertEquals(List.of("ok", "too close"), consumed);
+	}
+}
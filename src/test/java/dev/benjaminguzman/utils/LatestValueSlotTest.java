@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dev.benjaminguzman.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatestValueSlotTest
+{
+	@Test
+	void latestWins()
+	{
+		List<Integer> discarded = new ArrayList<>();
+		LatestValueSlot<Integer> slot = new LatestValueSlot<>(discarded::add);
+
+		assertFalse(slot.put(1));
+		assertTrue(slot.put(2));
+		assertTrue(slot.put(3));
+		assertEquals(List.of(1, 2), discarded);
+
+		assertEquals(3, slot.poll());
+		assertNull(slot.poll());
+
+		slot.put(4);
+		slot.clear();
+		assertEquals(List.of(1, 2, 4), discarded);
+		assertNull(slot.poll());
+	}
+
+	@Test
+	void take() throws InterruptedException
+	{
+		LatestValueSlot<String> slot = new LatestValueSlot<>();
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException ignored) {
+			}
+			slot.put("frame");
+		});
+		producer.start();
+
+		assertEquals("frame", slot.take()); // blocks until the producer puts the value
+		producer.join();
+	}
+}
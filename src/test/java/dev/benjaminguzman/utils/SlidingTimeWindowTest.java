@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2021. Benjamín Antonio Velasco Guzmán
+ * Author: Benjamín Antonio Velasco Guzmán <bg@benjaminguzman.net>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dev.benjaminguzman.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlidingTimeWindowTest
+{
+	@Test
+	void expiresOldObservations()
+	{
+		SlidingTimeWindow window = new SlidingTimeWindow(10_000, 10);
+		window.add(1_000, 1_000, true);
+		window.add(3_000, 2_000, false);
+		window.add(5_500, 2_500, true);
+
+		assertEquals(3_500, window.getTrueMs(5_500));
+		assertEquals(2_000, window.getFalseMs(5_500));
+		assertEquals(5_500, window.getObservedMs(5_500));
+
+		// the first 2 seconds slide out of the window
+		assertEquals(2_500, window.getTrueMs(11_000));
+		assertEquals(3_500, window.getObservedMs(11_000));
+
+		// long after the last observation, nothing is left
+		assertEquals(0, window.getObservedMs(30_000));
+	}
+
+	@Test
+	void clear()
+	{
+		SlidingTimeWindow window = new SlidingTimeWindow(1_000, 4);
+		window.add(500, 20_000, true); // an observation longer than the window fills the window only
+		assertTrue(window.getTrueMs(500) <= 1_000);
+
+		window.clear();
+		assertEquals(0, window.getObservedMs(500));
+
+		assertThrows(IllegalArgumentException.class, () -> new SlidingTimeWindow(0, 4));
+	}
+}